@@ -1,5 +1,6 @@
 plugins {
 	id("toni.blahaj")
+	id("me.champeau.jmh")
 }
 
 blahaj {
@@ -23,4 +24,66 @@ blahaj {
 			.addPlatform("1.21.1-neoforge", "neoforge-1.21.1-1.0.7")
 			.addPlatform("1.21.1-fabric", "fabric-1.21.1-1.0.7") { required() } */
 	}
-}
\ No newline at end of file
+}
+
+// Benchmarks in src/jmh run headless against the mod's data classes, with Minecraft on the classpath but no server.
+// Run with `gradlew jmh`, or e.g. `gradlew jmh -PjmhIncludes=StorageBenchmark` for a single class.
+configurations {
+	named("jmhCompileClasspath") { extendsFrom(compileClasspath.get()) }
+	named("jmhRuntimeClasspath") { extendsFrom(runtimeClasspath.get()) }
+}
+
+jmh {
+	jmhVersion.set("1.37")
+	jvmArgsAppend.add("-Xmx6g")
+	resultFormat.set("JSON")
+	findProperty("jmhIncludes")?.let { includes.add(it.toString()) }
+}
+
+// Offline tool in src/cli for reading, exporting, converting and compacting activity files without a server. It runs
+// against the mod's classes with Minecraft on the classpath, so it's started from Gradle rather than shipped as a jar.
+// e.g. `gradlew activityCli --args="export run/world/chunk_activity_info/minecraft/overworld activity.csv"`
+sourceSets {
+	create("cli") {
+		compileClasspath += sourceSets["main"].output
+		runtimeClasspath += sourceSets["main"].output
+	}
+}
+
+configurations {
+	named("cliCompileClasspath") { extendsFrom(compileClasspath.get()) }
+	named("cliRuntimeClasspath") { extendsFrom(runtimeClasspath.get()) }
+}
+
+tasks.register<JavaExec>("activityCli") {
+	group = "application"
+	description = "Runs the offline activity file tool, pass its arguments with --args"
+	mainClass.set("toni.chunkactivitytracker.cli.ActivityCli")
+	classpath = sourceSets["cli"].runtimeClasspath
+	workingDir = rootProject.projectDir
+	maxHeapSize = "2g"
+}
+
+// Headless soak test in src/jmh that plays months of virtual time against a dimension's map, with SimulatedServer
+// standing in for the server. Fails if heap per chunk, save or load latency, file size or GC time exceed their budgets.
+// e.g. `gradlew soakTest --args="--days 180 --players 500 --max-save-p99 20"`
+tasks.register<JavaExec>("soakTest") {
+	group = "verification"
+	description = "Runs the headless soak simulation, pass its options and budgets with --args"
+	mainClass.set("toni.chunkactivitytracker.benchmark.SoakSimulation")
+	classpath = sourceSets["jmh"].runtimeClasspath
+	workingDir = rootProject.projectDir
+	systemProperty("log4j.configurationFile", "soak-log4j2.xml")
+	maxHeapSize = "2g"
+}
+
+// Headless check in src/jmh that logged activity survives failed replays and restarts
+tasks.register<JavaExec>("logRecoveryCheck") {
+	group = "verification"
+	description = "Crashes and reopens maps with unreadable regions and checks that no logged activity is lost"
+	mainClass.set("toni.chunkactivitytracker.benchmark.LogRecoveryCheck")
+	classpath = sourceSets["jmh"].runtimeClasspath
+	workingDir = rootProject.projectDir
+}
+
+tasks.named("check") { dependsOn("logRecoveryCheck") }
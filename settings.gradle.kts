@@ -16,6 +16,7 @@ plugins {
 	id("dev.architectury.loom") version "1.9-SNAPSHOT" apply false
 	kotlin("jvm") version "2.0.0" apply false
 	kotlin("plugin.serialization") version "2.0.0" apply false
+	id("me.champeau.jmh") version "0.7.2" apply false
 	id("toni.blahaj") version "2.0.1"
 	id("dev.kikugie.stonecutter") version "0.6-alpha.5"
 }
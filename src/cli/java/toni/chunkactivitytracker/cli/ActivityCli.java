@@ -0,0 +1,211 @@
+package toni.chunkactivitytracker.cli;
+
+import toni.chunkactivitytracker.data.ActivityFiles;
+import toni.chunkactivitytracker.data.CompressedRegionStorage;
+import toni.chunkactivitytracker.data.StorageCompression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line entry point for working with activity files without a server, e.g. on a backup of a world. A source
+ * is a dimension's region directory, such as world/chunk_activity_info/minecraft/overworld, or a whole-dimension .dat
+ * file from before region files. Run with `gradlew activityCli --args="..."`.
+ * <p>
+ * None of the commands may be used on a world that's loaded by a running server.
+ */
+public class ActivityCli {
+    private static final String USAGE = """
+        Usage: <command> [options]
+          info <source>                     Print the number of regions and chunks and the totals of a source
+          export <source> <output>          Write every chunk to a CSV file or a directory of columns
+              --format csv|columns          Output format, csv by default
+          convert <source> <target>         Write a source into an empty region directory
+          merge <target> <source>...        Add the chunks of every source to a region directory, summing counters
+          compact <directory>               Rewrite a region directory in the current format, adding its log
+        Options of convert, merge and compact:
+              --compression none|gzip|deflate
+              --level 0-9                   Compression level, for gzip and deflate
+        Common options:
+              --threads n                   Threads to decode regions on, by default one per core
+        """;
+
+    public static void main(String[] args) {
+        var positional = new ArrayList<String>();
+        var options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length)
+                options.put(args[i].substring(2), args[++i]);
+            else
+                positional.add(args[i]);
+        }
+
+        if (positional.isEmpty()) {
+            System.out.print(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            var command = positional.get(0);
+            var paths = positional.subList(1, positional.size()).stream().map(Path::of).toList();
+            int failed = switch (command) {
+                case "info" -> info(single(paths, 1), options);
+                case "export" -> export(single(paths, 2), options);
+                case "convert" -> convert(single(paths, 2), options);
+                case "merge" -> merge(paths, options);
+                case "compact" -> compact(single(paths, 1), options);
+                default -> throw new IllegalArgumentException("Unknown command '" + command + "'");
+            };
+
+            if (failed > 0) {
+                System.err.println(failed + " regions could not be read, see the log above");
+                System.exit(2);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.out.print(USAGE);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static int info(List<Path> paths, Map<String, String> options) throws IOException {
+        var source = paths.get(0);
+        warnAboutLog(source);
+
+        var regions = new AtomicLong();
+        var chunks = new AtomicLong();
+        var totalTime = new AtomicLong();
+        var placed = new AtomicLong();
+        var broken = new AtomicLong();
+        var firstSeen = new AtomicLong(Long.MAX_VALUE);
+        var lastSeen = new AtomicLong();
+
+        long startTime = System.currentTimeMillis();
+        int failed = ActivityFiles.forEachRegion(source, threads(options), region -> {
+            regions.incrementAndGet();
+            region.forEach((pos, info) -> {
+                chunks.incrementAndGet();
+                totalTime.addAndGet(info.getTotalTime());
+                placed.addAndGet(info.getTotalBlocksPlaced());
+                broken.addAndGet(info.getTotalBlocksBroken());
+                if (info.getFirstSeen() != 0)
+                    firstSeen.accumulateAndGet(info.getFirstSeen(), Math::min);
+                lastSeen.accumulateAndGet(info.getLastSeen(), Math::max);
+            });
+        });
+
+        // Regions of a whole-dimension file can be handed over more than once
+        if (!ActivityFiles.isLegacyFile(source))
+            System.out.println("Regions: " + regions.get());
+        System.out.println("Chunks: " + chunks.get());
+        System.out.println("Total time: " + totalTime.get() + " seconds");
+        System.out.println("Blocks placed: " + placed.get());
+        System.out.println("Blocks broken: " + broken.get());
+        if (lastSeen.get() != 0) {
+            System.out.println("First seen: " + (firstSeen.get() == Long.MAX_VALUE ? "unknown" : Instant.ofEpochSecond(firstSeen.get())));
+            System.out.println("Last seen: " + Instant.ofEpochSecond(lastSeen.get()));
+        }
+        System.out.println("Read in " + (System.currentTimeMillis() - startTime) + " milliseconds");
+        return failed;
+    }
+
+    private static int export(List<Path> paths, Map<String, String> options) throws IOException {
+        var source = paths.get(0);
+        warnAboutLog(source);
+
+        long startTime = System.currentTimeMillis();
+        int failed;
+        long rows;
+        try (var export = ChunkExport.open(options.getOrDefault("format", "csv"), paths.get(1))) {
+            failed = ActivityFiles.forEachRegion(source, threads(options), export::write);
+            rows = export.getRows();
+        }
+
+        System.out.println("Exported " + rows + " chunks to '" + paths.get(1) + "' in " + (System.currentTimeMillis() - startTime) + " milliseconds");
+        return failed;
+    }
+
+    private static int convert(List<Path> paths, Map<String, String> options) throws IOException {
+        var target = paths.get(1);
+        if (new CompressedRegionStorage(target).list().length > 0)
+            throw new IOException("'" + target + "' already has regions, use merge to add to them");
+
+        warnAboutLog(paths.get(0));
+        return write(List.of(paths.get(0)), target, options);
+    }
+
+    private static int merge(List<Path> paths, Map<String, String> options) throws IOException {
+        if (paths.size() < 2)
+            throw new IllegalArgumentException("merge needs a target and at least one source");
+
+        for (var source : paths.subList(1, paths.size()))
+            warnAboutLog(source);
+
+        return write(paths.subList(1, paths.size()), paths.get(0), options);
+    }
+
+    private static int compact(List<Path> paths, Map<String, String> options) throws IOException {
+        var directory = paths.get(0);
+        if (!Files.isDirectory(directory))
+            throw new IllegalArgumentException("'" + directory + "' is not a region directory");
+
+        long startTime = System.currentTimeMillis();
+        ActivityFiles.compact(directory, compression(options), level(options), threads(options));
+
+        System.out.println("Compacted '" + directory + "' in " + (System.currentTimeMillis() - startTime) + " milliseconds, the original was kept as " + directory.getFileName() + ".old");
+        return 0;
+    }
+
+    private static int write(List<Path> sources, Path target, Map<String, String> options) throws IOException {
+        long startTime = System.currentTimeMillis();
+        int failed = ActivityFiles.merge(sources, target, compression(options), level(options), threads(options));
+
+        System.out.println("Wrote " + sources.size() + " sources to '" + target + "' in " + (System.currentTimeMillis() - startTime) + " milliseconds");
+        return failed;
+    }
+
+    // Activity still in the write-ahead log only shows up once the dimension has been loaded, or after compact
+    private static void warnAboutLog(Path source) throws IOException {
+        if (ActivityFiles.isLegacyFile(source))
+            return;
+
+        if (!Files.isDirectory(source))
+            throw new IllegalArgumentException("'" + source + "' is neither a region directory nor a .dat file");
+
+        int segments = ActivityFiles.countLogSegments(source);
+        if (segments > 0)
+            System.err.println("Warning: '" + source + "' has " + segments + " write-ahead log segments that aren't included, load the world or compact it first");
+    }
+
+    private static List<Path> single(List<Path> paths, int count) {
+        if (paths.size() != count)
+            throw new IllegalArgumentException("Expected " + count + " paths, got " + paths.size());
+
+        return paths;
+    }
+
+    // Null keeps the mod's default
+    private static StorageCompression compression(Map<String, String> options) {
+        var name = options.get("compression");
+        return name != null ? StorageCompression.valueOf(name.toUpperCase(Locale.ROOT)) : null;
+    }
+
+    private static int level(Map<String, String> options) {
+        return Integer.parseInt(options.getOrDefault("level", "6"));
+    }
+
+    private static int threads(Map<String, String> options) {
+        return Math.max(1, Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    }
+}
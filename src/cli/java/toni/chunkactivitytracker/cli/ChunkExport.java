@@ -0,0 +1,118 @@
+package toni.chunkactivitytracker.cli;
+
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ChunkActivityInfo;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where exported chunks are written. Regions are exported one at a time under the exporter's lock, so the output is
+ * grouped by region and the order of regions follows whichever thread finished first.
+ */
+abstract class ChunkExport implements Closeable {
+    static final String[] COLUMNS = {"chunk_x", "chunk_z", "total_time", "blocks_placed", "blocks_broken", "visits", "first_seen", "last_seen", "players"};
+
+    private long rows;
+
+    static ChunkExport open(String format, Path output) throws IOException {
+        return switch (format) {
+            case "csv" -> new Csv(output);
+            case "columns" -> new Columns(output);
+            default -> throw new IllegalArgumentException("Unknown export format '" + format + "', expected csv or columns");
+        };
+    }
+
+    synchronized void write(ChunkActivityRegion region) throws IOException {
+        var failure = new IOException[1];
+        region.forEach((pos, info) -> {
+            if (failure[0] != null)
+                return;
+
+            try {
+                writeChunk(pos, info);
+                rows++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    synchronized long getRows() {
+        return rows;
+    }
+
+    protected abstract void writeChunk(long pos, ChunkActivityInfo info) throws IOException;
+
+    // One line per chunk with a header, columns as in COLUMNS
+    private static class Csv extends ChunkExport {
+        private final BufferedWriter writer;
+
+        Csv(Path output) throws IOException {
+            writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+            writer.write(String.join(",", COLUMNS));
+            writer.newLine();
+        }
+
+        @Override
+        protected void writeChunk(long pos, ChunkActivityInfo info) throws IOException {
+            writer.write(ChunkPos.getX(pos) + "," + ChunkPos.getZ(pos) + "," + info.getTotalTime() + "," + info.getTotalBlocksPlaced() + "," + info.getTotalBlocksBroken() + "," + info.getVisitCount() + "," + info.getFirstSeen() + "," + info.getLastSeen() + "," + info.getPlayerCount());
+            writer.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * A directory with one file per column, holding that column's values of every row back to back as big-endian
+     * int32 or int64, plus schema.txt with the row count and each column's file and type. Analysis tools can read
+     * just the columns they need, or map a file straight into an array.
+     */
+    private static class Columns extends ChunkExport {
+        private final Path directory;
+        private final List<DataOutputStream> outputs = new ArrayList<>();
+
+        Columns(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+            for (var column : COLUMNS)
+                outputs.add(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(column + ".bin")), 64 * 1024)));
+        }
+
+        @Override
+        protected void writeChunk(long pos, ChunkActivityInfo info) throws IOException {
+            outputs.get(0).writeInt(ChunkPos.getX(pos));
+            outputs.get(1).writeInt(ChunkPos.getZ(pos));
+            outputs.get(2).writeLong(info.getTotalTime());
+            outputs.get(3).writeInt(info.getTotalBlocksPlaced());
+            outputs.get(4).writeInt(info.getTotalBlocksBroken());
+            outputs.get(5).writeInt(info.getVisitCount());
+            outputs.get(6).writeLong(info.getFirstSeen());
+            outputs.get(7).writeLong(info.getLastSeen());
+            outputs.get(8).writeInt(info.getPlayerCount());
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var output : outputs)
+                output.close();
+
+            var schema = new StringBuilder("rows " + getRows() + "\n");
+            for (var column : COLUMNS)
+                schema.append(column).append(".bin ").append(column.equals("total_time") || column.endsWith("_seen") ? "int64" : "int32").append("\n");
+
+            Files.writeString(directory.resolve("schema.txt"), schema.toString());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package toni.chunkactivitytracker.benchmark;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import org.openjdk.jmh.annotations.*;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerIndex;
+import toni.chunkactivitytracker.tracking.ActivityBatch;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One second's worth of accounting for a server full of players, the way the tick handler used to do it (one lookup
+ * and update per player) against the batched pass, and the part of the batched pass that stays on the server thread
+ * with async accounting. A share of the players stand in the same chunks, as they do at
+ * bases and farms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountingBenchmark {
+    @Param({"20", "200", "1000"})
+    public int players;
+
+    private final ResourceKey<net.minecraft.world.level.Level> dimension = net.minecraft.world.level.Level.OVERWORLD;
+    private UUID[] uuids;
+    private ChunkPos[] positions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var world = SyntheticWorld.generate(100_000, 42L, false);
+        ChunkActivityMap.register(dimension, world.createMap("overworld"));
+
+        var random = new SplittableRandom(3L);
+        uuids = new UUID[players];
+        positions = new ChunkPos[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+            // A third of the players share chunks with someone else
+            int source = i > 0 && random.nextInt(3) == 0 ? random.nextInt(i) : -1;
+            positions[i] = source >= 0 ? positions[source] : new ChunkPos(world.position(random.nextInt(world.size())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ChunkActivityMap.register(dimension, null);
+    }
+
+    @Benchmark
+    public void perPlayer() {
+        for (int i = 0; i < players; i++) {
+            var info = ChunkActivityMap.getChunkInfo(dimension, positions[i]);
+            if (info == null)
+                info = ChunkActivityMap.createChunkInfo(dimension, positions[i]);
+
+            info.updatePlayerTime(uuids[i]);
+        }
+    }
+
+    @Benchmark
+    public void batched() {
+        collect().apply((dimension, pos) -> {});
+    }
+
+    // What's left on the server thread when batches are applied on the accounting thread
+    @Benchmark
+    public ActivityBatch collectOnly() {
+        return collect();
+    }
+
+    private ActivityBatch collect() {
+        var builder = ActivityBatch.builder();
+        for (int i = 0; i < players; i++)
+            builder.add(dimension, positions[i], PlayerIndex.indexOf(uuids[i]), 1L);
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,69 @@
+package toni.chunkactivitytracker.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import toni.chunkactivitytracker.data.ChunkActivityInfo;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-chunk counter updates, which run once per player every second, and the total time read used by other mods.
+ * players is the number of distinct players already recorded in the chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkActivityInfoBenchmark {
+    @Param({"1", "2", "8"})
+    public int players;
+
+    private SyntheticWorld world;
+    private ChunkActivityInfo info;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        world = SyntheticWorld.generate(0, 42L, false);
+        info = new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), null);
+        for (int i = 0; i < players; i++) {
+            info.updatePlayerTime(world.playerId(i), 100L);
+            info.addBlocksPlaced(world.playerId(i), 10);
+        }
+    }
+
+    private UUID nextPlayer() {
+        next = next + 1 == players ? 0 : next + 1;
+        return world.player(next);
+    }
+
+    @Benchmark
+    public void updatePlayerTime() {
+        info.updatePlayerTime(nextPlayer());
+    }
+
+    @Benchmark
+    public void updatePlayerTimeById() {
+        next = next + 1 == players ? 0 : next + 1;
+        info.updatePlayerTime(world.playerId(next), 1L);
+    }
+
+    @Benchmark
+    public void incrementBlocksPlaced() {
+        info.incrementBlocksPlaced(nextPlayer());
+    }
+
+    @Benchmark
+    public long getTotalTime() {
+        return info.getTotalTime();
+    }
+
+    @Benchmark
+    public void getPlayerTimes(Blackhole blackhole) {
+        blackhole.consume(info.getPlayerTimes());
+    }
+}
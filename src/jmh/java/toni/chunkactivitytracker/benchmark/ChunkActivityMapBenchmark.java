@@ -0,0 +1,84 @@
+package toni.chunkactivitytracker.benchmark;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import org.openjdk.jmh.annotations.*;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ChunkActivityInfo;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk lookups against a fully resident map. Lookups are spread over the whole map, so this measures the cold
+ * path; the tick handler mostly hits the same region over and over. Generating the largest map takes a while and
+ * needs a few GB of heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkActivityMapBenchmark {
+    private static final int LOOKUPS = 1 << 16;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int chunks;
+
+    @Param({"0.9"})
+    public double hitRatio;
+
+    private final ResourceKey<net.minecraft.world.level.Level> dimension = net.minecraft.world.level.Level.OVERWORLD;
+    private ChunkActivityMap map;
+    private long[] lookups;
+    private ChunkPos[] lookupPositions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var world = SyntheticWorld.generate(chunks, 42L, false);
+        map = world.createMap("overworld");
+        lookups = world.lookups(LOOKUPS, hitRatio, 7L);
+        lookupPositions = new ChunkPos[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            lookupPositions[i] = new ChunkPos(lookups[i]);
+
+        // Registered directly so the static lookups find it without a server to load it from
+        ChunkActivityMap.register(dimension, map);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ChunkActivityMap.register(dimension, null);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next() {
+            return next = (next + 1) & (LOOKUPS - 1);
+        }
+    }
+
+    @Benchmark
+    public ChunkActivityInfo getChunk(Cursor cursor) {
+        return map.getChunk(lookups[cursor.next()]);
+    }
+
+    @Benchmark
+    public ChunkActivityInfo getChunkInfo(Cursor cursor) {
+        return ChunkActivityMap.getChunkInfo(dimension, lookupPositions[cursor.next()]);
+    }
+
+    @Benchmark
+    public long getTotalTimeInChunk(Cursor cursor) {
+        return ChunkActivityTracker.getTotalTimeInChunk(dimension, lookupPositions[cursor.next()]);
+    }
+
+    // Same chunk every time, like a player standing still
+    @Benchmark
+    public long getTotalTimeInChunkSameRegion() {
+        return ChunkActivityTracker.getTotalTimeInChunk(dimension, lookupPositions[0]);
+    }
+}
@@ -0,0 +1,220 @@
+package toni.chunkactivitytracker.benchmark;
+
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ActivityFiles;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+import toni.chunkactivitytracker.data.CompressedRegionStorage;
+import toni.chunkactivitytracker.data.PlayerIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Headless check that activity in the log survives restarts that don't go to plan: a region that can't be read while
+ * the last run's log is replayed, a save before that region is loaded again, and regions saved with log sequences
+ * ahead of the clock. Each case writes real region files and logs to a temporary directory, "crashes" by closing the
+ * map without saving, and checks the chunk totals after opening it again. Exits with 1 if any case fails. Run with `gradlew logRecoveryCheck`, which `gradlew check` also runs.
+ */
+public class LogRecoveryCheck {
+    private static final UUID PLAYER = UUID.fromString("6e4f1c52-4d3a-4b35-9d0e-2f0b3c7a9e11");
+    private static final long TIMESTAMP = 1_704_067_200L;
+
+    // In different regions, so one can be made unreadable while the other is saved
+    private static final long BLOCKED_CHUNK = ChunkPos.asLong(1, 1);
+    private static final long OTHER_CHUNK = ChunkPos.asLong(ChunkActivityRegion.SIZE * 2 + 1, 1);
+
+    private final Path root;
+    private final List<String> failures = new ArrayList<>();
+    private String current;
+
+    private LogRecoveryCheck(Path root) {
+        this.root = root;
+    }
+
+    public static void main(String[] args) {
+        Path root = null;
+        try {
+            root = Files.createTempDirectory("chunk-activity-recovery");
+            var check = new LogRecoveryCheck(root);
+            check.run("replay fails, another region is saved", check::replayFailsThenSave);
+            check.run("replay fails, region loaded later", check::replayFailsThenLoad);
+            check.run("regions ahead of the clock", check::regionsAheadOfClock);
+
+            cleanUp(root);
+            if (!check.failures.isEmpty()) {
+                System.err.println("Failed:");
+                check.failures.forEach(failure -> System.err.println("  " + failure));
+            }
+            System.exit(check.failures.isEmpty() ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Error: " + e);
+            if (root != null)
+                cleanUp(root);
+            System.exit(2);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Case {
+        void run(Path directory) throws Exception;
+    }
+
+    private void run(String name, Case check) throws Exception {
+        var directory = root.resolve(name.replace(' ', '-').replace(",", ""));
+        Files.createDirectories(directory);
+
+        current = name;
+        int before = failures.size();
+        check.run(directory);
+        System.out.println((failures.size() == before ? "PASS " : "FAIL ") + current);
+    }
+
+    // Replay can't read one region, so its records stay in the last run's log. A save of other activity must not
+    // delete that log, and the records must be in the region after the next start.
+    private void replayFailsThenSave(Path directory) throws Exception {
+        var map = open(directory);
+        addTime(map, BLOCKED_CHUNK, 100);
+        addTime(map, OTHER_CHUNK, 10);
+        crash(map);
+
+        var blocked = block(directory);
+        map = open(directory);
+        addTime(map, OTHER_CHUNK, 20);
+        save(map);
+        expect(ActivityFiles.countLogSegments(directory) > 0, "log of the failed replay was deleted by a save");
+        map.close();
+        unblock(blocked);
+
+        map = open(directory);
+        expectTime(map, BLOCKED_CHUNK, 100);
+        expectTime(map, OTHER_CHUNK, 30);
+        save(map);
+        expect(ActivityFiles.countLogSegments(directory) == 0, "log was kept after everything in it was saved");
+        map.close();
+    }
+
+    // The region becomes readable again while the server runs. Its records are added when it's loaded, counted once,
+    // and the last run's log can go after the next save.
+    private void replayFailsThenLoad(Path directory) throws Exception {
+        var map = open(directory);
+        addTime(map, BLOCKED_CHUNK, 100);
+        save(map);
+        map.close();
+
+        map = open(directory);
+        addTime(map, BLOCKED_CHUNK, 50);
+        crash(map);
+
+        var file = new CompressedRegionStorage(directory).file(ChunkActivityRegion.regionKey(BLOCKED_CHUNK));
+        var hidden = file.resolveSibling(file.getFileName() + ".hidden");
+        Files.move(file, hidden);
+        var blocked = block(directory);
+        map = open(directory);
+        unblock(blocked);
+        Files.move(hidden, file);
+
+        expectTime(map, BLOCKED_CHUNK, 150);
+        save(map);
+        expect(ActivityFiles.countLogSegments(directory) == 0, "log was kept after everything in it was saved");
+        map.close();
+
+        map = open(directory);
+        expectTime(map, BLOCKED_CHUNK, 150);
+        map.close();
+    }
+
+    // Regions saved with sequences far ahead of anything a clock would give, and no sequence file, e.g. after the
+    // clock was set back. The next run's records must still count as newer than what the regions have.
+    private void regionsAheadOfClock(Path directory) throws Exception {
+        long ahead = (System.currentTimeMillis() + 10L * 365 * 24 * 3600 * 1000) << 12;
+        var sequenceFile = directory.resolve("wal").resolve("sequence");
+        Files.createDirectories(sequenceFile.getParent());
+        Files.write(sequenceFile, ByteBuffer.allocate(8).putLong(ahead).array());
+
+        var map = open(directory);
+        addTime(map, BLOCKED_CHUNK, 100);
+        save(map);
+        map.close();
+        Files.delete(sequenceFile);
+
+        map = open(directory);
+        addTime(map, BLOCKED_CHUNK, 50);
+        crash(map);
+
+        map = open(directory);
+        expectTime(map, BLOCKED_CHUNK, 150);
+        map.close();
+    }
+
+    private static ChunkActivityMap open(Path directory) {
+        var map = ChunkActivityMap.create("recovery", directory);
+        ChunkActivityIO.flush();
+        return map;
+    }
+
+    private static void addTime(ChunkActivityMap map, long chunkPos, long seconds) {
+        map.addActivity(new long[] { chunkPos }, new int[] { 0, 1 }, new int[] { PlayerIndex.indexOf(PLAYER) }, new long[] { seconds }, new int[] { 1 }, TIMESTAMP, pos -> {});
+    }
+
+    // Regions still loading are left for the next save, which would also keep the log, so loads are waited for first
+    private static void save(ChunkActivityMap map) {
+        ChunkActivityIO.flush();
+        map.save();
+        ChunkActivityIO.flush();
+    }
+
+    // Everything logged is on disk, but no region is saved
+    private static void crash(ChunkActivityMap map) {
+        ChunkActivityIO.flush();
+        map.close();
+    }
+
+    // Puts a directory where the region's file goes, so reading or writing it fails without it counting as corrupt
+    private static Path block(Path directory) throws IOException {
+        var file = new CompressedRegionStorage(directory).file(ChunkActivityRegion.regionKey(BLOCKED_CHUNK));
+        Files.deleteIfExists(file);
+        Files.createDirectories(file);
+        Files.writeString(file.resolve("blocked"), "");
+        return file;
+    }
+
+    private static void unblock(Path file) throws IOException {
+        Files.delete(file.resolve("blocked"));
+        Files.delete(file);
+    }
+
+    private void expectTime(ChunkActivityMap map, long chunkPos, long expected) {
+        // The first lookup pages the region in
+        map.getChunk(chunkPos);
+        ChunkActivityIO.flush();
+
+        var info = map.getChunk(chunkPos);
+        long actual = info != null ? info.getTotalTime() : 0;
+        expect(actual == expected, "chunk " + ChunkPos.getX(chunkPos) + ", " + ChunkPos.getZ(chunkPos) + " has " + actual + " seconds instead of " + expected);
+    }
+
+    private void expect(boolean condition, String failure) {
+        if (!condition)
+            failures.add(current + ": " + failure);
+    }
+
+    private static void cleanUp(Path directory) {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException ignored) {
+                }
+            });
+        } catch (IOException ignored) {
+        }
+    }
+}
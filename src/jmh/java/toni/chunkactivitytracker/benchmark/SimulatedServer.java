@@ -0,0 +1,287 @@
+package toni.chunkactivitytracker.benchmark;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerIndex;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Stand-in for a server's player list and activity accounting, running on virtual time. Every sample, each online
+ * player moves and the time since the last sample is credited to the chunks they passed through, the same way
+ * ActivityAccounting settles players with chunk transition tracking on: one batch per sample, applied to the map in
+ * one go.
+ * <p>
+ * Players join over the first half of the run and some stop playing after a while. While online they mostly stay
+ * around a base shared with a few others, building, and now and then head out exploring in a straight-ish line or
+ * travel to a hub shared by everyone. Exploring is what keeps adding new chunks as the world ages.
+ */
+public class SimulatedServer {
+    private static final int PLAYERS_PER_BASE = 4;
+    private static final int BASE_RADIUS = 3;
+    private static final int HUBS = 3;
+    private static final long DAY = 86_400L;
+
+    private ChunkActivityMap map;
+    private final SplittableRandom random;
+    private final Player[] players;
+    private final long[] hubs = new long[HUBS];
+    private final int sampleSeconds;
+    private long time;
+    private long day;
+    private long nextDay;
+
+    // Batch being built for the current sample, reused like the server's tick builder
+    private final LongArrayList chunks = new LongArrayList();
+    private final IntArrayList offsets = new IntArrayList();
+    private final IntArrayList playerIds = new IntArrayList();
+    private final LongArrayList seconds = new LongArrayList();
+    private final IntArrayList visits = new IntArrayList();
+    private final LongArrayList blockChunks = new LongArrayList();
+    private final IntArrayList blockPlayers = new IntArrayList();
+    private final IntArrayList placed = new IntArrayList();
+    private final IntArrayList broken = new IntArrayList();
+
+    private long creditedSeconds;
+    private long newChunks;
+
+    private enum State { AT_BASE, EXPLORING, TRAVELLING }
+
+    private static final class Player {
+        int id;
+        long joinDay, quitDay;
+        // Chance of playing on a given day, and typical session length in seconds
+        double dailyChance;
+        int sessionLength;
+        long sessionStart = -1, sessionEnd = -1;
+
+        long base;
+        int x, z;
+        State state = State.AT_BASE;
+        int dx, dz, speed;
+        long target;
+    }
+
+    public SimulatedServer(ChunkActivityMap map, int playerCount, int days, int sampleSeconds, long startTime, long seed) {
+        this.map = map;
+        this.random = new SplittableRandom(seed);
+        this.sampleSeconds = sampleSeconds;
+        this.time = startTime;
+        this.nextDay = startTime;
+        this.players = new Player[playerCount];
+
+        int spread = 64 + (int) Math.sqrt(playerCount) * 48;
+        for (int i = 0; i < HUBS; i++)
+            hubs[i] = i == 0 ? 0L : ChunkPos.asLong(random.nextInt(-spread / 2, spread / 2), random.nextInt(-spread / 2, spread / 2));
+
+        long base = 0;
+        for (int i = 0; i < playerCount; i++) {
+            if (i % PLAYERS_PER_BASE == 0)
+                base = ChunkPos.asLong(random.nextInt(-spread, spread), random.nextInt(-spread, spread));
+
+            var player = new Player();
+            player.id = PlayerIndex.indexOf(new UUID(seed, i));
+            player.joinDay = days <= 1 ? 0 : random.nextInt(Math.max(1, days / 2));
+            player.quitDay = random.nextInt(4) == 0 ? player.joinDay + 7 + random.nextInt(Math.max(1, days)) : Long.MAX_VALUE;
+            player.dailyChance = switch (random.nextInt(3)) {
+                case 0 -> 0.9;
+                case 1 -> 0.4;
+                default -> 0.1;
+            };
+            player.sessionLength = 1_800 + random.nextInt(4 * 3_600);
+            player.base = base;
+            player.x = ChunkPos.getX(base);
+            player.z = ChunkPos.getZ(base);
+            players[i] = player;
+        }
+    }
+
+    // Used after the map was closed and opened again
+    public void setMap(ChunkActivityMap map) {
+        this.map = map;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getCreditedSeconds() {
+        return creditedSeconds;
+    }
+
+    public long getNewChunks() {
+        return newChunks;
+    }
+
+    public int getOnlineCount() {
+        int online = 0;
+        for (var player : players) {
+            if (isOnline(player))
+                online++;
+        }
+        return online;
+    }
+
+    // Advances virtual time by one sample, crediting every online player
+    public void sample() {
+        if (time >= nextDay) {
+            planDay(day++);
+            nextDay += DAY;
+        }
+
+        time += sampleSeconds;
+
+        chunks.clear();
+        offsets.clear();
+        playerIds.clear();
+        seconds.clear();
+        visits.clear();
+        blockChunks.clear();
+        blockPlayers.clear();
+        placed.clear();
+        broken.clear();
+
+        for (var player : players) {
+            if (isOnline(player))
+                move(player);
+        }
+
+        if (chunks.isEmpty())
+            return;
+
+        offsets.add(playerIds.size());
+        map.addActivity(chunks.toLongArray(), offsets.toIntArray(), playerIds.toIntArray(), seconds.toLongArray(), visits.toIntArray(), time, pos -> newChunks++);
+        if (!blockChunks.isEmpty())
+            map.addBlockChanges(blockChunks.toLongArray(), blockPlayers.toIntArray(), placed.toIntArray(), broken.toIntArray(), blockChunks.size(), pos -> newChunks++);
+    }
+
+    private boolean isOnline(Player player) {
+        return time >= player.sessionStart && time < player.sessionEnd;
+    }
+
+    // Picks who plays today and when, mostly in the evening
+    private void planDay(long day) {
+        long dayStart = nextDay;
+        for (var player : players) {
+            player.sessionStart = player.sessionEnd = -1;
+            if (day < player.joinDay || day >= player.quitDay || random.nextDouble() >= player.dailyChance)
+                continue;
+
+            int length = player.sessionLength / 2 + random.nextInt(player.sessionLength);
+            int start = random.nextInt(4) == 0 ? random.nextInt((int) DAY - length) : 17 * 3_600 + random.nextInt(4 * 3_600);
+            player.sessionStart = dayStart + start;
+            player.sessionEnd = Math.min(dayStart + DAY, player.sessionStart + length);
+
+            // Everyone logs in where they logged out, which after a crash or a long trip is usually home
+            player.state = State.AT_BASE;
+            player.x = ChunkPos.getX(player.base);
+            player.z = ChunkPos.getZ(player.base);
+        }
+    }
+
+    private void move(Player player) {
+        switch (player.state) {
+            case AT_BASE -> {
+                if (random.nextInt(5) == 0) {
+                    player.x = clamp(player.x + random.nextInt(3) - 1, ChunkPos.getX(player.base));
+                    player.z = clamp(player.z + random.nextInt(3) - 1, ChunkPos.getZ(player.base));
+                }
+
+                credit(player, ChunkPos.asLong(player.x, player.z), sampleSeconds, false);
+                if (random.nextInt(3) == 0)
+                    build(player, random.nextInt(40), random.nextInt(25));
+
+                int roll = random.nextInt(1_000);
+                if (roll < 15) {
+                    player.state = State.EXPLORING;
+                    player.speed = 2 + random.nextInt(8);
+                    turn(player);
+                } else if (roll < 25) {
+                    player.state = State.TRAVELLING;
+                    player.target = hubs[random.nextInt(HUBS)];
+                    player.speed = 4 + random.nextInt(8);
+                }
+            }
+            case EXPLORING -> {
+                if (random.nextInt(15) == 0)
+                    turn(player);
+
+                walk(player, player.speed);
+                if (random.nextInt(6) == 0)
+                    build(player, random.nextInt(5), random.nextInt(30));
+
+                if (random.nextInt(40) == 0) {
+                    player.state = State.TRAVELLING;
+                    player.target = player.base;
+                }
+            }
+            case TRAVELLING -> {
+                walk(player, player.speed);
+                if (player.x != ChunkPos.getX(player.target) || player.z != ChunkPos.getZ(player.target))
+                    return;
+
+                if (player.target == player.base) {
+                    player.state = State.AT_BASE;
+                } else if (random.nextInt(4) == 0) {
+                    player.state = State.EXPLORING;
+                    turn(player);
+                } else {
+                    player.target = player.base;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves steps chunks along the heading, or towards the target while travelling, splitting the sample's time over
+     * every chunk passed like transition tracking would.
+     */
+    private void walk(Player player, int steps) {
+        long share = Math.max(1, sampleSeconds / steps);
+        for (int step = 0; step < steps; step++) {
+            if (player.state == State.TRAVELLING) {
+                player.dx = Integer.signum(ChunkPos.getX(player.target) - player.x);
+                player.dz = Integer.signum(ChunkPos.getZ(player.target) - player.z);
+                if (player.dx == 0 && player.dz == 0)
+                    return;
+            }
+
+            player.x += player.dx;
+            player.z += player.dz;
+            credit(player, ChunkPos.asLong(player.x, player.z), share, true);
+        }
+    }
+
+    private void turn(Player player) {
+        do {
+            player.dx = random.nextInt(3) - 1;
+            player.dz = random.nextInt(3) - 1;
+        } while (player.dx == 0 && player.dz == 0);
+    }
+
+    private static int clamp(int value, int center) {
+        return Math.max(center - BASE_RADIUS, Math.min(center + BASE_RADIUS, value));
+    }
+
+    private void credit(Player player, long pos, long time, boolean visit) {
+        chunks.add(pos);
+        offsets.add(playerIds.size());
+        playerIds.add(player.id);
+        seconds.add(time);
+        visits.add(visit ? 1 : 0);
+        creditedSeconds += time;
+    }
+
+    private void build(Player player, int blocksPlaced, int blocksBroken) {
+        if (blocksPlaced == 0 && blocksBroken == 0)
+            return;
+
+        blockChunks.add(ChunkPos.asLong(player.x, player.z));
+        blockPlayers.add(player.id);
+        placed.add(blocksPlaced);
+        broken.add(blocksBroken);
+    }
+}
@@ -0,0 +1,371 @@
+package toni.chunkactivitytracker.benchmark;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import toni.chunkactivitytracker.data.ActivityHistory;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Headless soak test of how a dimension's map behaves as a world ages. SimulatedServer plays months of virtual time
+ * against a real, file-backed ChunkActivityMap, which is saved on the autosave interval and closed and opened again at
+ * every checkpoint. Reports heap per chunk, save, open and region load latencies, file size growth and GC activity,
+ * and exits with 1 if any budget is exceeded, so it can run as a CI job. Run with `gradlew soakTest`, passing options
+ * with --args.
+ * <p>
+ * Needs nothing but a JVM and a writable temporary directory. The same seed always plays out the same way, though
+ * timings of course vary between machines. The defaults grow a world to about a million chunks and take around ten
+ * minutes, most of it spent waiting for saves to be written, as every save is flushed to measure how long that takes.
+ */
+public class SoakSimulation {
+    private static final String USAGE = """
+        Options, all optional:
+          --days n                  Virtual days to simulate, 90 by default
+          --players n               Players over the whole run, 100 by default
+          --seed n                  Seed of the simulation, 1 by default
+          --history true|false      Keep activity history, false by default
+          --sample-seconds n        Virtual seconds per accounting sample, 20 by default
+          --save-minutes n          Virtual minutes between saves, 5 by default
+          --checkpoint-days n       Virtual days between measurements and reopening the map, 7 by default
+          --dir path                Directory to write the region files to, a temporary one by default
+          --keep true|false         Keep the directory afterwards, false by default
+          --report path             Also write the checkpoints to a CSV file
+        Budgets, 0 turns one off:
+          --max-heap-per-chunk n    Bytes of heap per resident chunk, 1024 by default
+          --max-file-per-chunk n    Bytes on disk per stored chunk, 256 by default
+          --max-save-p99 ms         Server thread time of a save, 50 by default
+          --max-write-p99 ms        Time until a save is on disk, 1000 by default
+          --max-load-p99 ms         Reading one region that isn't resident, 50 by default
+          --max-open ms             Opening the map until it's ready, 10000 by default
+          --max-gc-share percent    Share of the run spent in GC, 10 by default
+        """;
+
+    // 2024-01-01, so activity history buckets land on real dates
+    private static final long START_TIME = 1_704_067_200L;
+    private static final int REGION_LOAD_SAMPLES = 200;
+    // Heap per chunk is noise until there are at least this many resident chunks
+    private static final int MIN_MEASURED_CHUNKS = 10_000;
+
+    private final Map<String, String> options;
+    private final Path directory;
+    private final boolean history;
+
+    private final LongArrayList saveTimes = new LongArrayList();
+    private final LongArrayList writeTimes = new LongArrayList();
+    private final LongArrayList loadTimes = new LongArrayList();
+    private final LongArrayList openTimes = new LongArrayList();
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+
+    private record Checkpoint(int day, long storedChunks, int residentChunks, long heapBytes, long estimatedBytes, long fileBytes,
+                              long openMillis, long gcCount, long gcMillis, long allocatedBytes, long wallMillis) {
+        long heapPerChunk() {
+            return residentChunks > 0 ? heapBytes / residentChunks : 0;
+        }
+
+        long filePerChunk() {
+            return storedChunks > 0 ? fileBytes / storedChunks : 0;
+        }
+    }
+
+    private SoakSimulation(Map<String, String> options, Path directory) {
+        this.options = options;
+        this.directory = directory;
+        this.history = Boolean.parseBoolean(options.getOrDefault("history", "false"));
+    }
+
+    public static void main(String[] args) {
+        var options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("Unexpected argument '" + args[i] + "'");
+                System.out.print(USAGE);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        Path directory = null;
+        boolean keep = Boolean.parseBoolean(options.getOrDefault("keep", "false"));
+        try {
+            directory = options.containsKey("dir") ? Path.of(options.get("dir")) : Files.createTempDirectory("chunk-activity-soak");
+            Files.createDirectories(directory);
+
+            var simulation = new SoakSimulation(options, directory);
+            simulation.run();
+            var failures = simulation.checkBudgets();
+
+            if (!failures.isEmpty()) {
+                System.err.println("Budgets exceeded:");
+                failures.forEach(failure -> System.err.println("  " + failure));
+            }
+
+            cleanUp(directory, keep);
+            System.exit(failures.isEmpty() ? 0 : 1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.out.print(USAGE);
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error: " + e);
+            if (directory != null)
+                cleanUp(directory, keep);
+            System.exit(2);
+        }
+    }
+
+    private void run() throws IOException {
+        int days = option("days", 90);
+        int sampleSeconds = option("sample-seconds", 20);
+        int saveSeconds = option("save-minutes", 5) * 60;
+        int checkpointDays = option("checkpoint-days", 7);
+        if (days <= 0 || sampleSeconds <= 0 || saveSeconds <= 0 || checkpointDays <= 0)
+            throw new IllegalArgumentException("Days, intervals and checkpoints have to be positive");
+
+        System.out.println("Simulating " + days + " days with " + option("players", 100) + " players" + (history ? " with history" : "") + " in '" + directory + "'");
+        var map = open();
+        long baseline = usedHeap();
+        var server = new SimulatedServer(map, option("players", 100), days, sampleSeconds, START_TIME, option("seed", 1));
+
+        long lastSave = START_TIME;
+        long nextCheckpoint = START_TIME + checkpointDays * 86_400L;
+        long end = START_TIME + days * 86_400L;
+        var gc = new GcCounter();
+        long allocated = allocatedBytes();
+        long wallStart = System.currentTimeMillis();
+
+        while (server.getTime() < end) {
+            server.sample();
+
+            if (server.getTime() - lastSave >= saveSeconds) {
+                lastSave = server.getTime();
+                save(map);
+            }
+
+            if (server.getTime() >= nextCheckpoint || server.getTime() >= end) {
+                nextCheckpoint += checkpointDays * 86_400L;
+                save(map);
+                int day = (int) ((server.getTime() - START_TIME) / 86_400L);
+
+                int resident = map.size();
+                long estimated = map.estimateMemory();
+                long heap = Math.max(0, usedHeap() - baseline);
+                long stored = countStoredChunks(map);
+                long files = directorySize();
+
+                map.close();
+                map = open();
+                server.setMap(map);
+                long openMillis = openTimes.getLong(openTimes.size() - 1) / 1_000_000;
+                measureRegionLoads(map);
+
+                long now = System.currentTimeMillis();
+                long allocatedNow = allocatedBytes();
+                var checkpoint = new Checkpoint(day, stored, resident, heap, estimated, files, openMillis, gc.countDelta(), gc.millisDelta(),
+                    allocated >= 0 ? allocatedNow - allocated : -1, now - wallStart);
+                allocated = allocatedNow;
+                checkpoints.add(checkpoint);
+                print(checkpoint);
+            }
+        }
+
+        map.close();
+        printSummary(System.currentTimeMillis() - wallStart, server);
+        writeReport();
+    }
+
+    private ChunkActivityMap open() {
+        long start = System.nanoTime();
+        var map = ChunkActivityMap.create("soak", directory);
+        ChunkActivityIO.flush();
+        openTimes.add(System.nanoTime() - start);
+
+        // Opening sets it from the config, which doesn't exist here
+        ActivityHistory.setEnabled(history);
+        return map;
+    }
+
+    private void save(ChunkActivityMap map) {
+        long start = System.nanoTime();
+        map.save();
+        long saved = System.nanoTime();
+        ChunkActivityIO.flush();
+        long written = System.nanoTime();
+
+        saveTimes.add(saved - start);
+        writeTimes.add(written - start);
+    }
+
+    // Reads a sample of the stored regions, none of which are resident right after opening
+    private void measureRegionLoads(ChunkActivityMap map) {
+        var positions = map.getRegionPositions();
+        var random = new SplittableRandom(positions.length);
+        for (int i = 0; i < Math.min(REGION_LOAD_SAMPLES, positions.length); i++) {
+            long start = System.nanoTime();
+            map.copyRegion(positions[random.nextInt(positions.length)]);
+            loadTimes.add(System.nanoTime() - start);
+        }
+    }
+
+    private static long countStoredChunks(ChunkActivityMap map) {
+        long chunks = 0;
+        for (long regionPos : map.getRegionPositions())
+            chunks += map.getRegionTotal(regionPos).chunkCount();
+        return chunks;
+    }
+
+    private long directorySize() throws IOException {
+        try (var files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        }
+    }
+
+    private List<String> checkBudgets() {
+        var failures = new ArrayList<String>();
+
+        long heapPerChunk = checkpoints.stream().filter(checkpoint -> checkpoint.residentChunks() >= MIN_MEASURED_CHUNKS).mapToLong(Checkpoint::heapPerChunk).max().orElse(0);
+        check(failures, "heap per chunk", heapPerChunk, option("max-heap-per-chunk", 1024), "bytes");
+
+        long filePerChunk = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1).filePerChunk();
+        check(failures, "file size per chunk", filePerChunk, option("max-file-per-chunk", 256), "bytes");
+
+        check(failures, "save p99", percentile(saveTimes, 0.99) / 1_000_000, option("max-save-p99", 50), "ms");
+        check(failures, "write p99", percentile(writeTimes, 0.99) / 1_000_000, option("max-write-p99", 1_000), "ms");
+        check(failures, "region load p99", percentile(loadTimes, 0.99) / 1_000_000, option("max-load-p99", 50), "ms");
+        check(failures, "open", percentile(openTimes, 1.0) / 1_000_000, option("max-open", 10_000), "ms");
+
+        if (!checkpoints.isEmpty()) {
+            var last = checkpoints.get(checkpoints.size() - 1);
+            long gcMillis = checkpoints.stream().mapToLong(Checkpoint::gcMillis).sum();
+            check(failures, "GC share", last.wallMillis() > 0 ? gcMillis * 100 / last.wallMillis() : 0, option("max-gc-share", 10), "%");
+        }
+
+        return failures;
+    }
+
+    private static void check(List<String> failures, String name, long value, long budget, String unit) {
+        if (budget > 0 && value > budget)
+            failures.add(name + " was " + value + " " + unit + ", budget " + budget + " " + unit);
+    }
+
+    private void print(Checkpoint checkpoint) {
+        System.out.printf(Locale.ROOT, "Day %d: %,d chunks stored, %,d resident, heap %,d bytes per chunk (estimate %,d), files %,d KB (%,d bytes per chunk), open %d ms, GC %d runs %d ms, allocated %,d MB%n",
+            checkpoint.day(), checkpoint.storedChunks(), checkpoint.residentChunks(), checkpoint.heapPerChunk(),
+            checkpoint.residentChunks() > 0 ? checkpoint.estimatedBytes() / checkpoint.residentChunks() : 0,
+            checkpoint.fileBytes() / 1024, checkpoint.filePerChunk(), checkpoint.openMillis(), checkpoint.gcCount(), checkpoint.gcMillis(),
+            checkpoint.allocatedBytes() / (1024 * 1024));
+    }
+
+    private void printSummary(long wallMillis, SimulatedServer server) {
+        System.out.println("Simulated " + server.getCreditedSeconds() / 3_600 + " player hours and " + server.getNewChunks() + " new chunks in " + wallMillis / 1000 + " seconds");
+        System.out.println("Save, server thread: " + latencies(saveTimes));
+        System.out.println("Save, until written: " + latencies(writeTimes));
+        System.out.println("Region load: " + latencies(loadTimes));
+        System.out.println("Open: " + latencies(openTimes));
+    }
+
+    private static String latencies(LongArrayList times) {
+        return String.format(Locale.ROOT, "p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms over %d",
+            percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6, percentile(times, 0.99) / 1e6, percentile(times, 1.0) / 1e6, times.size());
+    }
+
+    private static long percentile(LongArrayList times, double fraction) {
+        if (times.isEmpty())
+            return 0;
+
+        var sorted = times.toLongArray();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private void writeReport() throws IOException {
+        var report = options.get("report");
+        if (report == null)
+            return;
+
+        try (var out = new PrintWriter(Files.newBufferedWriter(Path.of(report)))) {
+            out.println("day,stored_chunks,resident_chunks,heap_bytes,estimated_bytes,file_bytes,open_ms,gc_count,gc_ms,allocated_bytes,wall_ms");
+            for (var c : checkpoints)
+                out.println(c.day() + "," + c.storedChunks() + "," + c.residentChunks() + "," + c.heapBytes() + "," + c.estimatedBytes() + "," + c.fileBytes() + "," + c.openMillis() + "," + c.gcCount() + "," + c.gcMillis() + "," + c.allocatedBytes() + "," + c.wallMillis());
+        }
+    }
+
+    private int option(String name, int defaultValue) {
+        var value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    // Heap in use after a full collection, which is as close to live data as the JVM will tell
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Bytes allocated by the simulation thread so far, or -1 if the JVM can't tell
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemorySupported())
+            return threads.getCurrentThreadAllocatedBytes();
+
+        return -1;
+    }
+
+    private static void cleanUp(Path directory, boolean keep) {
+        if (keep)
+            return;
+
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException ignored) {
+                }
+            });
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Collections and collection time since the last call, over every collector
+    private static final class GcCounter {
+        private long count, millis;
+
+        GcCounter() {
+            countDelta();
+            millisDelta();
+        }
+
+        long countDelta() {
+            long total = ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+            long delta = total - count;
+            count = total;
+            return delta;
+        }
+
+        long millisDelta() {
+            long total = ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+            long delta = total - millis;
+            millis = total;
+            return delta;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package toni.chunkactivitytracker.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import toni.chunkactivitytracker.data.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding and persistence costs. The whole-map benchmarks cover ChunkActivityMap.CODEC and the GZIP file it used to
+ * be saved as; the region benchmarks cover the region files written by autosaves and read when paging regions in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"10000", "1000000"})
+    public int chunks;
+
+    @Param({"true"})
+    public boolean heightmaps;
+
+    private SyntheticWorld world;
+    private ChunkActivityMap map;
+    private byte[] encoded;
+    private byte[] gzipped;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        world = SyntheticWorld.generate(chunks, 42L, heightmaps);
+        map = world.createMap("overworld");
+        encoded = encode(map);
+        gzipped = gzip(encoded);
+        directory = Files.createTempDirectory("chunkactivity-bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ChunkActivityIO.flush();
+        try (var files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeMap() {
+        return encode(map);
+    }
+
+    @Benchmark
+    public ChunkActivityMap decodeMap() {
+        ByteBuf buffer = Unpooled.wrappedBuffer(encoded);
+        try {
+            return ChunkActivityMap.CODEC.decode(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    public byte[] saveMapGzip() throws IOException {
+        return gzip(encode(map));
+    }
+
+    @Benchmark
+    public ChunkActivityMap loadMapGzip() throws IOException {
+        try (var gzipIn = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            ByteBuf buffer = Unpooled.wrappedBuffer(gzipIn.readAllBytes());
+            try {
+                return ChunkActivityMap.CODEC.decode(buffer);
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * An autosave after a little activity: a thousandth of the chunks changed since the last save, spread over the
+     * whole map. Includes waiting for the IO thread to finish writing.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public void saveDirtyRegions(SavedRegions saved, DirtyChunks dirty) {
+        saved.map.save();
+        ChunkActivityIO.flush();
+    }
+
+    // Pages the regions of the saved map back in from disk. Past the loaded region limit this includes evicting.
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public ChunkActivityMap loadAllRegions(SavedRegions saved) {
+        var loaded = ChunkActivityMap.create("overworld", saved.directory);
+        for (int i = 0; i < world.size(); i++)
+            loaded.getChunk(world.position(i));
+
+        ChunkActivityIO.flush();
+        return loaded;
+    }
+
+    // Region files for the whole world, written once per trial through a map backed by a temporary directory
+    @State(Scope.Benchmark)
+    public static class SavedRegions {
+        private Path directory;
+        private ChunkActivityMap map;
+
+        @Setup(Level.Trial)
+        public void save(StorageBenchmark benchmark) throws IOException {
+            directory = Files.createDirectories(benchmark.directory.resolve("regions"));
+            map = ChunkActivityMap.create("overworld", directory);
+            benchmark.world.fill(map);
+            map.save();
+            ChunkActivityIO.flush();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DirtyChunks {
+        private int offset;
+
+        @Setup(Level.Invocation)
+        public void touch(StorageBenchmark benchmark, SavedRegions saved) {
+            var world = benchmark.world;
+            int step = 1_000;
+            for (int i = offset++ % step; i < world.size(); i += step) {
+                var info = saved.map.putChunk(world.position(i), new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), null));
+                info.updatePlayerTime(world.playerId(0), 1L);
+            }
+
+            // Let any regions paged in by the touches settle before the measured save
+            ChunkActivityIO.flush();
+        }
+    }
+
+    private static byte[] encode(ChunkActivityMap map) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            ChunkActivityMap.CODEC.encode(buffer, map);
+            var ret = new byte[buffer.readableBytes()];
+            buffer.readBytes(ret);
+            return ret;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        var byteOut = new ByteArrayOutputStream(data.length / 4);
+        try (var gzipOut = new GZIPOutputStream(byteOut)) {
+            gzipOut.write(data);
+        }
+
+        return byteOut.toByteArray();
+    }
+}
@@ -0,0 +1,186 @@
+package toni.chunkactivitytracker.benchmark;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ChunkActivityInfo;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerIndex;
+
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Deterministic stand-in for a long running server's activity data. A small share of the chunks are bases: dense
+ * square areas with several regular visitors, hours of time and lots of placed blocks. The rest are exploration
+ * trails: random walks away from the bases where one player passed through for a few seconds.
+ */
+public class SyntheticWorld {
+    public static final int PLAYERS = 64;
+    private static final int BASE_RADIUS = 8;
+    private static final double BASE_SHARE = 0.05;
+    private static final int HEIGHTMAP_LONGS = 37;
+
+    private final UUID[] players = new UUID[PLAYERS];
+    private final int[] playerIds = new int[PLAYERS];
+    private final LongArrayList positions;
+    private final LongArrayList baseCenters = new LongArrayList();
+    private final SplittableRandom random;
+    private final boolean heightmaps;
+
+    private SyntheticWorld(int chunkCount, long seed, boolean heightmaps) {
+        this.random = new SplittableRandom(seed);
+        this.positions = new LongArrayList(chunkCount);
+        this.heightmaps = heightmaps;
+
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new UUID(random.nextLong(), random.nextLong());
+            playerIds[i] = PlayerIndex.indexOf(players[i]);
+        }
+    }
+
+    public static SyntheticWorld generate(int chunkCount, long seed, boolean heightmaps) {
+        var world = new SyntheticWorld(chunkCount, seed, heightmaps);
+        world.layout(chunkCount);
+        return world;
+    }
+
+    public ChunkActivityMap createMap(String dimension) {
+        var map = new ChunkActivityMap(null, dimension);
+        fill(map);
+        return map;
+    }
+
+    // Writes the generated chunks into the given map. Running this twice with the same seed produces the same data.
+    public void fill(ChunkActivityMap map) {
+        var random = new SplittableRandom(positions.size());
+        var bases = new LongOpenHashSet(baseCenters);
+
+        for (int i = 0; i < positions.size(); i++) {
+            long pos = positions.getLong(i);
+            var info = map.putChunk(pos, new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), heightmaps ? heightmap(random, pos) : null));
+
+            if (i < baseCount(positions.size())) {
+                // Each base belongs to a group of four players who visit it for anything from an hour to a couple hundred hours
+                int group = (int) Math.floorMod(HashCommon.mix(nearestBase(bases, pos)), (long) PLAYERS / 4) * 4;
+                int visitors = 1 + random.nextInt(4);
+                for (int v = 0; v < visitors; v++) {
+                    int player = playerIds[group + v];
+                    info.updatePlayerTime(player, 3_600 + random.nextInt(720_000));
+                    if (random.nextInt(3) == 0)
+                        info.addBlocksPlaced(player, 1 + random.nextInt(2_000));
+                }
+            } else {
+                info.updatePlayerTime(playerIds[random.nextInt(PLAYERS)], 1 + random.nextInt(120));
+            }
+        }
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public long position(int index) {
+        return positions.getLong(index);
+    }
+
+    public UUID player(int index) {
+        return players[index];
+    }
+
+    public int playerId(int index) {
+        return playerIds[index];
+    }
+
+    /**
+     * Chunk positions to look up, shuffled. hitRatio of them are chunks that exist, the rest are nearby chunks that
+     * were never visited.
+     */
+    public long[] lookups(int count, double hitRatio, long seed) {
+        var random = new SplittableRandom(seed);
+        var ret = new long[count];
+        for (int i = 0; i < count; i++) {
+            long pos = positions.getLong(random.nextInt(positions.size()));
+            if (random.nextDouble() >= hitRatio)
+                pos = ChunkPos.asLong(ChunkPos.getX(pos) + 10_000, ChunkPos.getZ(pos) - 10_000);
+
+            ret[i] = pos;
+        }
+
+        return ret;
+    }
+
+    private void layout(int chunkCount) {
+        var seen = new LongOpenHashSet(chunkCount);
+        int baseChunks = baseCount(chunkCount);
+        int baseArea = (2 * BASE_RADIUS + 1) * (2 * BASE_RADIUS + 1);
+        int spread = (int) Math.max(64, Math.sqrt(chunkCount) * 2);
+
+        // Bases first, so that the first baseCount() positions are the base chunks
+        while (positions.size() < baseChunks) {
+            int cx = random.nextInt(-spread, spread);
+            int cz = random.nextInt(-spread, spread);
+            baseCenters.add(ChunkPos.asLong(cx, cz));
+
+            for (int i = 0; i < baseArea && positions.size() < baseChunks; i++) {
+                long pos = ChunkPos.asLong(cx + i % (2 * BASE_RADIUS + 1) - BASE_RADIUS, cz + i / (2 * BASE_RADIUS + 1) - BASE_RADIUS);
+                if (seen.add(pos))
+                    positions.add(pos);
+            }
+        }
+
+        // Trails start at a base or spawn and mostly keep their heading, like a player flying off in one direction
+        while (positions.size() < chunkCount) {
+            long start = baseCenters.isEmpty() || random.nextInt(4) == 0 ? 0L : baseCenters.getLong(random.nextInt(baseCenters.size()));
+            int x = ChunkPos.getX(start);
+            int z = ChunkPos.getZ(start);
+            int dx = random.nextInt(3) - 1;
+            int dz = dx == 0 ? (random.nextBoolean() ? 1 : -1) : random.nextInt(3) - 1;
+
+            int length = 50 + random.nextInt(2_000);
+            for (int step = 0; step < length && positions.size() < chunkCount; step++) {
+                if (random.nextInt(20) == 0) {
+                    dx = random.nextInt(3) - 1;
+                    dz = dx == 0 ? (random.nextBoolean() ? 1 : -1) : random.nextInt(3) - 1;
+                }
+
+                x += dx;
+                z += dz;
+                long pos = ChunkPos.asLong(x, z);
+                if (seen.add(pos))
+                    positions.add(pos);
+            }
+        }
+    }
+
+    private static int baseCount(int chunkCount) {
+        return (int) (chunkCount * BASE_SHARE);
+    }
+
+    private static long nearestBase(LongOpenHashSet bases, long pos) {
+        for (int dz = -BASE_RADIUS; dz <= BASE_RADIUS; dz++) {
+            for (int dx = -BASE_RADIUS; dx <= BASE_RADIUS; dx++) {
+                long center = ChunkPos.asLong(ChunkPos.getX(pos) + dx, ChunkPos.getZ(pos) + dz);
+                if (bases.contains(center))
+                    return center;
+            }
+        }
+
+        return pos;
+    }
+
+    // Packed like vanilla: 9 bits per column, 7 columns per long. Terrain is a gentle slope with a little noise, so
+    // neighbouring chunks look alike the same way real ones do.
+    private static long[] heightmap(SplittableRandom random, long pos) {
+        var data = new long[HEIGHTMAP_LONGS];
+        int base = 64 + Math.floorMod(ChunkPos.getX(pos) + ChunkPos.getZ(pos), 32);
+        for (int column = 0; column < 256; column++) {
+            long height = base + (column >> 4) / 4 + (random.nextInt(8) == 0 ? random.nextInt(4) : 0);
+            data[column / 7] |= height << (column % 7 * 9);
+        }
+
+        return data;
+    }
+}
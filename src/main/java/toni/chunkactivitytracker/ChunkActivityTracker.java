@@ -1,18 +1,30 @@
 package toni.chunkactivitytracker;
 
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.entity.event.v1.ServerPlayerEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
-import net.fabricmc.fabric.api.event.player.UseBlockCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.world.InteractionResult;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.storage.LevelResource;
+import toni.chunkactivitytracker.client.ActivityOverlay;
+import toni.chunkactivitytracker.command.ChunkActivityCommand;
+import toni.chunkactivitytracker.data.ActivitySnapshot;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
 import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerActivity;
+import toni.chunkactivitytracker.data.RegionActivity;
 import toni.chunkactivitytracker.foundation.config.AllConfigs;
+import toni.chunkactivitytracker.heatmap.HeatmapRenderer;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+import toni.chunkactivitytracker.network.ActivitySync;
+import toni.chunkactivitytracker.network.ActivitySyncPacket;
+import toni.chunkactivitytracker.tracking.ActivityAccounting;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -52,7 +64,14 @@ import net.neoforged.neoforge.client.gui.IConfigScreenFactory;
 import net.neoforged.neoforge.client.gui.ConfigurationScreen;
 #endif
 
+#if mc >= 211
+import net.fabricmc.fabric.api.networking.v1.PayloadTypeRegistry;
+#endif
+
 import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 
 #if FORGELIKE
@@ -65,9 +84,6 @@ public class ChunkActivityTracker #if FABRIC implements ModInitializer, ClientMo
     public static final Logger LOGGER = LogManager.getLogger(MODNAME);
     private static MinecraftServer currentServer;
 
-    private static long lastTime = System.nanoTime();
-    private static final float NANOSECONDS_PER_TICK = 1000000000.0f / 20; // 50 million ns per tick for 20 ticks per second
-
     public ChunkActivityTracker(#if NEO IEventBus modEventBus, ModContainer modContainer #endif) {
         #if FORGE
         var context = FMLJavaModLoadingContext.get();
@@ -109,11 +125,92 @@ public class ChunkActivityTracker #if FABRIC implements ModInitializer, ClientMo
         if (level == null)
             return 0L;
 
-        var chunkInfo = ChunkActivityMap.getChunkInfo(level.dimension(), chunkPos);
+        return getTotalTimeInChunk(level.dimension(), chunkPos);
+    }
+
+    public static long getTotalTimeInChunk(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+        var chunkInfo = ChunkActivityMap.getChunkInfo(dimension, chunkPos);
         if (chunkInfo == null)
             return 0L;
 
-        return chunkInfo.getPlayerTimeMap().values().stream().mapToLong(Long::longValue).sum();
+        return chunkInfo.getTotalTime();
+    }
+
+    /**
+     * Seconds spent in the chunk in the given number of days up to and including today, at most
+     * ActivityHistory.MAX_DAYS. Needs Activity History; time from before it was turned on isn't counted.
+     */
+    public static long getRecentTimeInChunk(ResourceKey<Level> dimension, ChunkPos chunkPos, int days) {
+        var chunkInfo = ChunkActivityMap.getChunkInfo(dimension, chunkPos);
+        if (chunkInfo == null)
+            return 0L;
+
+        return chunkInfo.getRecentTime(days);
+    }
+
+    // Recent time of every chunk in the rectangle between the two corners, inclusive. Visits every chunk in it.
+    public static long getRecentTimeInArea(ResourceKey<Level> dimension, ChunkPos from, ChunkPos to, int days) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        if (map == null)
+            return 0L;
+
+        return map.getRecentTimeInArea(Math.min(from.x, to.x), Math.min(from.z, to.z), Math.max(from.x, to.x), Math.max(from.z, to.z), days);
+    }
+
+    // Total time of every chunk in the rectangle between the two corners, inclusive
+    public static long getTotalTimeInArea(ResourceKey<Level> dimension, ChunkPos from, ChunkPos to) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        if (map == null)
+            return 0L;
+
+        return map.getTotalTimeInArea(Math.min(from.x, to.x), Math.min(from.z, to.z), Math.max(from.x, to.x), Math.max(from.z, to.z));
+    }
+
+    // Total time of every chunk whose distance to the center, in chunks, is at most radius
+    public static long getTotalTimeInRadius(ResourceKey<Level> dimension, ChunkPos center, int radius) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getTotalTimeInRadius(center.x, center.z, radius) : 0L;
+    }
+
+    /**
+     * Consistent read-only view of the dimension's activity, safe to keep and read from any thread, or null if the
+     * dimension hasn't been loaded. At most a second old; see ChunkActivityMap.getSnapshot(long).
+     */
+    public static ActivitySnapshot getSnapshot(ResourceKey<Level> dimension) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getSnapshot() : null;
+    }
+
+    public static List<RegionActivity> getMostActiveRegions(ResourceKey<Level> dimension, int count) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getMostActiveRegions(count) : List.of();
+    }
+
+    public static List<RegionActivity> getLeastActiveRegions(ResourceKey<Level> dimension, int count) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getLeastActiveRegions(count) : List.of();
+    }
+
+    // Every chunk of the dimension the player has data in, without reading any region
+    public static long[] getPlayerChunks(ResourceKey<Level> dimension, UUID player) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getPlayerChunks(player) : new long[0];
+    }
+
+    // The player's time and blocks in the dimension. Reads the regions they've been in that aren't resident from disk.
+    public static PlayerActivity getPlayerActivity(ResourceKey<Level> dimension, UUID player) {
+        var map = ChunkActivityMap.getChunkMap(dimension);
+        return map != null ? map.getPlayerActivity(player) : new PlayerActivity(player, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Erases everything recorded for the player in every loaded dimension, see ChunkActivityMap.erasePlayer. Completes
+     * with the number of chunks the player had data in.
+     */
+    public static CompletableFuture<Integer> erasePlayer(UUID player) {
+        var erasures = ChunkActivityMap.getChunkMaps().stream().map(map -> map.erasePlayer(player)).toList();
+        return CompletableFuture.allOf(erasures.toArray(new CompletableFuture[0]))
+            .thenApply(done -> erasures.stream().mapToInt(CompletableFuture::join).sum());
     }
 
 
@@ -139,51 +236,42 @@ public class ChunkActivityTracker #if FABRIC implements ModInitializer, ClientMo
             });
         #endif
 
+        #if mc >= 211
+        PayloadTypeRegistry.playS2C().register(ActivitySyncPacket.TYPE, ActivitySyncPacket.CODEC);
+        #endif
+
+        // Set up each dimension's map as soon as the level exists, so any old data file is converted in the background
+        // instead of on the first player tick that touches it
+        ServerWorldEvents.LOAD.register((server, level) -> ChunkActivityMap.getOrCreateChunkMap(level.dimension()));
+
         ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            // A heatmap pass reads regions, so it has to stop before the maps are closed
+            HeatmapRenderer.stop();
+
+            // Let in-flight region loads finish merging, save, then wait for the IO thread so nothing is lost when the
+            // server process exits
+            ActivityAccounting.stop(server);
+            ChunkActivityIO.flush();
+            ChunkActivityMap.saveAll();
+            ChunkActivityIO.flush();
+
             currentServer = null;
+            ActivitySync.clear();
             ChunkActivityMap.clear();
+            TrackerMetrics.stop();
         });
 
-        UseBlockCallback.EVENT.register((player, block, hand, hit) -> {
-            if (player.level().isClientSide)
-                return InteractionResult.PASS;
+        ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> ActivityAccounting.join(handler.getPlayer(), server));
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> ActivityAccounting.leave(handler.getPlayer(), server));
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> ActivitySync.leave(handler.getPlayer()));
+        ServerPlayerEvents.AFTER_RESPAWN.register((oldPlayer, newPlayer, alive) -> ActivityAccounting.respawn(newPlayer));
 
-            var chunkInfo = ChunkActivityMap.getChunkInfo(player.level().dimension(), player.chunkPosition());
-            if (chunkInfo != null) {
-                chunkInfo.incrementBlocksPlaced(player.getUUID());
-            }
+        ServerTickEvents.START_SERVER_TICK.register(TrackerMetrics::tick);
+        ServerTickEvents.START_SERVER_TICK.register(ActivityAccounting::tick);
+        ServerTickEvents.START_SERVER_TICK.register(ActivitySync::tick);
+        ServerTickEvents.START_SERVER_TICK.register(HeatmapRenderer::tick);
 
-            return InteractionResult.PASS;
-        });
-
-        ServerTickEvents.START_SERVER_TICK.register(event -> {
-            long currentTime = System.nanoTime();
-            var delta = (currentTime - lastTime) / NANOSECONDS_PER_TICK;
-            if (delta < 20)
-                return;
-
-            lastTime = currentTime;
-
-            event.getPlayerList().getPlayers().forEach(player -> {
-                var level = player.level();
-                if (level == null)
-                    return;
-
-                var chunkInfo = ChunkActivityMap.getChunkInfo(level.dimension(), player.chunkPosition());
-                if (chunkInfo == null) {
-                    if (AllConfigs.server().storeHeightmaps.get()) {
-                        var chunk = level.getChunkAt(player.blockPosition());
-                        if (chunk == null)
-                            return;
-                        chunkInfo = ChunkActivityMap.createChunkInfo(level.dimension(), chunk);
-                    } else {
-                        chunkInfo = ChunkActivityMap.createChunkInfo(level.dimension(), player.chunkPosition());
-                    }
-                }
-
-                chunkInfo.updatePlayerTime(player.getUUID());
-            });
-        });
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> ChunkActivityCommand.register(dispatcher));
     }
 
     #if FABRIC @Override #endif
@@ -193,6 +281,8 @@ public class ChunkActivityTracker #if FABRIC implements ModInitializer, ClientMo
             ConfigScreenFactoryRegistry.INSTANCE.register(ChunkActivityTracker.ID, ConfigurationScreen::new);
             #endif
         #endif
+
+        ActivityOverlay.register();
     }
 
     // Forg event stubs to call the Fabric initialize methods, and set up cloth config screen
@@ -0,0 +1,170 @@
+package toni.chunkactivitytracker.client;
+
+import com.mojang.blaze3d.platform.InputConstants;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.fabricmc.fabric.api.client.rendering.v1.HudRenderCallback;
+import net.minecraft.client.KeyMapping;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.GuiGraphics;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+import toni.chunkactivitytracker.network.ActivitySyncPacket;
+
+/**
+ * Client side of the activity overlay: keeps the total time of the chunks around the player as the server sends them,
+ * and draws them as a small grid in the corner of the screen. Only regions near the player are kept, at most
+ * MAX_REGIONS of them. The overlay is turned on per player with /chunkactivity overlay, and the key only hides or
+ * shows it.
+ * <p>
+ * Everything here runs on the client thread.
+ */
+public class ActivityOverlay {
+    // Regions kept, about 8 KB each. View distance 32 needs at most 9 at a time, so this only matters while moving fast.
+    private static final int MAX_REGIONS = 128;
+    // Chunks drawn in each direction from the player, and the size of a chunk on screen
+    private static final int GRID_RADIUS = 8;
+    private static final int CELL_SIZE = 4;
+    private static final int MARGIN = 4;
+
+    private static final KeyMapping TOGGLE_KEY = new KeyMapping("key.chunkactivitytracker.overlay", InputConstants.Type.KEYSYM, InputConstants.UNKNOWN.getValue(), "key.categories.chunkactivitytracker");
+
+    // Total time of every chunk of a region by local index, zero for chunks without activity or out of view
+    private static final Long2ObjectLinkedOpenHashMap<long[]> regions = new Long2ObjectLinkedOpenHashMap<>();
+    private static String dimension;
+    private static int radius;
+    private static boolean hidden;
+
+    public static void register() {
+        #if mc >= 211
+        ClientPlayNetworking.registerGlobalReceiver(ActivitySyncPacket.TYPE, (packet, context) -> handle(packet));
+        #else
+        ClientPlayNetworking.registerGlobalReceiver(ActivitySyncPacket.ID, (client, handler, buf, responseSender) -> {
+            var packet = ActivitySyncPacket.read(buf);
+            client.execute(() -> handle(packet));
+        });
+        #endif
+
+        KeyBindingHelper.registerKeyBinding(TOGGLE_KEY);
+        ClientTickEvents.END_CLIENT_TICK.register(client -> {
+            while (TOGGLE_KEY.consumeClick())
+                hidden = !hidden;
+        });
+
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> clear());
+        HudRenderCallback.EVENT.register((graphics, delta) -> render(graphics));
+    }
+
+    public static void clear() {
+        regions.clear();
+        dimension = null;
+    }
+
+    public static void handle(ActivitySyncPacket packet) {
+        if (packet.action() == ActivitySyncPacket.STOP) {
+            clear();
+            return;
+        }
+
+        if (packet.action() == ActivitySyncPacket.RESET || !packet.dimension().equals(dimension)) {
+            regions.clear();
+            dimension = packet.dimension();
+        }
+        radius = packet.radius();
+
+        for (var update : packet.regions()) {
+            var totals = update.replace() ? null : regions.getAndMoveToLast(update.regionPos());
+            if (totals == null) {
+                totals = new long[ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE];
+                regions.putAndMoveToLast(update.regionPos(), totals);
+            }
+
+            for (int i = 0; i < update.indices().length; i++)
+                totals[update.indices()[i]] = update.totals()[i];
+        }
+
+        evict();
+    }
+
+    // Drops regions the player has moved away from, which the server has stopped updating, then the oldest past the limit
+    private static void evict() {
+        var player = Minecraft.getInstance().player;
+        if (player != null) {
+            var pos = player.chunkPosition();
+            int reach = (radius >> ChunkActivityRegion.SHIFT) + 1;
+            int regionX = pos.x >> ChunkActivityRegion.SHIFT, regionZ = pos.z >> ChunkActivityRegion.SHIFT;
+
+            var far = new LongArrayList();
+            for (long regionPos : regions.keySet()) {
+                if (Math.abs(ChunkPos.getX(regionPos) - regionX) > reach || Math.abs(ChunkPos.getZ(regionPos) - regionZ) > reach)
+                    far.add(regionPos);
+            }
+            for (int i = 0; i < far.size(); i++)
+                regions.remove(far.getLong(i));
+        }
+
+        while (regions.size() > MAX_REGIONS)
+            regions.removeFirst();
+    }
+
+    private static long getTotal(int x, int z) {
+        var totals = regions.get(ChunkPos.asLong(x >> ChunkActivityRegion.SHIFT, z >> ChunkActivityRegion.SHIFT));
+        return totals != null ? totals[(x & ChunkActivityRegion.MASK) | (z & ChunkActivityRegion.MASK) << ChunkActivityRegion.SHIFT] : 0;
+    }
+
+    private static void render(GuiGraphics graphics) {
+        if (hidden || dimension == null || regions.isEmpty())
+            return;
+
+        var minecraft = Minecraft.getInstance();
+        if (minecraft.player == null || minecraft.level == null || minecraft.options.hideGui)
+            return;
+
+        #if mc >= 211
+        if (minecraft.getDebugOverlay().showDebugScreen())
+            return;
+        #else
+        if (minecraft.options.renderDebug)
+            return;
+        #endif
+
+        if (!minecraft.level.dimension().location().toString().equals(dimension))
+            return;
+
+        var pos = minecraft.player.chunkPosition();
+        int size = GRID_RADIUS * 2 + 1;
+        var totals = new long[size * size];
+        long max = 0;
+        for (int dz = 0; dz < size; dz++) {
+            for (int dx = 0; dx < size; dx++) {
+                long total = getTotal(pos.x - GRID_RADIUS + dx, pos.z - GRID_RADIUS + dz);
+                totals[dz * size + dx] = total;
+                max = Math.max(max, total);
+            }
+        }
+
+        graphics.fill(MARGIN - 1, MARGIN - 1, MARGIN + size * CELL_SIZE + 1, MARGIN + size * CELL_SIZE + 1, 0x80000000);
+
+        // Scaled by log so a few very busy chunks don't wash out the rest
+        double scale = max > 0 ? Math.log1p(max) : 1;
+        for (int dz = 0; dz < size; dz++) {
+            for (int dx = 0; dx < size; dx++) {
+                long total = totals[dz * size + dx];
+                if (total == 0)
+                    continue;
+
+                int heat = (int) (255 * Math.log1p(total) / scale);
+                int color = 0xC0000000 | heat << 16 | (255 - heat) << 8 | 0x20;
+                int x = MARGIN + dx * CELL_SIZE, y = MARGIN + dz * CELL_SIZE;
+                graphics.fill(x, y, x + CELL_SIZE, y + CELL_SIZE, color);
+            }
+        }
+
+        int center = MARGIN + GRID_RADIUS * CELL_SIZE;
+        graphics.renderOutline(center, center, CELL_SIZE, CELL_SIZE, 0xFFFFFFFF);
+    }
+}
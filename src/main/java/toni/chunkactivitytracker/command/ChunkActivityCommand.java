@@ -0,0 +1,216 @@
+package toni.chunkactivitytracker.command;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.LongArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.commands.arguments.DimensionArgument;
+import net.minecraft.commands.arguments.GameProfileArgument;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.storage.LevelResource;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.ChunkActivityScan;
+import toni.chunkactivitytracker.heatmap.HeatmapRenderer;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+import toni.chunkactivitytracker.network.ActivitySync;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The /chunkactivity command, for server operators.
+ */
+public class ChunkActivityCommand {
+    private static final DateTimeFormatter REPORT_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    // Only one scan runs at a time, since each one already uses every core it can get
+    private static volatile ChunkActivityScan currentScan;
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(Commands.literal("chunkactivity")
+            .requires(source -> source.hasPermission(2))
+            .then(Commands.literal("stats")
+                .executes(ChunkActivityCommand::stats)
+                .then(Commands.literal("reset").executes(ChunkActivityCommand::statsReset)))
+            .then(Commands.literal("prune-report")
+                .then(Commands.literal("status").executes(ChunkActivityCommand::pruneReportStatus))
+                .then(Commands.literal("cancel").executes(ChunkActivityCommand::pruneReportCancel))
+                .then(Commands.argument("threshold", LongArgumentType.longArg(0))
+                    .executes(context -> pruneReport(context, context.getSource().getLevel()))
+                    .then(Commands.argument("dimension", DimensionArgument.dimension())
+                        .executes(context -> pruneReport(context, DimensionArgument.getDimension(context, "dimension"))))))
+            .then(Commands.literal("player")
+                .then(Commands.argument("player", GameProfileArgument.gameProfile())
+                    .then(Commands.literal("info").executes(ChunkActivityCommand::playerInfo))
+                    .then(Commands.literal("erase").executes(ChunkActivityCommand::playerErase))))
+            .then(Commands.literal("overlay").executes(ChunkActivityCommand::overlay))
+            .then(Commands.literal("heatmap")
+                .executes(context -> heatmap(context, context.getSource().getLevel()))
+                .then(Commands.argument("dimension", DimensionArgument.dimension())
+                    .executes(context -> heatmap(context, DimensionArgument.getDimension(context, "dimension"))))));
+    }
+
+    // Walks the resident chunks of every dimension for the memory estimate, which is fine for an operator command
+    private static int stats(CommandContext<CommandSourceStack> context) {
+        var lines = TrackerMetrics.report(true);
+        context.getSource().sendSuccess(() -> Component.literal("Chunk activity metrics, " + String.join("\n", lines)), false);
+        return 1;
+    }
+
+    private static int statsReset(CommandContext<CommandSourceStack> context) {
+        TrackerMetrics.reset();
+        context.getSource().sendSuccess(() -> Component.literal("Reset chunk activity metrics"), true);
+        return 1;
+    }
+
+    /**
+     * Writes every chunk of the dimension with less than threshold seconds of activity and no placed or broken blocks
+     * to a CSV file under chunk_activity_info/reports. The scan runs in the background and reports back when it's done.
+     */
+    private static int pruneReport(CommandContext<CommandSourceStack> context, ServerLevel level) throws CommandSyntaxException {
+        var source = context.getSource();
+        var running = currentScan;
+        if (running != null && !running.isDone()) {
+            source.sendFailure(Component.literal("A prune report for '" + running.getDimension() + "' is already running, see /chunkactivity prune-report status"));
+            return 0;
+        }
+
+        var dimension = level.dimension().location().getPath();
+        var reports = ChunkActivityTracker.getWorldPath(new LevelResource("chunk_activity_info/reports/"));
+        if (reports == null) {
+            source.sendFailure(Component.literal("Could not get chunk activity data location!"));
+            return 0;
+        }
+
+        long threshold = LongArgumentType.getLong(context, "threshold");
+        var output = reports.resolve("prune-" + dimension.replace('/', '_') + "-" + LocalDateTime.now().format(REPORT_TIME) + ".csv");
+
+        var map = ChunkActivityMap.getOrCreateChunkMap(level.dimension());
+        var scan = ChunkActivityScan.start(map, ChunkActivityScan.ChunkFilter.prunable(threshold), output);
+        currentScan = scan;
+
+        var server = source.getServer();
+        scan.getResult().whenComplete((result, error) -> server.execute(() -> {
+            if (error != null)
+                source.sendFailure(Component.literal("Prune report for '" + dimension + "' failed: " + error.getMessage()));
+            else if (!scan.isCancelled())
+                source.sendSuccess(() -> Component.literal("Prune report for '" + dimension + "' done: " + scan.getMatchCount() + " of " + scan.getChunksScanned() + " chunks written to " + output.getFileName()), true);
+        }));
+
+        source.sendSuccess(() -> Component.literal("Started prune report for '" + dimension + "', listing chunks with less than " + threshold + " seconds of activity and no placed or broken blocks"), true);
+        return 1;
+    }
+
+    // Reads the regions the player has been in from disk, so it's done off the server thread
+    private static int playerInfo(CommandContext<CommandSourceStack> context) throws CommandSyntaxException {
+        var source = context.getSource();
+        var server = source.getServer();
+        for (var profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            CompletableFuture.supplyAsync(() -> {
+                var lines = new ArrayList<String>();
+                for (var map : ChunkActivityMap.getChunkMaps()) {
+                    var activity = map.getPlayerActivity(profile.getId());
+                    if (activity.chunkCount() > 0)
+                        lines.add(map.getDimension() + ": " + activity.totalTime() + " seconds in " + activity.chunkCount() + " chunks of " + activity.regionCount() + " regions, " + activity.blocksPlaced() + " blocks placed, " + activity.blocksBroken() + " broken");
+                }
+                return lines;
+            }).whenComplete((lines, error) -> server.execute(() -> {
+                if (error != null)
+                    source.sendFailure(Component.literal("Could not look up chunk activity of " + profile.getName() + ": " + error.getMessage()));
+                else if (lines.isEmpty())
+                    source.sendSuccess(() -> Component.literal("No chunk activity recorded for " + profile.getName()), false);
+                else
+                    source.sendSuccess(() -> Component.literal("Chunk activity of " + profile.getName() + ", " + String.join("\n", lines)), false);
+            }));
+        }
+
+        return 1;
+    }
+
+    private static int playerErase(CommandContext<CommandSourceStack> context) throws CommandSyntaxException {
+        var source = context.getSource();
+        var server = source.getServer();
+        for (var profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            ChunkActivityTracker.erasePlayer(profile.getId()).whenComplete((chunks, error) -> server.execute(() -> {
+                if (error != null)
+                    source.sendFailure(Component.literal("Could not erase chunk activity of " + profile.getName() + ": " + error.getMessage()));
+                else
+                    source.sendSuccess(() -> Component.literal("Erased chunk activity of " + profile.getName() + " from " + chunks + " chunks"), true);
+            }));
+        }
+
+        return 1;
+    }
+
+    // Redraws the dimension's heatmap tiles that changed since the last pass, in the background
+    private static int heatmap(CommandContext<CommandSourceStack> context, ServerLevel level) {
+        var source = context.getSource();
+        var server = source.getServer();
+        var dimension = level.dimension().location().getPath();
+
+        HeatmapRenderer.render(ChunkActivityMap.getOrCreateChunkMap(level.dimension())).whenComplete((result, error) -> server.execute(() -> {
+            if (error != null)
+                source.sendFailure(Component.literal("Heatmap of '" + dimension + "' failed: " + error.getMessage()));
+            else if (result != null)
+                source.sendSuccess(() -> Component.literal("Heatmap of '" + dimension + "' done: " + result.regionsChanged() + " regions changed, " + result.tilesWritten() + " tiles written and " + result.tilesDeleted() + " removed in " + result.milliseconds() + " milliseconds"), true);
+        }));
+
+        source.sendSuccess(() -> Component.literal("Rendering heatmap of '" + dimension + "'"), true);
+        return 1;
+    }
+
+    // Turns the activity overlay on or off for the player running the command
+    private static int overlay(CommandContext<CommandSourceStack> context) throws CommandSyntaxException {
+        var source = context.getSource();
+        var player = source.getPlayerOrException();
+        if (ActivitySync.isSubscribed(player)) {
+            ActivitySync.unsubscribe(player);
+            source.sendSuccess(() -> Component.literal("Chunk activity overlay turned off"), false);
+            return 1;
+        }
+
+        if (!ActivitySync.canReceive(player)) {
+            source.sendFailure(Component.literal("The chunk activity overlay needs the mod on the client"));
+            return 0;
+        }
+
+        ActivitySync.subscribe(player);
+        source.sendSuccess(() -> Component.literal("Chunk activity overlay turned on"), false);
+        return 1;
+    }
+
+    private static int pruneReportStatus(CommandContext<CommandSourceStack> context) {
+        var source = context.getSource();
+        var scan = currentScan;
+        if (scan == null) {
+            source.sendFailure(Component.literal("No prune report has been started"));
+            return 0;
+        }
+
+        String state = scan.isDone() ? (scan.isCancelled() ? "cancelled" : "done") : "running";
+        int regionCount = scan.getRegionCount();
+        String regions = regionCount < 0 ? "listing regions" : scan.getRegionsScanned() + "/" + regionCount + " regions (" + Math.round(scan.getProgress() * 100) + "%)";
+
+        source.sendSuccess(() -> Component.literal("Prune report for '" + scan.getDimension() + "' " + state + ": " + regions + ", " + scan.getChunksScanned() + " chunks scanned, " + scan.getMatchCount() + " matched"), false);
+        return 1;
+    }
+
+    private static int pruneReportCancel(CommandContext<CommandSourceStack> context) {
+        var source = context.getSource();
+        var scan = currentScan;
+        if (scan == null || scan.isDone()) {
+            source.sendFailure(Component.literal("No prune report is running"));
+            return 0;
+        }
+
+        scan.cancel();
+        source.sendSuccess(() -> Component.literal("Cancelling prune report for '" + scan.getDimension() + "'"), true);
+        return 1;
+    }
+}
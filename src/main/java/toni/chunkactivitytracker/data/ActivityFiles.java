@@ -0,0 +1,166 @@
+package toni.chunkactivitytracker.data;
+
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline operations on a dimension's activity files, for tools that run without a server. A source is either a
+ * region directory, or a whole-dimension .dat file from before region files. Nothing here
+ * goes through the maps of a running server, so don't use it on a world that's loaded.
+ * <p>
+ * Region files are read and decoded on several threads, with only a couple of regions per thread in flight, so memory
+ * use follows the number of threads rather than the size of the files. A whole-dimension file is a single GZIP stream
+ * and is read on the calling thread.
+ */
+public class ActivityFiles {
+    // Regions collected from a whole-dimension file before they're handed over
+    private static final int MAX_PENDING_REGIONS = 256;
+
+    @FunctionalInterface
+    public interface RegionConsumer {
+        void accept(ChunkActivityRegion region) throws IOException;
+    }
+
+    public static boolean isLegacyFile(Path source) {
+        return Files.isRegularFile(source);
+    }
+
+    /**
+     * Passes every region of the source to consumer, which is called from up to threads threads at once for a region
+     * directory. Regions of a whole-dimension file may be passed more than once, each time with other chunks. Regions
+     * that fail to be read or consumed are logged and skipped, and their number is returned.
+     */
+    public static int forEachRegion(Path source, int threads, RegionConsumer consumer) throws IOException {
+        if (isLegacyFile(source)) {
+            LegacyActivityFile.readRegions(source, MAX_PENDING_REGIONS, consumer);
+            return 0;
+        }
+
+        var failed = new AtomicInteger();
+        int permits = threads * 2;
+        var inFlight = new Semaphore(permits);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            var thread = new Thread(task, "ChunkActivityTracker Files");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        var storage = new CompressedRegionStorage(source);
+        try {
+            for (long regionPos : storage.list()) {
+                inFlight.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        var region = storage.read(regionPos);
+                        if (region != null)
+                            consumer.accept(region);
+                    } catch (Exception e) {
+                        ChunkActivityTracker.LOGGER.error("Error when processing chunk activity region " + ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of '" + source + "': " + e.getMessage());
+                        failed.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+
+            // Every read has to be done before the storage is closed
+            inFlight.acquireUninterruptibly(permits);
+            inFlight.release(permits);
+        } finally {
+            storage.close();
+            executor.shutdown();
+        }
+
+        return failed.get();
+    }
+
+    /**
+     * Adds every source's regions to the ones stored in target, creating it if needed. Chunks found in more than one
+     * place get their counters added up, so merging a copy of the same data twice counts it twice. Different regions
+     * are written from several threads at once. Returns the number of regions that failed.
+     */
+    public static int merge(List<Path> sources, Path target, StorageCompression compression, int level, int threads) throws IOException {
+        Files.createDirectories(target);
+        var storage = new CompressedRegionStorage(target, compression, level);
+
+        int failed = 0;
+        try {
+            // Sources are merged one after another and pass each region from one thread at a time, so no two threads
+            // ever write the same region
+            for (var source : sources) {
+                failed += forEachRegion(source, threads, region -> {
+                    var existing = storage.read(region.getPos());
+                    if (existing != null) {
+                        existing.merge(region);
+                        region = existing;
+                    }
+
+                    storage.write(region);
+                });
+            }
+        } finally {
+            storage.close();
+        }
+
+        // Rebuilt from the region files the next time the dimension loads
+        Files.deleteIfExists(target.resolve("summary.dat"));
+        Files.deleteIfExists(target.resolve("players.dat"));
+        return failed;
+    }
+
+    /**
+     * Rewrites every region of the directory in the current format with the given compression. Activity left in the
+     * write-ahead log is added first. The new files are written to a sibling directory, and the original directory is only renamed to .old once
+     * all of them are.
+     */
+    public static void compact(Path directory, StorageCompression compression, int level, int threads) throws IOException {
+        var temp = directory.resolveSibling(directory.getFileName() + ".compact");
+        var old = directory.resolveSibling(directory.getFileName() + ".old");
+        if (Files.exists(temp) || Files.exists(old))
+            throw new IOException("'" + temp + "' or '" + old + "' is in the way, move it first");
+
+        replayLog(directory);
+
+        int failed = merge(List.of(directory), temp, compression, level, threads);
+        if (failed > 0)
+            throw new IOException(failed + " regions could not be rewritten, '" + directory + "' was left as it is and the partial result is in '" + temp + "'");
+
+        var heightmaps = directory.resolve("heightmaps");
+        if (Files.isDirectory(heightmaps))
+            Files.move(heightmaps, temp.resolve("heightmaps"));
+
+        Files.move(directory, old);
+        Files.move(temp, directory);
+    }
+
+    // Write-ahead log segments in the directory that haven't been replayed into its regions yet
+    public static int countLogSegments(Path directory) throws IOException {
+        return WriteAheadLog.listSegments(directory.resolve("wal")).length;
+    }
+
+    private static void replayLog(Path directory) throws IOException {
+        if (countLogSegments(directory) == 0)
+            return;
+
+        var storage = new CompressedRegionStorage(directory);
+        var log = new WriteAheadLog(directory.getFileName().toString(), directory.resolve("wal"));
+        try {
+            log.replay(storage::read, storage, null, null);
+        } finally {
+            log.close();
+            storage.close();
+        }
+
+        if (countLogSegments(directory) > 0)
+            throw new IOException("Could not replay the write-ahead log of '" + directory + "'");
+    }
+}
@@ -0,0 +1,193 @@
+package toni.chunkactivitytracker.data;
+
+import net.minecraft.network.FriendlyByteBuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rolling history of the time spent in a chunk, kept as rings of fixed-size buckets at three resolutions: 16 daily
+ * buckets, 9 weekly ones and 13 of 28 days. Every tier records the same time at its own resolution, so the last 16
+ * days are known to the day, the last 9 weeks to the week and the last year to 28 days. Anything older only survives
+ * in the chunk's lifetime totals.
+ * <p>
+ * Days are counted from the epoch in UTC. Buckets that fall out of a ring are cleared when the history is next added
+ * to, so rollover costs nothing for chunks nobody visits, and queries treat every bucket after the newest one as
+ * empty. Not thread safe; guarded by the owning ChunkActivityInfo.
+ */
+public class ActivityHistory {
+    public static final int DAY_SECONDS = 86400;
+
+    // Days per bucket, buckets per ring and position in the bucket array of each tier, finest first. Each span divides
+    // the next, so a coarse bucket always covers whole buckets of the finer tiers.
+    private static final int[] SPANS = {1, 7, 28};
+    private static final int[] SLOTS = {16, 9, 13};
+    private static final int[] OFFSETS = {0, 16, 25};
+    static final int BUCKETS = 38;
+
+    // Longest window that can be answered, in days
+    public static final int MAX_DAYS = 28 * 13;
+    // Size of a history written with write(ByteBuffer, int)
+    static final int BYTES = 4 + 4 * BUCKETS;
+
+    private static volatile boolean enabled;
+
+    // Seconds per bucket, saturating at Integer.MAX_VALUE
+    private final int[] buckets = new int[BUCKETS];
+    // Day of the newest time recorded
+    private int latestDay;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Follows the Activity History config. Chunks that already have a history keep it while this is off.
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static int day(long epochSecond) {
+        return (int) (epochSecond / DAY_SECONDS);
+    }
+
+    ActivityHistory() {
+    }
+
+    ActivityHistory copy() {
+        var copy = new ActivityHistory();
+        System.arraycopy(buckets, 0, copy.buckets, 0, BUCKETS);
+        copy.latestDay = latestDay;
+        return copy;
+    }
+
+    // Records seconds on the given day. Days older than a ring's coverage are dropped from that ring.
+    void add(int day, long seconds) {
+        if (day > latestDay)
+            roll(day);
+
+        for (int tier = 0; tier < SPANS.length; tier++)
+            addToBucket(tier, day / SPANS[tier], seconds);
+    }
+
+    // Adds another history's buckets to this one
+    void merge(ActivityHistory other) {
+        if (other.latestDay > latestDay)
+            roll(other.latestDay);
+
+        for (int tier = 0; tier < SPANS.length; tier++) {
+            int latest = other.latestDay / SPANS[tier];
+            for (int index = latest - SLOTS[tier] + 1; index <= latest; index++) {
+                int value = other.get(tier, index);
+                if (value != 0)
+                    addToBucket(tier, index, value);
+            }
+        }
+    }
+
+    // Clears the buckets between the newest day so far and the given one, at most one full ring per tier
+    private void roll(int day) {
+        for (int tier = 0; tier < SPANS.length; tier++) {
+            int to = day / SPANS[tier];
+            int from = Math.max(latestDay / SPANS[tier] + 1, to - SLOTS[tier] + 1);
+            for (int index = from; index <= to; index++)
+                buckets[OFFSETS[tier] + Math.floorMod(index, SLOTS[tier])] = 0;
+        }
+
+        latestDay = day;
+    }
+
+    private void addToBucket(int tier, int index, long seconds) {
+        int latest = latestDay / SPANS[tier];
+        if (index > latest || index <= latest - SLOTS[tier])
+            return;
+
+        int slot = OFFSETS[tier] + Math.floorMod(index, SLOTS[tier]);
+        buckets[slot] = (int) Math.min(Integer.MAX_VALUE, buckets[slot] + seconds);
+    }
+
+    // Seconds in a tier's bucket, 0 for buckets outside the ring
+    private int get(int tier, int index) {
+        int latest = latestDay / SPANS[tier];
+        if (index > latest || index <= latest - SLOTS[tier])
+            return 0;
+
+        return buckets[OFFSETS[tier] + Math.floorMod(index, SLOTS[tier])];
+    }
+
+    /**
+     * Seconds spent here in the given number of days up to and including today, at most MAX_DAYS. Exact for windows
+     * within the daily ring. Further back, the part of a coarse bucket that isn't covered by a finer tier is spread
+     * evenly over its days when the window only covers some of them.
+     */
+    public long getTime(int days, long now) {
+        if (days <= 0)
+            return 0L;
+
+        int today = day(now);
+        return sum(SPANS.length - 1, (long) today - Math.min(days, MAX_DAYS) + 1, today);
+    }
+
+    // Seconds from day from to day to, inclusive, using tiers up to maxTier. Each tier only answers the days that
+    // are older than what the finer tiers cover.
+    private long sum(int maxTier, long from, long to) {
+        to = Math.min(to, latestDay);
+        long covered = (long) latestDay + 1; // Days from here on are answered by finer tiers
+        long total = 0;
+
+        for (int tier = 0; tier <= maxTier; tier++) {
+            int span = SPANS[tier];
+            long tierStart = ((long) latestDay / span - SLOTS[tier] + 1) * span;
+            long lo = Math.max(from, tierStart);
+            long hi = Math.min(to, covered - 1);
+
+            for (long index = Math.floorDiv(lo, span); lo <= hi && index <= Math.floorDiv(hi, span); index++) {
+                long first = index * span;
+                long last = first + span - 1;
+                long older = get(tier, (int) index);
+                if (last >= covered)
+                    older -= sum(tier - 1, covered, last);
+
+                long olderLast = Math.min(last, covered - 1);
+                long overlap = Math.min(hi, olderLast) - Math.max(lo, first) + 1;
+                total += Math.max(0L, older) * overlap / (olderLast - first + 1);
+            }
+
+            covered = Math.min(covered, tierStart);
+        }
+
+        return total;
+    }
+
+    public long estimateMemory() {
+        return 16L + 16L + 4L * BUCKETS;
+    }
+
+    void write(FriendlyByteBuf buf) {
+        buf.writeVarInt(latestDay);
+        for (int value : buckets)
+            buf.writeVarInt(value);
+    }
+
+    static ActivityHistory read(FriendlyByteBuf buf) {
+        var history = new ActivityHistory();
+        history.latestDay = buf.readVarInt();
+        for (int i = 0; i < BUCKETS; i++)
+            history.buckets[i] = buf.readVarInt();
+
+        return history;
+    }
+
+    void write(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, latestDay);
+        for (int i = 0; i < BUCKETS; i++)
+            buffer.putInt(offset + 4 + i * 4, buckets[i]);
+    }
+
+    static ActivityHistory read(ByteBuffer buffer, int offset) {
+        var history = new ActivityHistory();
+        history.latestDay = buffer.getInt(offset);
+        for (int i = 0; i < BUCKETS; i++)
+            history.buckets[i] = buffer.getInt(offset + 4 + i * 4);
+
+        return history;
+    }
+}
@@ -0,0 +1,151 @@
+package toni.chunkactivitytracker.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import lombok.Getter;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Consistent, read-only view of a dimension's activity for readers off the server thread, such as web maps or bots.
+ * Get one from ChunkActivityMap.getSnapshot(); it never changes once published, so it can be read from any number of
+ * threads without locking or slowing down the tracker.
+ * <p>
+ * Publishing is copy-on-write per region: every region that was resident is copied one chunk at a time, holding only
+ * that chunk's lock, and regions that haven't changed since the previous snapshot share its copy. The version only
+ * goes up when something changed. Regions that weren't resident are read from disk the first time they're asked for
+ * and kept for the life of the snapshot, so they reflect their last save rather than the moment of publishing.
+ */
+public final class ActivitySnapshot {
+    @Getter private final String dimension;
+    // Goes up by one with every snapshot of the dimension whose data differs from the one before
+    @Getter private final long version;
+    // When this was published, in epoch milliseconds
+    @Getter private final long timestamp;
+
+    private final ChunkActivityMap map;
+    // Copies of the regions that were resident when this was published. Never modified afterwards.
+    private final Long2ObjectMap<RegionView> resident;
+    // Regions read from disk on demand. Ones without any data are kept as EMPTY.
+    private final ConcurrentHashMap<Long, RegionView> stored = new ConcurrentHashMap<>();
+
+    private static final RegionView EMPTY = new RegionView(0L, new ChunkActivityView[0], 0, 0L);
+
+    private ActivitySnapshot(ChunkActivityMap map, long version, long timestamp, Long2ObjectMap<RegionView> resident) {
+        this.dimension = map.getDimension();
+        this.map = map;
+        this.version = version;
+        this.timestamp = timestamp;
+        this.resident = resident;
+    }
+
+    /**
+     * Publishes a new snapshot of the map's resident regions, reusing the copies of previous for regions that haven't
+     * changed since. Regions that are still being read from disk keep their previous copy, or are left to be read on
+     * demand if there isn't one.
+     */
+    static ActivitySnapshot publish(ChunkActivityMap map, ChunkActivityRegion[] regions, ActivitySnapshot previous) {
+        var views = new Long2ObjectOpenHashMap<RegionView>(regions.length);
+        boolean changed = previous == null;
+        for (var region : regions) {
+            var old = previous != null ? previous.resident.get(region.getPos()) : null;
+            if (region.isLoading()) {
+                if (old != null)
+                    views.put(region.getPos(), old);
+                continue;
+            }
+
+            // Read before copying, so a change made during the copy is picked up by the next snapshot
+            long stamp = region.getChangeCount();
+            if (old != null && old.stamp == stamp) {
+                views.put(region.getPos(), old);
+                continue;
+            }
+
+            views.put(region.getPos(), RegionView.of(region, stamp));
+            changed = true;
+        }
+
+        if (previous != null && views.size() != previous.resident.size())
+            changed = true;
+
+        long version = previous == null ? 1L : previous.version + (changed ? 1 : 0);
+        return new ActivitySnapshot(map, version, System.currentTimeMillis(), views);
+    }
+
+    public ChunkActivityView getChunk(ChunkPos chunkPos) {
+        return getChunk(chunkPos.toLong());
+    }
+
+    // The chunk's data, or null if it had none. May read its region from disk on the calling thread.
+    public ChunkActivityView getChunk(long chunkPos) {
+        return getRegion(ChunkActivityRegion.regionKey(chunkPos)).get(ChunkActivityRegion.localIndex(chunkPos));
+    }
+
+    public long getRegionTotalTime(long regionPos) {
+        return getRegion(regionPos).totalTime;
+    }
+
+    public int getRegionChunkCount(long regionPos) {
+        return getRegion(regionPos).count;
+    }
+
+    // Positions of the regions that were resident when this was published
+    public long[] getResidentRegions() {
+        return resident.keySet().toLongArray();
+    }
+
+    // Calls consumer for every chunk with data in the region. May read the region from disk on the calling thread.
+    public void forEachChunk(long regionPos, ChunkViewConsumer consumer) {
+        int baseX = ChunkPos.getX(regionPos) << ChunkActivityRegion.SHIFT;
+        int baseZ = ChunkPos.getZ(regionPos) << ChunkActivityRegion.SHIFT;
+
+        var region = getRegion(regionPos);
+        for (int i = 0; i < region.chunks.length; i++) {
+            var chunk = region.chunks[i];
+            if (chunk != null)
+                consumer.accept(ChunkPos.asLong(baseX + (i & ChunkActivityRegion.MASK), baseZ + (i >> ChunkActivityRegion.SHIFT)), chunk);
+        }
+    }
+
+    private RegionView getRegion(long regionPos) {
+        var view = resident.get(regionPos);
+        if (view != null)
+            return view;
+
+        return stored.computeIfAbsent(regionPos, pos -> {
+            var copy = map.copyRegion(pos);
+            return copy != null ? RegionView.of(copy, 0L) : EMPTY;
+        });
+    }
+
+    @FunctionalInterface
+    public interface ChunkViewConsumer {
+        void accept(long chunkPos, ChunkActivityView chunk);
+    }
+
+    private record RegionView(long stamp, ChunkActivityView[] chunks, int count, long totalTime) {
+        static RegionView of(ChunkActivityRegion region, long stamp) {
+            var chunks = new ChunkActivityView[ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE];
+            int count = 0;
+            long totalTime = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                var info = region.get(i);
+                if (info == null)
+                    continue;
+
+                var copy = info.copy();
+                chunks[i] = new ChunkActivityView(copy);
+                count++;
+                totalTime += copy.getTotalTime();
+            }
+
+            return new RegionView(stamp, chunks, count, totalTime);
+        }
+
+        ChunkActivityView get(int index) {
+            return index < chunks.length ? chunks[index] : null;
+        }
+    }
+}
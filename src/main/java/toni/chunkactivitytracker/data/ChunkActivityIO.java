@@ -0,0 +1,123 @@
+package toni.chunkactivitytracker.data;
+
+import toni.chunkactivitytracker.ChunkActivityTracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background I/O for chunk activity data. All file writes run on a single dedicated thread, so writes for the same
+ * dimension are always applied in order and never overlap.
+ */
+public class ChunkActivityIO {
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "ChunkActivityTracker IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Save requests that have been queued but not yet picked up by the IO thread, keyed by dimension
+    private static final ConcurrentHashMap<String, Runnable> pendingSaves = new ConcurrentHashMap<>();
+    // Tasks queued on the IO thread that haven't finished yet
+    private static final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Queues a save for the given dimension. If a save for the same dimension is still waiting in the queue, it is
+     * replaced with this one instead of writing twice.
+     */
+    public static void submitSave(String dimension, Runnable save) {
+        if (pendingSaves.put(dimension, save) != null)
+            return;
+
+        queued.incrementAndGet();
+        EXECUTOR.execute(() -> {
+            try {
+                var latest = pendingSaves.remove(dimension);
+                if (latest != null)
+                    latest.run();
+            } finally {
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    public static void execute(Runnable task) {
+        queued.incrementAndGet();
+        EXECUTOR.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error in chunk activity IO task: " + e.getMessage());
+            } finally {
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    // Number of saves and other tasks waiting for or running on the IO thread
+    public static int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Blocks until every save queued before this call has been written to disk.
+     */
+    public static void flush() {
+        try {
+            EXECUTOR.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ChunkActivityTracker.LOGGER.error("Error when flushing chunk activity saves: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes to a temporary file next to the target and moves it into place, so a crash mid-write never leaves a
+     * truncated data file behind. The temporary file is flushed to disk before the move, otherwise a power loss could
+     * leave the rename on disk but not the data it points to.
+     */
+    public static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            channel.force(true);
+        }
+
+        moveIntoPlace(temp, target);
+    }
+
+    // Replaces target with a complete file written next to it, atomically where the file system allows. The directory is
+    // flushed afterwards so the rename itself survives a power loss.
+    public static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    // Not every platform can open a directory for this, e.g. Windows, where renames don't need it
+    private static void forceDirectory(Path directory) {
+        if (directory == null)
+            return;
+
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package toni.chunkactivitytracker.data;
 
 import io.netty.buffer.ByteBuf;
-import lombok.Getter;
+import it.unimi.dsi.fastutil.ints.Int2IntFunction;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.levelgen.Heightmap;
 import toni.chunkactivitytracker.foundation.config.AllConfigs;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
 #if mc >= 211
 import net.minecraft.network.codec.StreamCodec;
@@ -21,76 +25,630 @@ import toni.lib.networking.codecs.StreamCodec;
 public class ChunkActivityInfo implements Serializable {
     public static int CODEC_VERSION = 1;
 
+    private static final int[] NO_PLAYERS = new int[0];
+    private static final long[] NO_TIMES = new long[0];
+
     static StreamCodec<ByteBuf, ChunkActivityInfo> CODEC = new StreamCodec<>() {
         public ChunkActivityInfo decode(ByteBuf buffer) {
             FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
 
-            var verson = buf.readInt();
-            var time = buf.readMap((key) -> key.readUUID(), FriendlyByteBuf::readLong);
-            var blocks = buf.readMap((key) -> key.readUUID(), FriendlyByteBuf::readInt);
+            var version = buf.readInt();
+            if (version != 1)
+                throw new IllegalStateException("Unsupported chunk activity info version " + version);
+
+            var info = new ChunkActivityInfo();
+
+            var timeCount = buf.readVarInt();
+            for (int i = 0; i < timeCount; i++) {
+                var slot = info.slot(PlayerIndex.indexOf(buf.readUUID()));
+                info.times[slot] = buf.readLong();
+                info.total += info.times[slot];
+            }
+
+            var blockCount = buf.readVarInt();
+            for (int i = 0; i < blockCount; i++) {
+                var player = PlayerIndex.indexOf(buf.readUUID());
+                info.addBlocksPlaced(player, buf.readInt());
+            }
 
             var hasHeightMap = buf.readBoolean();
             if (hasHeightMap)
-            {
-                var height = buf.readLongArray();
-                return new ChunkActivityInfo(time, blocks, height);
-            } else {
-                return new ChunkActivityInfo(time, blocks, null);
-            }
+                info.initialHeightmap = buf.readLongArray();
+
+            return info;
         }
 
+        // Same layout as writing the old UUID maps with FriendlyByteBuf.writeMap, so existing files stay readable
         public void encode(ByteBuf buffer, ChunkActivityInfo info) {
             FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
 
-            buf.writeInt(CODEC_VERSION);
-            buf.writeMap(info.playerTimeMap, (a, b) -> a.writeUUID(b), FriendlyByteBuf::writeLong);
-            buf.writeMap(info.blocksPlacedMap, (a, b) -> a.writeUUID(b), FriendlyByteBuf::writeInt);
+            synchronized (info) {
+                buf.writeInt(CODEC_VERSION);
+
+                buf.writeVarInt(info.countNonZero(info.times));
+                for (int i = 0; i < info.size; i++) {
+                    if (info.times[i] == 0)
+                        continue;
+
+                    buf.writeUUID(PlayerIndex.get(info.players[i]));
+                    buf.writeLong(info.times[i]);
+                }
+
+                var blocks = info.blocks;
+                buf.writeVarInt(blocks == null ? 0 : info.countNonZero(blocks));
+                for (int i = 0; blocks != null && i < info.size; i++) {
+                    if (blocks[i] == 0)
+                        continue;
 
-            if (info.initialHeightmap != null) {
-                buf.writeBoolean(true);
-                buf.writeLongArray(info.initialHeightmap);
-            } else {
-                buf.writeBoolean(false);
+                    buf.writeUUID(PlayerIndex.get(info.players[i]));
+                    buf.writeInt(blocks[i]);
+                }
+
+                if (info.initialHeightmap != null) {
+                    buf.writeBoolean(true);
+                    buf.writeLongArray(info.initialHeightmap);
+                } else {
+                    buf.writeBoolean(false);
+                }
             }
         }
     };
 
+    // Compact layout used by region files from format 2 on. Players are written as indices into the file's UUID
+    // dictionary and counters as varints. Format 3 adds the visit count and first/last seen times after the players,
+    // format 5 the blocks broken after each player's blocks placed, format 6 the activity history before the heightmap.
+    // Heightmaps are only written here for maps without a HeightmapStore.
+    synchronized void writeCompact(FriendlyByteBuf buf, Int2IntFunction dictionary, long[] previousHeightmap) {
+        buf.writeVarInt(size);
+        for (int i = 0; i < size; i++) {
+            buf.writeVarInt(dictionary.get(players[i]));
+            buf.writeVarLong(times[i]);
+            buf.writeVarInt(blocks == null ? 0 : blocks[i]);
+            buf.writeVarInt(broken == null ? 0 : broken[i]);
+        }
+
+        buf.writeVarInt(visits);
+        buf.writeInt(firstSeen);
+        buf.writeInt(lastSeen);
+
+        buf.writeBoolean(history != null);
+        if (history != null)
+            history.write(buf);
+
+        HeightmapStore.writeHeightmap(buf, initialHeightmap, previousHeightmap);
+    }
+
+    static ChunkActivityInfo readCompact(FriendlyByteBuf buf, int format, int[] dictionary, long[] previousHeightmap) {
+        var info = new ChunkActivityInfo();
+
+        int count = buf.readVarInt();
+        info.players = new int[count];
+        info.times = new long[count];
+        for (int i = 0; i < count; i++) {
+            info.players[i] = dictionary[buf.readVarInt()];
+            info.times[i] = buf.readVarLong();
+            info.total += info.times[i];
+
+            int placed = buf.readVarInt();
+            if (placed != 0) {
+                if (info.blocks == null)
+                    info.blocks = new int[count];
+
+                info.blocks[i] = placed;
+            }
+
+            int removed = format >= 5 ? buf.readVarInt() : 0;
+            if (removed != 0) {
+                if (info.broken == null)
+                    info.broken = new int[count];
+
+                info.broken[i] = removed;
+            }
+        }
+        info.size = count;
+
+        if (format >= 3) {
+            info.visits = buf.readVarInt();
+            info.firstSeen = buf.readInt();
+            info.lastSeen = buf.readInt();
+        }
+
+        if (format >= 6 && buf.readBoolean())
+            info.history = ActivityHistory.read(buf);
+
+        info.initialHeightmap = HeightmapStore.readHeightmap(buf, previousHeightmap);
+        return info;
+    }
+
+    // Per-player stats as parallel arrays indexed by slot. players holds PlayerIndex ids; most chunks only ever see one
+    // or two players, so a linear scan beats hashing and the arrays only grow when a new player shows up.
+    private int[] players = NO_PLAYERS;
+    private long[] times = NO_TIMES;
+    private int[] blocks;
+    private int[] broken;
+    private int size;
+    // Sum of times, kept up to date so reading it doesn't need the lock or a pass over the players
+    private volatile long total;
+
+    // Number of times a player entered this chunk, and when a player was first and last here. Times are unsigned epoch
+    // seconds, 0 if unknown; an int is enough until 2106 and keeps the per-chunk footprint down.
+    private int visits;
+    private int firstSeen;
+    private int lastSeen;
 
-    @Getter private final ConcurrentHashMap<UUID, Long> playerTimeMap;
-    @Getter private final ConcurrentHashMap<UUID, Integer> blocksPlacedMap;
+    // Time spent here per day, week and month. Only created for chunks visited while Activity History is on.
+    private ActivityHistory history;
 
-    @Getter private long[] initialHeightmap;
+    // Only held here until the chunk is added to a map with a HeightmapStore, which takes it over
+    private long[] initialHeightmap;
+
+    // Region this chunk belongs to, notified the first time the chunk changes after a save, and where in it
+    transient ChunkActivityRegion region;
+    transient int regionIndex;
+    private transient boolean dirty;
 
     // Constructor
     public ChunkActivityInfo(Map<UUID, Long> playerTimeInSeconds, Map<UUID, Integer> blocksPlacedByPlayer, long[] initialHeightmap) {
-        this.playerTimeMap = new ConcurrentHashMap<>(playerTimeInSeconds);
-        this.blocksPlacedMap = new ConcurrentHashMap<>(blocksPlacedByPlayer);
+        playerTimeInSeconds.forEach((player, time) -> {
+            var slot = slot(PlayerIndex.indexOf(player));
+            times[slot] = time;
+            total += time;
+        });
+        blocksPlacedByPlayer.forEach((player, count) -> addBlocksPlaced(PlayerIndex.indexOf(player), count));
         this.initialHeightmap = initialHeightmap;
     }
 
     public ChunkActivityInfo(LevelChunk chunk) {
-        this.playerTimeMap = new ConcurrentHashMap<>();
-        this.blocksPlacedMap = new ConcurrentHashMap<>();
-
         if (AllConfigs.server().storeHeightmaps.get())
-        {
-            var heightmap = chunk.getOrCreateHeightmapUnprimed(Heightmap.Types.MOTION_BLOCKING_NO_LEAVES);
-            initialHeightmap = heightmap.getRawData();
+            initialHeightmap = captureHeightmap(chunk);
+    }
+
+    // The raw data is the heightmap's live backing array, so it has to be copied to stay the initial one
+    public static long[] captureHeightmap(LevelChunk chunk) {
+        var heightmap = chunk.getOrCreateHeightmapUnprimed(Heightmap.Types.MOTION_BLOCKING_NO_LEAVES);
+        return heightmap.getRawData().clone();
+    }
+
+    ChunkActivityInfo() {
+    }
+
+    // Copy of this chunk's data that is safe to encode on another thread while the original keeps changing
+    public synchronized ChunkActivityInfo snapshot() {
+        dirty = false;
+        return copy();
+    }
+
+    // Copy like snapshot() that leaves the dirty flag alone, for readers that don't write the chunk back
+    synchronized ChunkActivityInfo copy() {
+        var copy = new ChunkActivityInfo();
+        copy.players = Arrays.copyOf(players, size);
+        copy.times = Arrays.copyOf(times, size);
+        copy.blocks = blocks != null ? Arrays.copyOf(blocks, size) : null;
+        copy.broken = broken != null ? Arrays.copyOf(broken, size) : null;
+        copy.size = size;
+        copy.total = total;
+        copy.visits = visits;
+        copy.firstSeen = firstSeen;
+        copy.lastSeen = lastSeen;
+        copy.history = history != null ? history.copy() : null;
+        copy.initialHeightmap = initialHeightmap;
+        return copy;
+    }
+
+    // Adds another copy's counters to this one. The initial heightmap is taken from the other copy if it has one,
+    // since that one was recorded first.
+    synchronized void merge(ChunkActivityInfo other) {
+        var snapshot = other.snapshot();
+        for (int i = 0; i < snapshot.size; i++) {
+            int slot = slot(snapshot.players[i]);
+            times[slot] += snapshot.times[i];
+            addTotal(snapshot.times[i]);
+
+            if (snapshot.blocks != null && snapshot.blocks[i] != 0) {
+                if (blocks == null)
+                    blocks = new int[players.length];
+
+                blocks[slot] += snapshot.blocks[i];
+            }
+
+            if (snapshot.broken != null && snapshot.broken[i] != 0) {
+                if (broken == null)
+                    broken = new int[players.length];
+
+                broken[slot] += snapshot.broken[i];
+            }
         }
+
+        visits += snapshot.visits;
+        seen(Integer.toUnsignedLong(snapshot.firstSeen));
+        seen(Integer.toUnsignedLong(snapshot.lastSeen));
+
+        if (snapshot.history != null) {
+            if (history == null)
+                history = snapshot.history;
+            else
+                history.merge(snapshot.history);
+        }
+
+        if (snapshot.initialHeightmap != null)
+            initialHeightmap = snapshot.initialHeightmap;
+    }
+
+    // Heightmap of the chunk when it was first visited. May read from disk for chunks whose heightmap was moved to a
+    // HeightmapStore, so avoid calling this in a loop on the server thread.
+    public long[] getInitialHeightmap() {
+        var heightmap = initialHeightmap;
+        if (heightmap != null)
+            return heightmap;
+
+        var region = this.region;
+        return region != null ? region.getStoredHeightmap(this) : null;
+    }
+
+    // The heightmap held in memory, without looking in the HeightmapStore
+    synchronized long[] inlineHeightmap() {
+        return initialHeightmap;
+    }
+
+    synchronized void setHeightmapIfAbsent(long[] heightmap) {
+        if (initialHeightmap == null)
+            initialHeightmap = heightmap;
+    }
+
+    // Hands the heightmap held in memory over to the caller and forgets it
+    synchronized long[] takeHeightmap() {
+        var heightmap = initialHeightmap;
+        initialHeightmap = null;
+        return heightmap;
     }
 
     // Update player time in the chunk
     public void updatePlayerTime(UUID player) {
-        playerTimeMap.merge(player, 1L, Long::sum); // Increment by 1 second per tick
+        updatePlayerTime(PlayerIndex.indexOf(player), 1L); // Increment by 1 second per tick
+    }
+
+    public synchronized void updatePlayerTime(int player, long seconds) {
+        int i = slot(player);
+        times[i] += seconds;
+        addTotal(seconds);
+        markDirty();
+    }
+
+    // Adds seconds[i] for players[i], for i from start up to end, under a single lock
+    public void addPlayerTimes(int[] players, long[] seconds, int start, int end) {
+        addActivity(players, seconds, start, end, 0, 0L);
+    }
+
+    /**
+     * Adds player times like addPlayerTimes, plus the given number of visits. If timestamp (in epoch seconds) isn't 0,
+     * it's also recorded as a time a player was seen here, and the time is added to the history of that day.
+     */
+    public synchronized void addActivity(int[] players, long[] seconds, int start, int end, int visits, long timestamp) {
+        long added = 0;
+        for (int i = start; i < end; i++) {
+            int slot = slot(players[i]);
+            times[slot] += seconds[i];
+            addTotal(seconds[i]);
+            added += seconds[i];
+        }
+
+        this.visits += visits;
+        if (timestamp != 0) {
+            seen(timestamp);
+
+            if (added != 0 && ActivityHistory.isEnabled()) {
+                if (history == null)
+                    history = new ActivityHistory();
+
+                history.add(ActivityHistory.day(timestamp), added);
+            }
+        }
+
+        if (end > start || visits != 0)
+            markDirty();
+    }
+
+    public synchronized int getVisitCount() {
+        return visits;
+    }
+
+    // Epoch second a player was first seen here, or 0 if that was before visits were tracked
+    public synchronized long getFirstSeen() {
+        return Integer.toUnsignedLong(firstSeen);
+    }
+
+    // Epoch second a player was last seen here, or 0 if that was before visits were tracked
+    public synchronized long getLastSeen() {
+        return Integer.toUnsignedLong(lastSeen);
+    }
+
+    /**
+     * Seconds spent here in the given number of days up to and including today. 0 for chunks without a history, see
+     * hasHistory(). Only time credited while Activity History was on is counted.
+     */
+    public long getRecentTime(int days) {
+        return getRecentTime(days, System.currentTimeMillis() / 1000);
+    }
+
+    public synchronized long getRecentTime(int days, long now) {
+        return history != null ? history.getTime(days, now) : 0L;
+    }
+
+    public synchronized boolean hasHistory() {
+        return history != null;
+    }
+
+    private void seen(long timestamp) {
+        if (timestamp == 0)
+            return;
+
+        if (firstSeen == 0 || Long.compareUnsigned(timestamp, Integer.toUnsignedLong(firstSeen)) < 0)
+            firstSeen = (int) timestamp;
+        if (Long.compareUnsigned(timestamp, Integer.toUnsignedLong(lastSeen)) > 0)
+            lastSeen = (int) timestamp;
     }
 
     public Long getPlayerTime(UUID player) {
-        return playerTimeMap.getOrDefault(player, 0L);
+        return getPlayerTime(PlayerIndex.find(player));
+    }
+
+    public synchronized long getPlayerTime(int player) {
+        int i = player == -1 ? -1 : find(player);
+        return i == -1 ? 0L : times[i];
+    }
+
+    public long getTotalTime() {
+        return total;
+    }
+
+    // Called with the lock held. Keeps the region's running total in step with this chunk's.
+    private void addTotal(long seconds) {
+        total += seconds;
+
+        var region = this.region;
+        if (region != null)
+            region.addTime(seconds);
     }
 
     // Increment block placement counter for a player
     public void incrementBlocksPlaced(UUID player) {
-        blocksPlacedMap.merge(player, 1, Integer::sum);
+        addBlocksPlaced(PlayerIndex.indexOf(player), 1);
     }
-}
 
+    public synchronized void addBlocksPlaced(int player, int count) {
+        int i = slot(player);
+        if (blocks == null)
+            blocks = new int[players.length];
+
+        blocks[i] += count;
+        markDirty();
+    }
+
+    public synchronized void addBlocksBroken(int player, int count) {
+        int i = slot(player);
+        if (broken == null)
+            broken = new int[players.length];
+
+        broken[i] += count;
+        markDirty();
+    }
+
+    // Adds blocks placed and broken by a player under a single lock
+    public synchronized void addBlockChanges(int player, int placed, int removed) {
+        if (placed != 0)
+            addBlocksPlaced(player, placed);
+        if (removed != 0)
+            addBlocksBroken(player, removed);
+    }
+
+    public synchronized int getTotalBlocksBroken() {
+        int total = 0;
+        for (int i = 0; broken != null && i < size; i++)
+            total += broken[i];
+
+        return total;
+    }
+
+    public synchronized int getBlocksBroken(int player) {
+        int i = player == -1 ? -1 : find(player);
+        return i == -1 || broken == null ? 0 : broken[i];
+    }
+
+    public synchronized int getTotalBlocksPlaced() {
+        int total = 0;
+        for (int i = 0; blocks != null && i < size; i++)
+            total += blocks[i];
+
+        return total;
+    }
+
+    public synchronized int getBlocksPlaced(int player) {
+        int i = player == -1 ? -1 : find(player);
+        return i == -1 || blocks == null ? 0 : blocks[i];
+    }
+
+    // Read-only copy of the time spent here per player, in seconds
+    public synchronized Map<UUID, Long> getPlayerTimes() {
+        var ret = new HashMap<UUID, Long>(size);
+        for (int i = 0; i < size; i++) {
+            if (times[i] != 0)
+                ret.put(PlayerIndex.get(players[i]), times[i]);
+        }
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    // Read-only copy of the blocks placed here per player
+    public synchronized Map<UUID, Integer> getBlocksPlacedByPlayer() {
+        var ret = new HashMap<UUID, Integer>(size);
+        for (int i = 0; blocks != null && i < size; i++) {
+            if (blocks[i] != 0)
+                ret.put(PlayerIndex.get(players[i]), blocks[i]);
+        }
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    // Read-only copy of the blocks broken here per player
+    public synchronized Map<UUID, Integer> getBlocksBrokenByPlayer() {
+        var ret = new HashMap<UUID, Integer>(size);
+        for (int i = 0; broken != null && i < size; i++) {
+            if (broken[i] != 0)
+                ret.put(PlayerIndex.get(players[i]), broken[i]);
+        }
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /**
+     * Copy of the time spent here per player, in seconds, with the type this getter had when the chunk kept its data
+     * in this map. Changes to the copy don't reach the chunk; use updatePlayerTime or addActivity instead.
+     *
+     * @deprecated Use getPlayerTimes, which says that it's read-only.
+     */
+    @Deprecated
+    public ConcurrentHashMap<UUID, Long> getPlayerTimeMap() {
+        return new ConcurrentHashMap<>(getPlayerTimes());
+    }
+
+    /**
+     * Copy of the blocks placed here per player, with the type this getter had when the chunk kept its data in this
+     * map. Changes to the copy don't reach the chunk; use incrementBlocksPlaced or addBlocksPlaced instead.
+     *
+     * @deprecated Use getBlocksPlacedByPlayer, which says that it's read-only.
+     */
+    @Deprecated
+    public ConcurrentHashMap<UUID, Integer> getBlocksPlacedMap() {
+        return new ConcurrentHashMap<>(getBlocksPlacedByPlayer());
+    }
+
+    // Rough heap footprint in bytes, assuming compressed references
+    public synchronized long estimateMemory() {
+        long bytes = 64L + 16L + 4L * players.length + 16L + 8L * times.length;
+        if (blocks != null)
+            bytes += 16L + 4L * blocks.length;
+        if (broken != null)
+            bytes += 16L + 4L * broken.length;
+        if (initialHeightmap != null)
+            bytes += 16L + 8L * initialHeightmap.length;
+        if (history != null)
+            bytes += history.estimateMemory();
+
+        return bytes;
+    }
+
+    public synchronized int getPlayerCount() {
+        return size;
+    }
+
+    public synchronized boolean hasPlayer(int player) {
+        return find(player) != -1;
+    }
+
+    /**
+     * Drops the player's time and blocks from this chunk, as if they had never been here. Visits, first and last seen
+     * and the history aren't kept per player, so they stay. Returns whether the player had anything here.
+     */
+    synchronized boolean removePlayer(int player) {
+        int i = find(player);
+        if (i == -1)
+            return false;
+
+        addTotal(-times[i]);
+
+        int tail = size - i - 1;
+        System.arraycopy(players, i + 1, players, i, tail);
+        System.arraycopy(times, i + 1, times, i, tail);
+        if (blocks != null)
+            System.arraycopy(blocks, i + 1, blocks, i, tail);
+        if (broken != null)
+            System.arraycopy(broken, i + 1, broken, i, tail);
+
+        // New slots are expected to start out at zero
+        size--;
+        times[size] = 0;
+        if (blocks != null)
+            blocks[size] = 0;
+        if (broken != null)
+            broken[size] = 0;
+
+        markDirty();
+        return true;
+    }
+
+    synchronized void forEachPlayer(IntConsumer consumer) {
+        for (int i = 0; i < size; i++)
+            consumer.accept(players[i]);
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void markDirty() {
+        var region = this.region;
+        if (region != null)
+            region.changed();
+
+        if (dirty)
+            return;
+
+        dirty = true;
+        if (region != null)
+            region.markDirty();
+    }
+
+    private int find(int player) {
+        for (int i = 0; i < size; i++) {
+            if (players[i] == player)
+                return i;
+        }
+
+        return -1;
+    }
+
+    // Slot of the given player, appending one and growing the arrays if they aren't tracked here yet
+    private int slot(int player) {
+        int i = find(player);
+        if (i != -1)
+            return i;
+
+        if (size == players.length) {
+            int capacity = Math.max(1, size * 2);
+            players = Arrays.copyOf(players, capacity);
+            times = Arrays.copyOf(times, capacity);
+            if (blocks != null)
+                blocks = Arrays.copyOf(blocks, capacity);
+            if (broken != null)
+                broken = Arrays.copyOf(broken, capacity);
+        }
+
+        players[size] = player;
+
+        var region = this.region;
+        if (region != null)
+            region.playerAdded(regionIndex, player);
+
+        return size++;
+    }
+
+    private int countNonZero(long[] values) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != 0)
+                count++;
+        }
+
+        return count;
+    }
+
+    private int countNonZero(int[] values) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != 0)
+                count++;
+        }
+
+        return count;
+    }
+}
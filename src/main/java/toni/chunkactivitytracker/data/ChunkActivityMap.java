@@ -1,7 +1,9 @@
 package toni.chunkactivitytracker.data;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import lombok.Getter;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.resources.ResourceKey;
@@ -10,16 +12,20 @@ import net.minecraft.world.level.ChunkPos;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.function.LongConsumer;
 
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.storage.LevelResource;
 import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+import toni.chunkactivitytracker.metrics.Counter;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
 
 #if mc >= 211
 import net.minecraft.network.codec.StreamCodec;
@@ -28,7 +34,8 @@ import toni.lib.networking.codecs.StreamCodec;
 #endif
 
 public class ChunkActivityMap implements Serializable {
-    public static ConcurrentHashMap<ResourceKey<Level>, ChunkActivityMap> instances = new ConcurrentHashMap<>();
+    // Loaded dimensions. Only changed through getOrCreateChunkMap, register and clear, so readers can't swap maps out.
+    private static final ConcurrentHashMap<ResourceKey<Level>, ChunkActivityMap> instances = new ConcurrentHashMap<>();
 
     public static StreamCodec<ByteBuf, ChunkActivityMap> CODEC = new StreamCodec<>() {
         public ChunkActivityMap decode(ByteBuf buffer) {
@@ -40,33 +47,83 @@ public class ChunkActivityMap implements Serializable {
 
         public void encode(ByteBuf buffer, ChunkActivityMap map) {
             FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
-            buf.writeMap(map.chunks, FriendlyByteBuf::writeLong, (a, b) -> ChunkActivityInfo.CODEC.encode(a, b));
+            buf.writeMap(map.getChunks(), FriendlyByteBuf::writeLong, (a, b) -> ChunkActivityInfo.CODEC.encode(a, b));
             buf.writeUtf(map.dimension);
         }
     };
 
-    @Getter private final ConcurrentHashMap<Long, ChunkActivityInfo> chunks;
+    // Resident regions keyed by region position, in least-recently-used order. Maps backed by a save directory page
+    // regions in on first access and write dirty regions back before evicting them once the configured limit is reached.
+    private final Long2ObjectLinkedOpenHashMap<ChunkActivityRegion> regions = new Long2ObjectLinkedOpenHashMap<>();
+    // Last region handed out. Players mostly stay in the same region between lookups, so this skips the lock entirely.
+    private volatile ChunkActivityRegion lastRegion;
+
+    private final Set<ChunkActivityRegion> dirtyRegions = ConcurrentHashMap.newKeySet();
+    // Region snapshots queued for writing. Reloading a region checks here first, since the file on disk may still be stale.
+    private final ConcurrentHashMap<Long, ChunkActivityRegion> pendingWrites = new ConcurrentHashMap<>();
+    private final boolean paged;
+    private volatile Path regionDir;
+    private volatile RegionStorage storage;
+    // Heightmaps of paged maps are kept on disk instead of in each chunk's info
+    private HeightmapStore heightmaps;
+    // Totals of the regions written to disk, so area queries don't need to page regions in
+    private RegionSummaryIndex summary;
+    // Chunks each player has data in, so player queries and erasure don't need to look at every region
+    private PlayerChunkIndex playerChunks;
+    // Activity added since the last save, so it survives a crash. Only paged maps have one.
+    private WriteAheadLog wal;
+    // Last snapshot handed out by getSnapshot, and the lock that keeps two readers from publishing at once
+    private volatile ActivitySnapshot snapshot;
+    private final Object publishLock = new Object();
+    // Set once a region write fails. The log is kept from then on, so the lost region is recovered on the next start.
+    private volatile boolean writeFailed;
     @Getter private String dimension;
 
     public static void clear() {
+        instances.values().forEach(ChunkActivityMap::close);
         instances.clear();
         ChunkActivityTracker.LOGGER.info("Server stopping, clearing chunk activity tracking map.");
     }
 
-    public static ChunkActivityMap getOrCreateChunkMap(ResourceKey<Level> level) {
-        var map = instances.getOrDefault(level, null);
+    // Stops the log and closes the region files, after which the map can't be used. Save and flush the IO thread first.
+    public void close() {
+        if (wal != null)
+            wal.close();
+
+        var storage = this.storage;
+        if (storage != null)
+            storage.close();
+    }
+
+    // The dimension's map if it has been loaded, or null. Unlike getOrCreateChunkMap this never loads one.
+    public static ChunkActivityMap getChunkMap(ResourceKey<Level> level) {
+        return instances.get(level);
+    }
+
+    // Read-only view of the loaded maps
+    public static Collection<ChunkActivityMap> getChunkMaps() {
+        return Collections.unmodifiableCollection(instances.values());
+    }
+
+    // Makes a map built outside of a running server, such as in tools or benchmarks, the one used for the dimension.
+    // Pass null to remove it again.
+    public static void register(ResourceKey<Level> level, ChunkActivityMap map) {
         if (map != null)
-            return map;
+            instances.put(level, map);
+        else
+            instances.remove(level);
+    }
 
-        var ret = ChunkActivityMap.load(level);
-        ret.save();
-        instances.put(level, ret);
-        return ret;
+    // Loaded at most once per dimension, even if several threads ask for it at the same time, since each map has its
+    // own log and IO tasks on the dimension's directory
+    public static ChunkActivityMap getOrCreateChunkMap(ResourceKey<Level> level) {
+        return instances.computeIfAbsent(level, ChunkActivityMap::load);
     }
 
+    // Null if the dimension hasn't been loaded or nothing is recorded for the chunk
     public static ChunkActivityInfo getChunkInfo(ResourceKey<Level> level, ChunkPos chunkPos) {
-        var map = ChunkActivityMap.getOrCreateChunkMap(level);
-        return map.chunks.getOrDefault(chunkPos.toLong(), null);
+        var map = getChunkMap(level);
+        return map != null ? map.getChunk(chunkPos.toLong()) : null;
     }
 
     public static ChunkActivityInfo getOrCreateChunkInfo(LevelChunk chunk) {
@@ -76,94 +133,1012 @@ public class ChunkActivityMap implements Serializable {
             return chunkInfo;
 
         var map = ChunkActivityMap.getOrCreateChunkMap(dimension);
-        chunkInfo = new ChunkActivityInfo(chunk);
-        map.chunks.put(chunk.getPos().toLong(), chunkInfo);
-        return chunkInfo;
+        return map.putChunk(chunk.getPos().toLong(), new ChunkActivityInfo(chunk));
     }
 
     public static ChunkActivityInfo createChunkInfo(ResourceKey<Level> dimension, LevelChunk chunk) {
         var map = ChunkActivityMap.getOrCreateChunkMap(dimension);
-        var chunkInfo = new ChunkActivityInfo(chunk);
-        map.chunks.put(chunk.getPos().toLong(), chunkInfo);
-        return chunkInfo;
+        return map.putChunk(chunk.getPos().toLong(), new ChunkActivityInfo(chunk));
     }
 
     public static ChunkActivityInfo createChunkInfo(ResourceKey<Level> level, ChunkPos chunk) {
         var map = ChunkActivityMap.getOrCreateChunkMap(level);
-        var chunkInfo = new ChunkActivityInfo(new HashMap<>(), new HashMap<>(), null);
-        map.chunks.put(chunk.toLong(), chunkInfo);
-        return chunkInfo;
+        return map.putChunk(chunk.toLong(), new ChunkActivityInfo(new HashMap<>(), new HashMap<>(), null));
     }
 
 
+    // In-memory map, e.g. one decoded from a buffer. Never reads from or evicts to disk on its own.
     public ChunkActivityMap(Map<Long, ChunkActivityInfo> chunks, String dimension) {
-        this.chunks = chunks != null ? new ConcurrentHashMap<>(chunks) : new ConcurrentHashMap<>();
+        this(dimension, false);
+
+        if (chunks != null) {
+            chunks.forEach((pos, info) -> {
+                getRegion(pos).load(ChunkActivityRegion.localIndex(pos), info);
+                info.forEachPlayer(player -> playerChunks.add(player, pos));
+            });
+        }
+    }
+
+    // The player index only lives in memory until create() gives the map a directory
+    private ChunkActivityMap(String dimension, boolean paged) {
         this.dimension = dimension;
+        this.paged = paged;
+        this.playerChunks = new PlayerChunkIndex(dimension, null, null);
     }
 
-    public void save() {
-        long startTime = System.currentTimeMillis();
+    /**
+     * Adds activity to a number of chunks, creating the ones that aren't tracked yet without a heightmap and passing
+     * them to newChunks. Chunk i gets players and seconds from offsets[i] up to offsets[i + 1], plus visits[i]. The
+     * activity is written to the log first if the map has one.
+     */
+    public void addActivity(long[] chunks, int[] offsets, int[] players, long[] seconds, int[] visits, long timestamp, LongConsumer newChunks) {
+        var log = wal;
+        ChunkActivityRegion pinned = null;
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                long pos = chunks[i];
+                pinned = pinRegion(pinned, pos);
+                var info = getOrCreateChunk(pos, newChunks);
+                if (log != null)
+                    log.addActivity(pos, info, players, seconds, offsets[i], offsets[i + 1], visits[i], timestamp);
+                else
+                    info.addActivity(players, seconds, offsets[i], offsets[i + 1], visits[i], timestamp);
+            }
+        } finally {
+            if (pinned != null)
+                pinned.unpin();
+        }
+    }
 
-        Path filePath = datafile(dimension);
-        if (filePath == null) {
-            ChunkActivityTracker.LOGGER.error("Could not get chunk activity data location!");
+    /**
+     * Adds the first count entries of blocks placed and broken, entry i being by players[i] in chunks[i]. Chunks that
+     * aren't tracked yet are created like in addActivity.
+     */
+    public void addBlockChanges(long[] chunks, int[] players, int[] placed, int[] broken, int count, LongConsumer newChunks) {
+        var log = wal;
+        ChunkActivityRegion pinned = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                long pos = chunks[i];
+                pinned = pinRegion(pinned, pos);
+                var info = getOrCreateChunk(pos, newChunks);
+                if (log != null)
+                    log.addBlockChanges(pos, info, players[i], placed[i], broken[i]);
+                else
+                    info.addBlockChanges(players[i], placed[i], broken[i]);
+            }
+        } finally {
+            if (pinned != null)
+                pinned.unpin();
+        }
+    }
+
+    /**
+     * Pins the region of the chunk so it can't be evicted while it's being updated, unpinning the given one if it's
+     * another region. Batches may be applied off the server thread while the server thread pages other regions in, and
+     * a chunk whose region was evicted mid-update would take the change with it. Pinned under the regions lock, so the
+     * region is still resident once this returns.
+     */
+    private ChunkActivityRegion pinRegion(ChunkActivityRegion pinned, long chunkPos) {
+        long regionPos = ChunkActivityRegion.regionKey(chunkPos);
+        if (pinned != null && pinned.getPos() == regionPos)
+            return pinned;
+
+        if (pinned != null)
+            pinned.unpin();
+
+        synchronized (regions) {
+            var region = getRegion(chunkPos);
+            region.pin();
+            return region;
+        }
+    }
+
+    private ChunkActivityInfo getOrCreateChunk(long chunkPos, LongConsumer newChunks) {
+        var info = getChunk(chunkPos);
+        if (info != null)
+            return info;
+
+        var created = new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), null);
+        info = putChunk(chunkPos, created);
+        if (info == created)
+            newChunks.accept(chunkPos);
+
+        return info;
+    }
+
+    public ChunkActivityInfo getChunk(long chunkPos) {
+        long start = TrackerMetrics.start();
+        var info = getRegion(chunkPos).get(ChunkActivityRegion.localIndex(chunkPos));
+        TrackerMetrics.end(Phase.LOOKUP, start);
+        return info;
+    }
+
+    // Returns the chunk info that ends up stored, which is an existing one if another thread got there first
+    public ChunkActivityInfo putChunk(long chunkPos, ChunkActivityInfo info) {
+        var stored = getRegion(chunkPos).put(ChunkActivityRegion.localIndex(chunkPos), info);
+        if (stored == info)
+            TrackerMetrics.count(Counter.CHUNKS_CREATED);
+
+        if (stored == info && heightmaps != null) {
+            var heightmap = info.takeHeightmap();
+            if (heightmap != null)
+                heightmaps.capture(chunkPos, heightmap);
+        }
+
+        return stored;
+    }
+
+    // Records the initial heightmap of a chunk that was added without one. Does nothing if it already has one.
+    public void captureHeightmap(long chunkPos, long[] heightmap) {
+        if (heightmaps != null) {
+            heightmaps.capture(chunkPos, heightmap);
+            return;
+        }
+
+        var info = getChunk(chunkPos);
+        if (info != null)
+            info.setHeightmapIfAbsent(heightmap);
+    }
+
+    // Copy of every resident chunk keyed by ChunkPos.toLong(). The values are the live objects.
+    public Map<Long, ChunkActivityInfo> getChunks() {
+        var ret = new HashMap<Long, ChunkActivityInfo>();
+        synchronized (regions) {
+            regions.values().forEach(region -> region.forEach(ret::put));
+        }
+        return ret;
+    }
+
+    public int size() {
+        synchronized (regions) {
+            return regions.values().stream().mapToInt(ChunkActivityRegion::getCount).sum();
+        }
+    }
+
+    public int loadedRegionCount() {
+        synchronized (regions) {
+            return regions.size();
+        }
+    }
+
+    public int getDirtyRegionCount() {
+        return dirtyRegions.size();
+    }
+
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    // Regions written to disk as far as the summary knows, or 0 for maps without one
+    public int getStoredRegionCount() {
+        return summary != null ? summary.size() : 0;
+    }
+
+    // Rough heap footprint in bytes of the resident regions. Walks every resident chunk.
+    public long estimateMemory() {
+        ChunkActivityRegion[] resident;
+        synchronized (regions) {
+            resident = regions.values().toArray(new ChunkActivityRegion[0]);
+        }
+
+        long bytes = 0;
+        for (var region : resident)
+            bytes += region.estimateMemory();
+
+        return bytes;
+    }
+
+    // Resident region at the given region position, or null. Unlike getRegion this never pages a region in.
+    private ChunkActivityRegion getResidentRegion(long regionPos) {
+        var cached = lastRegion;
+        if (cached != null && cached.getPos() == regionPos)
+            return cached;
+
+        synchronized (regions) {
+            return regions.get(regionPos);
+        }
+    }
+
+    /**
+     * Region at the given region position once it's fully in memory, or null while it's still being read. Pages the
+     * region in if it isn't resident, so asking again later finds it. Meant for the server thread.
+     */
+    public ChunkActivityRegion getLoadedRegion(long regionPos) {
+        var region = getRegion(ChunkPos.asLong(ChunkPos.getX(regionPos) << ChunkActivityRegion.SHIFT, ChunkPos.getZ(regionPos) << ChunkActivityRegion.SHIFT));
+        return region.isLoading() ? null : region;
+    }
+
+    private ChunkActivityRegion getRegion(long chunkPos) {
+        long regionPos = ChunkActivityRegion.regionKey(chunkPos);
+
+        var cached = lastRegion;
+        if (cached != null && cached.getPos() == regionPos)
+            return cached;
+
+        synchronized (regions) {
+            var region = regions.getAndMoveToLast(regionPos);
+            if (region == null) {
+                region = new ChunkActivityRegion(this, regionPos);
+                region.heightmaps = heightmaps;
+                regions.putAndMoveToLast(regionPos, region);
+
+                if (paged) {
+                    queueLoad(region);
+                    evictOverflow();
+                }
+            }
+
+            lastRegion = region;
+            return region;
+        }
+    }
+
+    // Called with the regions lock held
+    private void evictOverflow() {
+        int limit = AllConfigs.server(config -> config.maxLoadedRegions, 4096);
+        if (regions.size() <= limit)
             return;
+
+        // Hits on lastRegion don't update the LRU order, so make sure it isn't mistaken for the eldest entry
+        var hot = lastRegion;
+        if (hot != null)
+            regions.getAndMoveToLast(hot.getPos());
+
+        // Regions still waiting on their file are skipped, since saving them now would overwrite it with partial data,
+        // and so are regions with updates in flight
+        int attempts = regions.size();
+        while (regions.size() > limit && attempts-- > 0) {
+            var eldest = regions.removeFirst();
+            if (eldest.isLoading() || eldest.isPinned())
+                regions.putAndMoveToLast(eldest.getPos(), eldest);
+            else
+                evict(eldest);
         }
+    }
+
+    // Reads the region on the IO thread without blocking the caller. Until it's done the region starts out empty and
+    // collects new activity, which is merged with the data from disk once it arrives.
+    private void queueLoad(ChunkActivityRegion region) {
+        region.setLoading(true);
 
-        try (FileOutputStream fileOut = new FileOutputStream(filePath.toFile()); GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut)) {
-            ByteBuf buffer = Unpooled.buffer();
+        ChunkActivityIO.execute(() -> {
+            long start = TrackerMetrics.start();
+            var log = wal;
+            boolean logged = false;
             try {
-                CODEC.encode(buffer, this);
-                gzipOut.write(buffer.array(), buffer.readerIndex(), buffer.readableBytes());
-                gzipOut.flush();
+                var loaded = readRegion(region.getPos(), true);
+
+                // Records of the last run's log that couldn't be replayed on startup are added now, and saved with
+                // the region
+                var withLog = log != null ? log.applyUnapplied(region.getPos(), loaded) : null;
+                if (withLog != null) {
+                    loaded = withLog;
+                    logged = true;
+                    region.markDirty();
+                }
+
+                if (loaded == null)
+                    return;
+
+                TrackerMetrics.count(Counter.REGIONS_LOADED);
+                playerChunks.addRegion(loaded);
+
+                // Files written before the heightmap store existed have heightmaps inline. They're moved over, and
+                // the region is rewritten without them on the next save.
+                if (moveHeightmaps(loaded))
+                    region.markDirty();
+
+                region.merge(loaded);
             } finally {
-                buffer.release();
+                region.setLoading(false);
+                if (logged)
+                    log.finishApplying(region.getPos());
+
+                TrackerMetrics.end(Phase.LOAD, start);
+            }
+        });
+    }
+
+    private boolean moveHeightmaps(ChunkActivityRegion loaded) {
+        if (heightmaps == null)
+            return false;
+
+        var moved = new boolean[1];
+        loaded.forEach((pos, info) -> {
+            var heightmap = info.takeHeightmap();
+            if (heightmap != null) {
+                heightmaps.capture(pos, heightmap);
+                moved[0] = true;
             }
+        });
+
+        return moved[0];
+    }
+
+    private ChunkActivityRegion readRegion(long regionPos) {
+        return readRegion(regionPos, false);
+    }
+
+    // For replaying the log, which writes the region back. Unlike readRegion, a region that is stored but can't be read
+    // for any other reason than being corrupt is an error, so replay doesn't write over it.
+    private ChunkActivityRegion readRegionForReplay(long regionPos) throws IOException {
+        try {
+            return storage.read(regionPos);
+        } catch (CorruptRegionException e) {
+            quarantine(storage, regionPos, e);
+            return null;
+        }
+    }
+
+    // A corrupt region is read as empty. On the IO thread its file is also moved aside, since the region is about to
+    // be written over; other threads leave that to the next load.
+    private ChunkActivityRegion readRegion(long regionPos, boolean onIOThread) {
+        var pending = pendingWrites.get(regionPos);
+        if (pending != null)
+            return pending.copy();
+
+        var storage = this.storage;
+        if (storage == null)
+            return null;
+
+        try {
+            return storage.read(regionPos);
+        } catch (CorruptRegionException e) {
+            if (onIOThread)
+                quarantine(storage, regionPos, e);
+            else
+                ChunkActivityTracker.LOGGER.error("Chunk activity region " + describe(regionPos) + " is corrupt: " + e.getMessage());
+
+            return null;
         } catch (Exception e) {
-            ChunkActivityTracker.LOGGER.error("Error when saving chunk activity info: " + e.getMessage());
+            ChunkActivityTracker.LOGGER.error("Error when loading chunk activity region " + describe(regionPos) + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void quarantine(RegionStorage storage, long regionPos, CorruptRegionException cause) {
+        try {
+            var moved = storage.moveAside(regionPos, ".corrupt");
+            ChunkActivityTracker.LOGGER.error("Chunk activity region " + describe(regionPos) + " is corrupt, moved it to '" + moved + "' and starting it over: " + cause.getMessage());
+        } catch (IOException e) {
+            ChunkActivityTracker.LOGGER.error("Chunk activity region " + describe(regionPos) + " is corrupt and could not be moved aside: " + cause.getMessage() + ", " + e.getMessage());
         }
+    }
 
-        long endTime = System.currentTimeMillis();
-        ChunkActivityTracker.LOGGER.info("Saving data for " + chunks.size() + " chunks for dimension '" + dimension + "' took " + (endTime - startTime) + " milliseconds");
+    // Called with the regions lock held, after the region has been dropped from the map
+    private void evict(ChunkActivityRegion region) {
+        dirtyRegions.remove(region);
+        region.owner = null;
+        TrackerMetrics.count(Counter.REGIONS_EVICTED);
+
+        var storage = getStorage();
+        if (region.isDirty() && storage != null)
+            queueWrite(storage, region.snapshot());
     }
 
-    public static ChunkActivityMap load(ResourceKey<Level> dimension) {
-        long startTime = System.currentTimeMillis();
+    private void queueWrite(RegionStorage storage, ChunkActivityRegion snapshot) {
+        pendingWrites.put(snapshot.getPos(), snapshot);
 
-        var dimPath = dimension.location().getPath();
-        Path filePath = datafile(dimPath);
+        ChunkActivityIO.submitSave(dimension + "/" + snapshot.getPos(), () -> {
+            writeRegion(storage, snapshot);
+            pendingWrites.remove(snapshot.getPos(), snapshot);
+        });
+
+        if (summary != null) {
+            summary.update(snapshot.getPos(), snapshot.getTotalTime(), snapshot.getCount());
+            summary.queueSave();
+        }
+
+        playerChunks.queueSave();
+    }
+
+    /**
+     * Total time of every chunk from minX, minZ to maxX, maxZ, inclusive. Regions that lie completely inside the area
+     * are answered from their running totals and the ones along its edges from their summed-area tables, so the cost
+     * follows the number of regions the area touches rather than the number of chunks. The edges of regions that
+     * aren't resident are read from disk on the calling thread, without paging the region in.
+     */
+    public long getTotalTimeInArea(int minX, int minZ, int maxX, int maxZ) {
+        int shift = ChunkActivityRegion.SHIFT;
+        int mask = ChunkActivityRegion.MASK;
+
+        long total = 0;
+        for (int regionZ = minZ >> shift; regionZ <= maxZ >> shift; regionZ++) {
+            for (int regionX = minX >> shift; regionX <= maxX >> shift; regionX++) {
+                long regionPos = ChunkPos.asLong(regionX, regionZ);
+                int x0 = Math.max(minX - (regionX << shift), 0);
+                int z0 = Math.max(minZ - (regionZ << shift), 0);
+                int x1 = Math.min(maxX - (regionX << shift), mask);
+                int z1 = Math.min(maxZ - (regionZ << shift), mask);
+
+                if (x0 == 0 && z0 == 0 && x1 == mask && z1 == mask) {
+                    total += getRegionTotal(regionPos).totalTime();
+                    continue;
+                }
+
+                var area = getRegionArea(regionPos);
+                if (area != null)
+                    total += area.get(x0, z0, x1, z1);
+            }
+        }
 
-        if (filePath == null || !Files.exists(filePath)) {
-            System.out.println("No saved ChunkActivityMap found. Creating a new one!");
-            var ret = new ChunkActivityMap(new HashMap<>(), dimPath);
-            instances.put(dimension, ret);
-            return ret;
+        return total;
+    }
+
+    /**
+     * Time spent in every chunk from minX, minZ to maxX, maxZ, inclusive, in the given number of days up to and
+     * including today. Unlike the lifetime totals there's nothing to answer this per region, so every chunk in the area
+     * is looked at and the regions it touches are paged in. Keep the area small on the server thread.
+     */
+    public long getRecentTimeInArea(int minX, int minZ, int maxX, int maxZ, int days) {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int x = minX; x <= maxX; x++) {
+                var info = getChunk(ChunkPos.asLong(x, z));
+                if (info != null)
+                    total += info.getRecentTime(days, now);
+            }
         }
 
-        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(Files.readAllBytes(filePath)); GZIPInputStream gzipIn = new GZIPInputStream(byteIn)) {
-            byte[] decompressedData = gzipIn.readAllBytes();
-            ByteBuf buffer = Unpooled.wrappedBuffer(decompressedData);
+        return total;
+    }
+
+    /**
+     * Total time of every chunk within radius chunks of the center, measured between chunk positions. Regions inside
+     * the circle are answered from their running totals, the ones it cuts through one row at a time.
+     */
+    public long getTotalTimeInRadius(int centerX, int centerZ, int radius) {
+        if (radius < 0)
+            return 0L;
+
+        int shift = ChunkActivityRegion.SHIFT;
+        int mask = ChunkActivityRegion.MASK;
+        long radiusSquared = (long) radius * radius;
+
+        long total = 0;
+        for (int regionZ = (centerZ - radius) >> shift; regionZ <= (centerZ + radius) >> shift; regionZ++) {
+            for (int regionX = (centerX - radius) >> shift; regionX <= (centerX + radius) >> shift; regionX++) {
+                long regionPos = ChunkPos.asLong(regionX, regionZ);
+                int baseX = regionX << shift;
+                int baseZ = regionZ << shift;
+
+                long farX = Math.max(Math.abs(baseX - centerX), Math.abs(baseX + mask - centerX));
+                long farZ = Math.max(Math.abs(baseZ - centerZ), Math.abs(baseZ + mask - centerZ));
+                if (farX * farX + farZ * farZ <= radiusSquared) {
+                    total += getRegionTotal(regionPos).totalTime();
+                    continue;
+                }
+
+                AreaTotal area = null;
+                for (int z = Math.max(baseZ, centerZ - radius); z <= Math.min(baseZ + mask, centerZ + radius); z++) {
+                    int halfWidth = halfWidth(radiusSquared - (long) (z - centerZ) * (z - centerZ));
+                    int x0 = Math.max(centerX - halfWidth, baseX);
+                    int x1 = Math.min(centerX + halfWidth, baseX + mask);
+                    if (x0 > x1)
+                        continue;
+
+                    if (area == null) {
+                        area = getRegionArea(regionPos);
+                        if (area == null)
+                            break;
+                    }
 
+                    total += area.get(x0 - baseX, z - baseZ, x1 - baseX, z - baseZ);
+                }
+            }
+        }
+
+        return total;
+    }
+
+    // Largest w with w * w <= value
+    private static int halfWidth(long value) {
+        long width = (long) Math.sqrt(value);
+        while (width * width > value)
+            width--;
+        while ((width + 1) * (width + 1) <= value)
+            width++;
+
+        return (int) width;
+    }
+
+    /**
+     * The count regions with the most recorded time, most active first. Only regions that have chunk data are ranked.
+     */
+    public List<RegionActivity> getMostActiveRegions(int count) {
+        return rankRegions(count, Comparator.comparingLong(RegionActivity::totalTime).thenComparingLong(RegionActivity::regionPos).reversed());
+    }
+
+    /**
+     * The count regions with the least recorded time, least active first. Only regions that have chunk data are ranked.
+     */
+    public List<RegionActivity> getLeastActiveRegions(int count) {
+        return rankRegions(count, Comparator.comparingLong(RegionActivity::totalTime).thenComparingLong(RegionActivity::regionPos));
+    }
+
+    // Keeps the best count regions in a heap ordered worst first, so ranking costs one pass over the region totals
+    private List<RegionActivity> rankRegions(int count, Comparator<RegionActivity> order) {
+        if (count <= 0)
+            return List.of();
+
+        var positions = new LongOpenHashSet();
+        if (summary != null)
+            summary.forEach(positions::add);
+
+        synchronized (regions) {
+            regions.values().forEach(region -> positions.add(region.getPos()));
+        }
+
+        var heap = new PriorityQueue<RegionActivity>(count + 1, order.reversed());
+        positions.forEach(regionPos -> {
+            var activity = getRegionTotal(regionPos);
+            if (activity.chunkCount() == 0)
+                return;
+
+            heap.add(activity);
+            if (heap.size() > count)
+                heap.poll();
+        });
+
+        var ranked = new ArrayList<>(heap);
+        ranked.sort(order);
+        return ranked;
+    }
+
+    /**
+     * Total time and chunk count of a region, from the resident region or the summary index, without reading the region.
+     * While a region is loading its resident part only holds what was recorded since, and the rest is still on disk.
+     */
+    public RegionActivity getRegionTotal(long regionPos) {
+        var region = getResidentRegion(regionPos);
+        if (region != null && !region.isLoading())
+            return new RegionActivity(regionPos, region.getTotalTime(), region.getCount());
+
+        long totalTime = summary != null ? summary.getTotalTime(regionPos) : 0L;
+        int chunkCount = summary != null ? summary.getChunkCount(regionPos) : 0;
+        if (region != null) {
+            totalTime += region.getTotalTime();
+            chunkCount += region.getCount();
+        }
+
+        return new RegionActivity(regionPos, totalTime, chunkCount);
+    }
+
+    // Per-chunk totals of a region, or null if there's no data for it. Reads the region from disk if it isn't resident.
+    private AreaTotal getRegionArea(long regionPos) {
+        var region = getResidentRegion(regionPos);
+        if (region != null && !region.isLoading())
+            return region::getTotalTime;
+
+        var stored = paged && (summary == null || summary.mayContain(regionPos)) ? readRegion(regionPos) : null;
+        if (stored == null)
+            return region != null ? region::getTotalTime : null;
+
+        if (region == null)
+            return stored::getTotalTime;
+
+        return (x0, z0, x1, z1) -> region.getTotalTime(x0, z0, x1, z1) + stored.getTotalTime(x0, z0, x1, z1);
+    }
+
+    /**
+     * Positions of every region that has data, whether it's resident, waiting to be written or only on disk. Lists
+     * the region directory on the calling thread.
+     */
+    public long[] getRegionPositions() {
+        var positions = new LongOpenHashSet();
+        synchronized (regions) {
+            regions.values().forEach(region -> {
+                if (region.getCount() > 0 || region.isLoading())
+                    positions.add(region.getPos());
+            });
+        }
+
+        pendingWrites.keySet().forEach(positions::add);
+
+        var storage = paged ? this.storage : null;
+        if (storage != null) {
             try {
-                ChunkActivityMap map = CODEC.decode(buffer);
-                System.out.println("ChunkActivityMap loaded successfully (decompressed).");
-                instances.put(dimension, map);
+                positions.addAll(LongArrayList.wrap(storage.list()));
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when listing chunk activity regions of dimension '" + dimension + "': " + e.getMessage());
+            }
+        }
 
-                map.dimension = dimPath;
+        return positions.toLongArray();
+    }
 
-                long endTime = System.currentTimeMillis();
-                ChunkActivityTracker.LOGGER.info("Loading data for " + map.chunks.size() + " chunks for filePath '" + filePath + "' took " + (endTime - startTime) + " milliseconds");
+    // Snapshot at most a second old, see getSnapshot(long)
+    public ActivitySnapshot getSnapshot() {
+        return getSnapshot(1000L);
+    }
 
-                return map;
-            } finally {
-                buffer.release();
+    /**
+     * Consistent read-only view of this map for readers on other threads. Returns the last published snapshot if it's
+     * at most maxAgeMillis old, otherwise publishes a new one on the calling thread. Publishing only copies regions
+     * that changed since the last snapshot and never takes more than one chunk's lock at a time, so the server thread
+     * isn't held up, but it's still work that shouldn't be done on the server thread itself.
+     */
+    public ActivitySnapshot getSnapshot(long maxAgeMillis) {
+        var current = snapshot;
+        if (current != null && System.currentTimeMillis() - current.getTimestamp() <= maxAgeMillis)
+            return current;
+
+        synchronized (publishLock) {
+            current = snapshot;
+            if (current != null && System.currentTimeMillis() - current.getTimestamp() <= maxAgeMillis)
+                return current;
+
+            ChunkActivityRegion[] resident;
+            synchronized (regions) {
+                resident = regions.values().toArray(new ChunkActivityRegion[0]);
+            }
+
+            current = ActivitySnapshot.publish(this, resident, current);
+            snapshot = current;
+            return current;
+        }
+    }
+
+    /**
+     * Detached copy of a region's data, or null if it has none. Regions that aren't resident are read from disk
+     * without paging them in, so this is safe to call from any thread for any number of regions.
+     */
+    public ChunkActivityRegion copyRegion(long regionPos) {
+        var region = getResidentRegion(regionPos);
+        if (region != null && !region.isLoading())
+            return region.copy();
+
+        var stored = paged ? readRegion(regionPos) : null;
+        if (region == null)
+            return stored;
+
+        // Still loading, so what's resident is only what was recorded since
+        var copy = region.copy();
+        if (stored != null)
+            copy.merge(stored);
+
+        return copy;
+    }
+
+    // Positions of every chunk the player has data in, answered from the player index without reading any region
+    public long[] getPlayerChunks(UUID player) {
+        int index = PlayerIndex.find(player);
+        return index != -1 ? playerChunks.getChunks(index) : new long[0];
+    }
+
+    /**
+     * The player's time and blocks summed over every chunk they have data in. Only the regions the player has been in
+     * are looked at; the ones that aren't resident are read from disk on the calling thread, without paging them in.
+     */
+    public PlayerActivity getPlayerActivity(UUID player) {
+        int index = PlayerIndex.find(player);
+        if (index == -1)
+            return new PlayerActivity(player, 0, 0, 0L, 0L, 0L);
+
+        int chunkCount = 0;
+        int regionCount = 0;
+        long totalTime = 0;
+        long placed = 0;
+        long broken = 0;
+        for (var entry : playerChunks.getRegions(index).long2ObjectEntrySet()) {
+            var region = getResidentRegion(entry.getLongKey());
+            if (region == null || region.isLoading())
+                region = copyRegion(entry.getLongKey());
+            if (region == null)
+                continue;
+
+            int found = 0;
+            for (int chunk : entry.getValue()) {
+                var info = region.get(chunk);
+                if (info == null || !info.hasPlayer(index))
+                    continue;
+
+                totalTime += info.getPlayerTime(index);
+                placed += info.getBlocksPlaced(index);
+                broken += info.getBlocksBroken(index);
+                found++;
+            }
+
+            chunkCount += found;
+            if (found > 0)
+                regionCount++;
+        }
+
+        return new PlayerActivity(player, chunkCount, regionCount, totalTime, placed, broken);
+    }
+
+    /**
+     * Erases everything recorded for the player in this dimension, e.g. for a privacy request: their time and blocks
+     * in every chunk the player index lists for them, in memory and on disk. Chunk totals go down to match; visits,
+     * first and last seen and the history aren't kept per player and stay. Runs on the IO thread once the player index
+     * has been loaded, and completes with the number of chunks the player was listed in.
+     * <p>
+     * Changed regions are written right away. The log segments that still hold the player's activity are deleted by
+     * the next save as usual, and replaying them after a crash can't bring it back, since the rewritten regions
+     * already count as having every record before.
+     */
+    public CompletableFuture<Integer> erasePlayer(UUID player) {
+        var result = new CompletableFuture<Integer>();
+        ChunkActivityIO.execute(() -> {
+            try {
+                result.complete(erasePlayerNow(player));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    // On the IO thread, so no region can be written or loaded between reading it and writing it back
+    private int erasePlayerNow(UUID uuid) {
+        int player = PlayerIndex.find(uuid);
+        if (player == -1)
+            return 0;
+
+        var storage = paged ? this.storage : null;
+        var playerRegions = playerChunks.remove(player);
+        int chunkCount = 0;
+        for (var entry : playerRegions.long2ObjectEntrySet()) {
+            long regionPos = entry.getLongKey();
+            var chunks = entry.getValue();
+            chunkCount += chunks.length;
+
+            // A region that's still loading only holds what was recorded since it was paged in. Its load was queued
+            // after this, so the rest is erased on disk before the load reads it.
+            var region = getResidentRegion(regionPos);
+            if (region != null && removePlayer(region, chunks, player) && !region.isLoading() && storage != null)
+                queueWrite(storage, region.snapshot());
+
+            if (storage != null && (region == null || region.isLoading()) && !eraseStored(storage, regionPos, chunks, player))
+                playerChunks.add(player, regionPos, chunks);
+        }
+
+        playerChunks.queueSave();
+        return chunkCount;
+    }
+
+    // Erases the player from the region's queued write if it has one, since that replaces the file, and from the file
+    // otherwise, along with any records of the last run's log that are still to be added to it. Returns false if the
+    // file couldn't be read or written.
+    private boolean eraseStored(RegionStorage storage, long regionPos, int[] chunks, int player) {
+        var pending = pendingWrites.get(regionPos);
+        var region = pending;
+        var log = wal;
+        boolean logged = false;
+        try {
+            if (region == null) {
+                region = storage.read(regionPos);
+
+                var withLog = log != null ? log.applyUnapplied(regionPos, region) : null;
+                if (withLog != null) {
+                    region = withLog;
+                    logged = true;
+                }
             }
+
+            if (region == null || !removePlayer(region, chunks, player) && !logged)
+                return true;
+
+            if (pending == null)
+                storage.write(region);
+            if (logged)
+                log.finishApplying(regionPos);
         } catch (Exception e) {
-            ChunkActivityTracker.LOGGER.error("Error when loading chunk activity info: " + e.getMessage());
+            ChunkActivityTracker.LOGGER.error("Error when erasing a player from chunk activity region " + describe(regionPos) + ": " + e.getMessage());
+            return false;
+        }
 
-            var ret = new ChunkActivityMap(new HashMap<>(), dimPath);
-            instances.put(dimension, ret);
-            return ret;
+        if (summary != null) {
+            summary.update(regionPos, region.getTotalTime(), region.getCount());
+            summary.queueSave();
+        }
+
+        return true;
+    }
+
+    private static boolean removePlayer(ChunkActivityRegion region, int[] chunks, int player) {
+        boolean removed = false;
+        for (int index : chunks) {
+            var info = region.get(index);
+            if (info != null && info.removePlayer(player))
+                removed = true;
+        }
+
+        return removed;
+    }
+
+    @FunctionalInterface
+    private interface AreaTotal {
+        long get(int x0, int z0, int x1, int z1);
+    }
+
+    private Path getRegionDirectory() {
+        if (regionDir == null)
+            regionDir = regionDirectory(dimension);
+
+        return regionDir;
+    }
+
+    // Paged maps get their storage in create(). Other maps only get one once they're first saved.
+    private RegionStorage getStorage() {
+        if (storage == null) {
+            var dir = getRegionDirectory();
+            if (dir != null)
+                storage = new CompressedRegionStorage(dir);
+        }
+
+        return storage;
+    }
+
+    private String describe(long regionPos) {
+        return ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of dimension '" + dimension + "'";
+    }
+
+    void markDirty(ChunkActivityRegion region) {
+        dirtyRegions.add(region);
+    }
+
+    void playerAdded(long chunkPos, int player) {
+        playerChunks.add(player, chunkPos);
+    }
+
+    public void save() {
+        long startTime = System.currentTimeMillis();
+
+        var storage = getStorage();
+        if (storage == null) {
+            ChunkActivityTracker.LOGGER.error("Could not get chunk activity data location!");
+            return;
+        }
+
+        // Everything logged so far is in the snapshots taken below, so the log up to here can go once they're written
+        var log = wal;
+        int sealed = log != null ? log.rotate() : -1;
+        boolean skipped = false;
+
+        if (dirtyRegions.isEmpty() && log == null)
+            return;
+
+        // Snapshot on the calling thread so the IO thread never sees a chunk mid-update. Only regions that changed
+        // since the last save are written, so the cost follows recent activity rather than the size of the map.
+        // Regions that are still loading stay dirty and are picked up by the next save.
+        int regionCount = 0;
+        int chunkCount = 0;
+        for (var iterator = dirtyRegions.iterator(); iterator.hasNext(); ) {
+            var region = iterator.next();
+            if (region.isLoading()) {
+                skipped = true;
+                continue;
+            }
+
+            iterator.remove();
+
+            long snapshotStart = TrackerMetrics.start();
+            var snapshot = region.snapshot();
+            TrackerMetrics.end(Phase.SNAPSHOT, snapshotStart);
+            queueWrite(storage, snapshot);
+
+            regionCount++;
+            chunkCount += snapshot.getCount();
+        }
+
+        // Queued after the region writes. A skipped region's activity is only in the log, so it's kept for another save.
+        if (log != null && !skipped) {
+            ChunkActivityIO.execute(() -> {
+                if (!writeFailed)
+                    log.retire(sealed);
+            });
+        }
+
+        if (regionCount == 0)
+            return;
+
+        long endTime = System.currentTimeMillis();
+        ChunkActivityTracker.LOGGER.info("Saving data for " + chunkCount + " chunks in " + regionCount + " regions for dimension '" + dimension + "' took " + (endTime - startTime) + " milliseconds on the server thread");
+    }
+
+    public static void saveAll() {
+        instances.values().forEach(ChunkActivityMap::save);
+    }
+
+    private void writeRegion(RegionStorage storage, ChunkActivityRegion region) {
+        try {
+            storage.write(region);
+            TrackerMetrics.count(Counter.REGIONS_WRITTEN);
+        } catch (Exception e) {
+            writeFailed = true;
+            ChunkActivityTracker.LOGGER.error("Error when saving chunk activity region " + describe(region.getPos()) + ": " + e.getMessage());
+        }
+    }
+
+    // Regions are paged in lazily by getChunk, so this only sets up the map. Use getOrCreateChunkMap to make it the
+    // dimension's map. A data file from before region files
+    // existed is converted on the IO thread, which is queued ahead of any region loads for this dimension.
+    public static ChunkActivityMap load(ResourceKey<Level> dimension) {
+        var dimPath = dimension.location().getPath();
+        var map = create(dimPath, regionDirectory(dimPath));
+
+        Path filePath = datafile(dimPath);
+        if (filePath != null && map.storage != null && Files.exists(filePath))
+            ChunkActivityIO.execute(() -> migrateLegacy(filePath, map));
+
+        return map;
+    }
+
+    // Map that pages its regions from the given directory, without needing a running server or registering it as a
+    // dimension. Used by load() and by tools that work on region files directly. The log left by the last run is
+    // replayed on the IO thread before anything else reads the regions.
+    public static ChunkActivityMap create(String dimension, Path regionDir) {
+        var map = new ChunkActivityMap(dimension, true);
+        map.regionDir = regionDir;
+        if (regionDir == null)
+            return map;
+
+        var storage = new CompressedRegionStorage(regionDir);
+        map.storage = storage;
+        map.heightmaps = new HeightmapStore(dimension, regionDir.resolve("heightmaps"));
+        map.summary = new RegionSummaryIndex(dimension, storage, regionDir);
+        map.playerChunks = new PlayerChunkIndex(dimension, storage, regionDir);
+
+        // Set before the log is replayed, so replayed activity lands in the history as well
+        ActivityHistory.setEnabled(AllConfigs.server(config -> config.activityHistory, false));
+
+        if (AllConfigs.server(config -> config.writeAheadLog, true)) {
+            try {
+                var wal = new WriteAheadLog(dimension, regionDir.resolve("wal"));
+                ChunkActivityIO.execute(() -> wal.replay(map::readRegionForReplay, storage, map.summary, map.playerChunks));
+                wal.start(AllConfigs.server(config -> config.walFlushInterval, 5));
+                map.wal = wal;
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when opening chunk activity log of dimension '" + dimension + "': " + e.getMessage());
+            }
+        }
+
+        ChunkActivityIO.execute(map.summary::load);
+        ChunkActivityIO.execute(map.playerChunks::load);
+        return map;
+    }
+
+    // Splits a whole-dimension file into region files. Chunks that already have a region file on disk keep that data.
+    private static void migrateLegacy(Path filePath, ChunkActivityMap map) {
+        var storage = map.storage;
+        long startTime = System.currentTimeMillis();
+
+        try {
+            // Streamed a few hundred regions at a time, so a region can come by more than once with other chunks
+            var regionPositions = new LongOpenHashSet();
+            int chunkCount = LegacyActivityFile.readRegions(filePath, 256, region -> {
+                var existing = storage.read(region.getPos());
+                if (existing != null) {
+                    region.forEach((pos, info) -> {
+                        int index = ChunkActivityRegion.localIndex(pos);
+                        if (existing.get(index) == null)
+                            existing.load(index, info);
+                    });
+                    region = existing;
+                }
+
+                storage.write(region);
+                regionPositions.add(region.getPos());
+                map.playerChunks.addRegion(region);
+
+                if (map.summary != null)
+                    map.summary.update(region.getPos(), region.getTotalTime(), region.getCount());
+            });
+
+            if (map.summary != null)
+                map.summary.queueSave();
+            map.playerChunks.queueSave();
+
+            Files.move(filePath, filePath.resolveSibling(filePath.getFileName() + ".old"), StandardCopyOption.REPLACE_EXISTING);
+
+            long endTime = System.currentTimeMillis();
+            ChunkActivityTracker.LOGGER.info("Migrated " + chunkCount + " chunks from '" + filePath + "' to " + regionPositions.size() + " region files in " + (endTime - startTime) + " milliseconds");
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when migrating chunk activity info: " + e.getMessage());
         }
     }
 
@@ -176,4 +1151,13 @@ public class ChunkActivityMap implements Serializable {
 
         return ChunkActivityTracker.getWorldPath(new LevelResource("chunk_activity_info/" + dimension + ".dat"));
     }
+
+    public static Path regionDirectory(String dimension) {
+        var dir = ChunkActivityTracker.getWorldPath(new LevelResource("chunk_activity_info/" + dimension + "/"));
+        if (dir == null)
+            return null;
+
+        dir.toFile().mkdirs();
+        return dir;
+    }
 }
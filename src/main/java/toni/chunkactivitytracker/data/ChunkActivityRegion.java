@@ -0,0 +1,387 @@
+package toni.chunkactivitytracker.data;
+
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import lombok.Getter;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+#if mc >= 211
+import net.minecraft.network.codec.StreamCodec;
+#else
+import toni.lib.networking.codecs.StreamCodec;
+#endif
+
+/**
+ * A 32x32 chunk area, matching the layout of vanilla region files. Regions are the unit of persistence: only regions
+ * that changed since the last save are written back to disk.
+ */
+public class ChunkActivityRegion {
+    public static final int SHIFT = 5;
+    public static final int SIZE = 1 << SHIFT;
+    public static final int MASK = SIZE - 1;
+
+    // Region file formats 2 to 6, see ChunkActivityInfo.writeCompact for the per-chunk layout. Format 4 adds the
+    // write-ahead log sequence after the position.
+    static StreamCodec<ByteBuf, ChunkActivityRegion> CODEC = compactCodec(6);
+    static StreamCodec<ByteBuf, ChunkActivityRegion> V5_CODEC = compactCodec(5);
+    static StreamCodec<ByteBuf, ChunkActivityRegion> V4_CODEC = compactCodec(4);
+    static StreamCodec<ByteBuf, ChunkActivityRegion> V3_CODEC = compactCodec(3);
+    static StreamCodec<ByteBuf, ChunkActivityRegion> V2_CODEC = compactCodec(2);
+
+    private static StreamCodec<ByteBuf, ChunkActivityRegion> compactCodec(int format) {
+        return new StreamCodec<>() {
+            public ChunkActivityRegion decode(ByteBuf buffer) {
+                FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+                var region = new ChunkActivityRegion(null, buf.readLong());
+                if (format >= 4)
+                    region.walSequence = buf.readLong();
+
+                var dictionary = new int[buf.readVarInt()];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = PlayerIndex.indexOf(buf.readUUID());
+
+                var count = buf.readVarInt();
+                int index = -1;
+                long[] previousHeightmap = null;
+                for (int i = 0; i < count; i++) {
+                    index += buf.readVarInt() + 1;
+
+                    var info = ChunkActivityInfo.readCompact(buf, format, dictionary, previousHeightmap);
+                    if (info.inlineHeightmap() != null)
+                        previousHeightmap = info.inlineHeightmap();
+
+                    region.load(index, info);
+                }
+
+                return region;
+            }
+
+            public void encode(ByteBuf buffer, ChunkActivityRegion region) {
+                // Older formats are only ever read, and rewritten in the current one
+                if (format != RegionFile.FORMAT_VERSION)
+                    throw new UnsupportedOperationException("Region format " + format + " can't be written");
+
+                FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+                buf.writeLong(region.pos);
+                buf.writeLong(region.walSequence);
+
+                // Each player's UUID is written once per file and referenced by position afterwards
+                var dictionary = new Int2IntOpenHashMap();
+                var players = new IntArrayList();
+                for (int i = 0; i < SIZE * SIZE; i++) {
+                    var info = region.chunks.get(i);
+                    if (info == null)
+                        continue;
+
+                    info.forEachPlayer(player -> {
+                        if (!dictionary.containsKey(player)) {
+                            dictionary.put(player, players.size());
+                            players.add(player);
+                        }
+                    });
+                }
+
+                buf.writeVarInt(players.size());
+                for (int i = 0; i < players.size(); i++)
+                    buf.writeUUID(PlayerIndex.get(players.getInt(i)));
+
+                // Chunks are written in slot order, each slot stored as the gap from the previous one
+                buf.writeVarInt(region.count);
+                int previous = -1;
+                long[] previousHeightmap = null;
+                for (int i = 0; i < SIZE * SIZE; i++) {
+                    var info = region.chunks.get(i);
+                    if (info == null)
+                        continue;
+
+                    buf.writeVarInt(i - previous - 1);
+                    previous = i;
+
+                    var heightmap = info.inlineHeightmap();
+                    info.writeCompact(buf, dictionary, previousHeightmap);
+                    if (heightmap != null)
+                        previousHeightmap = heightmap;
+                }
+            }
+        };
+    }
+
+    // Region file format 1, GZIP compressed with full UUIDs and fixed width counters for every chunk
+    static StreamCodec<ByteBuf, ChunkActivityRegion> LEGACY_CODEC = new StreamCodec<>() {
+        public ChunkActivityRegion decode(ByteBuf buffer) {
+            FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+            var region = new ChunkActivityRegion(null, buf.readLong());
+            var count = buf.readVarInt();
+            for (int i = 0; i < count; i++) {
+                var index = buf.readShort();
+                region.load(index, ChunkActivityInfo.CODEC.decode(buf));
+            }
+
+            return region;
+        }
+
+        public void encode(ByteBuf buffer, ChunkActivityRegion region) {
+            FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+            buf.writeLong(region.pos);
+            buf.writeVarInt(region.count);
+            for (int i = 0; i < SIZE * SIZE; i++) {
+                var info = region.chunks.get(i);
+                if (info == null)
+                    continue;
+
+                buf.writeShort(i);
+                ChunkActivityInfo.CODEC.encode(buf, info);
+            }
+        }
+    };
+
+    @Getter private final long pos;
+    @Getter private int count;
+    ChunkActivityMap owner;
+    // Where the heightmaps of this region's chunks live, if they aren't kept in memory. Outlives owner on eviction.
+    HeightmapStore heightmaps;
+    private final AtomicReferenceArray<ChunkActivityInfo> chunks = new AtomicReferenceArray<>(SIZE * SIZE);
+    private volatile boolean dirty;
+    private volatile boolean loading;
+    // Updates in flight on other threads. A pinned region isn't evicted, since changes to its chunks would no longer reach the map.
+    private final AtomicInteger pins = new AtomicInteger();
+    // Last write-ahead log record added to this region. Replaying the log skips records the stored region already has.
+    volatile long walSequence;
+
+    // Sum of every chunk's total time, updated by the chunks as they change
+    private final AtomicLong totalTime = new AtomicLong();
+    // Summed-area table of chunk totals for area queries, built on demand and dropped whenever a chunk changes. The
+    // change counter keeps a table built from values that changed mid-build from being kept, and tells snapshots
+    // which regions need copying again.
+    private volatile long[] sums;
+    private final AtomicLong changes = new AtomicLong();
+
+    public ChunkActivityRegion(ChunkActivityMap owner, long pos) {
+        this.owner = owner;
+        this.pos = pos;
+    }
+
+    public static long regionKey(long chunkPos) {
+        return ChunkPos.asLong(ChunkPos.getX(chunkPos) >> SHIFT, ChunkPos.getZ(chunkPos) >> SHIFT);
+    }
+
+    public static int localIndex(long chunkPos) {
+        return (ChunkPos.getX(chunkPos) & MASK) | (ChunkPos.getZ(chunkPos) & MASK) << SHIFT;
+    }
+
+    public long chunkPos(int index) {
+        return ChunkPos.asLong((ChunkPos.getX(pos) << SHIFT) + (index & MASK), (ChunkPos.getZ(pos) << SHIFT) + (index >> SHIFT));
+    }
+
+    public ChunkActivityInfo get(int index) {
+        return chunks.get(index);
+    }
+
+    // Stores the chunk unless one is already there, and returns whichever ends up in the slot
+    public synchronized ChunkActivityInfo put(int index, ChunkActivityInfo info) {
+        var existing = chunks.get(index);
+        if (existing != null)
+            return existing;
+
+        load(index, info);
+        markDirty();
+        return info;
+    }
+
+    // Adds a chunk without marking the region dirty, for data that was just read from disk
+    synchronized void load(int index, ChunkActivityInfo info) {
+        info.region = this;
+        info.regionIndex = index;
+
+        var previous = chunks.getAndSet(index, info);
+        if (previous == null)
+            count++;
+        else
+            addTime(-previous.getTotalTime());
+
+        addTime(info.getTotalTime());
+    }
+
+    void noteSequence(long sequence) {
+        if (sequence > walSequence)
+            walSequence = sequence;
+    }
+
+    // Folds data read from disk into this region, adding to anything that was recorded while the read was in flight
+    synchronized void merge(ChunkActivityRegion loaded) {
+        noteSequence(loaded.walSequence);
+        changed();
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            var info = loaded.chunks.get(i);
+            if (info == null)
+                continue;
+
+            var existing = chunks.get(i);
+            if (existing != null)
+                existing.merge(info);
+            else
+                load(i, info);
+        }
+    }
+
+    long[] getStoredHeightmap(ChunkActivityInfo info) {
+        var store = heightmaps;
+        if (store == null)
+            return null;
+
+        int index = info.regionIndex;
+        return chunks.get(index) == info ? store.get(chunkPos(index)) : null;
+    }
+
+    public long getTotalTime() {
+        return totalTime.get();
+    }
+
+    void addTime(long seconds) {
+        totalTime.addAndGet(seconds);
+        changes.incrementAndGet();
+        sums = null;
+    }
+
+    // Called by a chunk the first time a player is added to it
+    void playerAdded(int index, int player) {
+        var owner = this.owner;
+        if (owner != null)
+            owner.playerAdded(chunkPos(index), player);
+    }
+
+    // Called by chunks on every change, including the ones that don't affect their total time
+    void changed() {
+        changes.incrementAndGet();
+    }
+
+    // Goes up whenever a chunk of this region changes
+    public long getChangeCount() {
+        return changes.get();
+    }
+
+    /**
+     * Total time of the chunks from local x0, z0 to x1, z1, inclusive. Answered from a summed-area table, which is
+     * rebuilt on the first query after a change.
+     */
+    public long getTotalTime(int x0, int z0, int x1, int z1) {
+        var table = sums;
+        if (table == null) {
+            long stamp = changes.get();
+            table = new long[(SIZE + 1) * (SIZE + 1)];
+            for (int z = 0; z < SIZE; z++) {
+                long row = 0;
+                for (int x = 0; x < SIZE; x++) {
+                    var info = chunks.get(x | z << SHIFT);
+                    if (info != null)
+                        row += info.getTotalTime();
+
+                    table[(z + 1) * (SIZE + 1) + x + 1] = table[z * (SIZE + 1) + x + 1] + row;
+                }
+            }
+            if (changes.get() == stamp)
+                sums = table;
+        }
+
+        int w = SIZE + 1;
+        return table[(z1 + 1) * w + x1 + 1] - table[z0 * w + x1 + 1] - table[(z1 + 1) * w + x0] + table[z0 * w + x0];
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    void pin() {
+        pins.incrementAndGet();
+    }
+
+    void unpin() {
+        pins.decrementAndGet();
+    }
+
+    boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    public void forEach(ChunkConsumer consumer) {
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            var info = chunks.get(i);
+            if (info != null)
+                consumer.accept(chunkPos(i), info);
+        }
+    }
+
+    // Rough heap footprint in bytes of the region and its chunks, assuming compressed references
+    public long estimateMemory() {
+        long bytes = 64L + 16L + 4L * SIZE * SIZE + 2 * 24L;
+        var table = sums;
+        if (table != null)
+            bytes += 16L + 8L * table.length;
+
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            var info = chunks.get(i);
+            if (info != null)
+                bytes += info.estimateMemory();
+        }
+
+        return bytes;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void markDirty() {
+        if (dirty)
+            return;
+
+        dirty = true;
+        if (owner != null)
+            owner.markDirty(this);
+    }
+
+    // Detached copy for the IO thread. Clears the dirty flags so changes made after this point are picked up by the next save.
+    public ChunkActivityRegion snapshot() {
+        dirty = false;
+        return copy(true);
+    }
+
+    // Detached copy that leaves the dirty flags alone, for readers that don't write the region back
+    public ChunkActivityRegion copy() {
+        return copy(false);
+    }
+
+    private synchronized ChunkActivityRegion copy(boolean forSave) {
+        // Logged changes are added with this region locked, so the sequence always matches the chunks copied
+        var copy = new ChunkActivityRegion(null, pos);
+        copy.walSequence = walSequence;
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            var info = chunks.get(i);
+            if (info == null)
+                continue;
+
+            copy.load(i, forSave ? info.snapshot() : info.copy());
+        }
+
+        return copy;
+    }
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(long chunkPos, ChunkActivityInfo info);
+    }
+}
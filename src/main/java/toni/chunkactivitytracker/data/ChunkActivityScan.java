@@ -0,0 +1,236 @@
+package toni.chunkactivitytracker.data;
+
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Goes through every tracked chunk of a dimension on a fork-join pool, off the server thread, and streams the chunks
+ * matching a filter to a CSV file as it goes. Each region is copied or read from disk by the worker that scans it and
+ * dropped right after, so memory use follows the number of workers rather than the size of the dimension. Matches are
+ * written one region at a time, so the file is grouped by region.
+ */
+public class ChunkActivityScan {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), pool -> {
+        var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("ChunkActivityTracker Scan " + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+
+    // Regions per fork-join leaf. Reading a region file is the expensive part, so leaves are kept small.
+    private static final int REGIONS_PER_TASK = 4;
+    private static final String HEADER = "chunk_x,chunk_z,region_x,region_z,total_time,blocks_placed,blocks_broken,visits";
+
+    private final ChunkActivityMap map;
+    private final ChunkFilter filter;
+    private final Path output;
+
+    private final AtomicInteger regionsScanned = new AtomicInteger();
+    private final AtomicLong chunksScanned = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private volatile int regionCount = -1;
+    private volatile boolean cancelled;
+    private volatile IOException failure;
+
+    private final CompletableFuture<ChunkActivityScan> result = new CompletableFuture<>();
+
+    @FunctionalInterface
+    public interface ChunkFilter {
+        boolean test(long chunkPos, ChunkActivityInfo info);
+
+        // Chunks with less than the given total time that nobody placed or broke a block in
+        static ChunkFilter prunable(long timeThreshold) {
+            return (pos, info) -> info.getTotalTime() < timeThreshold && info.getTotalBlocksPlaced() == 0 && info.getTotalBlocksBroken() == 0;
+        }
+
+        // Chunks with an activity history that nobody spent time in during the given number of days, however busy they
+        // were before
+        static ChunkFilter inactiveFor(int days) {
+            long now = System.currentTimeMillis() / 1000;
+            return (pos, info) -> info.hasHistory() && info.getRecentTime(days, now) == 0;
+        }
+    }
+
+    private ChunkActivityScan(ChunkActivityMap map, ChunkFilter filter, Path output) {
+        this.map = map;
+        this.filter = filter;
+        this.output = output;
+    }
+
+    /**
+     * Starts scanning in the background. The file is written next to the output path first and only moved into place
+     * once the scan completes, so a cancelled or failed scan never leaves a partial report behind.
+     */
+    public static ChunkActivityScan start(ChunkActivityMap map, ChunkFilter filter, Path output) {
+        var scan = new ChunkActivityScan(map, filter, output);
+        POOL.execute(scan::run);
+        return scan;
+    }
+
+    private void run() {
+        long startTime = System.currentTimeMillis();
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+
+        try {
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+
+            var positions = map.getRegionPositions();
+            regionCount = positions.length;
+
+            try (var writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+
+                POOL.invoke(new ScanTask(positions, 0, positions.length, writer));
+            }
+
+            if (failure != null)
+                throw failure;
+
+            if (cancelled) {
+                Files.deleteIfExists(temp);
+                ChunkActivityTracker.LOGGER.info("Cancelled chunk activity scan of dimension '" + map.getDimension() + "' after " + regionsScanned.get() + " of " + regionCount + " regions");
+            } else {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+
+                long endTime = System.currentTimeMillis();
+                ChunkActivityTracker.LOGGER.info("Scanned " + chunksScanned.get() + " chunks in " + regionCount + " regions for dimension '" + map.getDimension() + "' in " + (endTime - startTime) + " milliseconds, " + matches.get() + " matched");
+            }
+
+            result.complete(this);
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when scanning chunk activity to '" + output + "': " + e.getMessage());
+
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+
+            result.completeExceptionally(e);
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private final long[] positions;
+        private final int from;
+        private final int to;
+        private final BufferedWriter writer;
+
+        ScanTask(long[] positions, int from, int to, BufferedWriter writer) {
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled)
+                return;
+
+            if (to - from > REGIONS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(positions, from, middle, writer), new ScanTask(positions, middle, to, writer));
+                return;
+            }
+
+            for (int i = from; i < to && !cancelled; i++)
+                scanRegion(positions[i], writer);
+        }
+    }
+
+    private void scanRegion(long regionPos, BufferedWriter writer) {
+        var region = map.copyRegion(regionPos);
+        if (region != null) {
+            var lines = new StringBuilder();
+            region.forEach((pos, info) -> {
+                chunksScanned.incrementAndGet();
+                if (!filter.test(pos, info))
+                    return;
+
+                matches.incrementAndGet();
+                lines.append(ChunkPos.getX(pos)).append(',').append(ChunkPos.getZ(pos)).append(',')
+                        .append(ChunkPos.getX(regionPos)).append(',').append(ChunkPos.getZ(regionPos)).append(',')
+                        .append(info.getTotalTime()).append(',').append(info.getTotalBlocksPlaced()).append(',').append(info.getTotalBlocksBroken()).append(',')
+                        .append(info.getVisitCount()).append('\n');
+            });
+
+            if (lines.length() > 0) {
+                try {
+                    synchronized (writer) {
+                        writer.write(lines.toString());
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    cancelled = true;
+                }
+            }
+        }
+
+        regionsScanned.incrementAndGet();
+    }
+
+    // Stops the scan as soon as the workers finish the regions they're on. The partial report is deleted.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled && failure == null;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    // Completes with this scan once it has finished or been cancelled, or exceptionally if it failed
+    public CompletableFuture<ChunkActivityScan> getResult() {
+        return result;
+    }
+
+    public Path getOutput() {
+        return output;
+    }
+
+    public String getDimension() {
+        return map.getDimension();
+    }
+
+    public int getRegionsScanned() {
+        return regionsScanned.get();
+    }
+
+    // Number of regions to scan, or -1 while they're still being listed
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    public long getChunksScanned() {
+        return chunksScanned.get();
+    }
+
+    public long getMatchCount() {
+        return matches.get();
+    }
+
+    public float getProgress() {
+        int total = regionCount;
+        if (total <= 0)
+            return isDone() ? 1f : 0f;
+
+        return (float) regionsScanned.get() / total;
+    }
+}
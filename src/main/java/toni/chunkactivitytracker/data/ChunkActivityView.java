@@ -0,0 +1,70 @@
+package toni.chunkactivitytracker.data;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Read-only view of one chunk's data as it was when an ActivitySnapshot was published. It never changes afterwards,
+ * so it can be kept and read from any thread.
+ */
+public final class ChunkActivityView {
+    // Detached copy that nothing else holds on to
+    private final ChunkActivityInfo info;
+
+    ChunkActivityView(ChunkActivityInfo info) {
+        this.info = info;
+    }
+
+    public long getTotalTime() {
+        return info.getTotalTime();
+    }
+
+    public long getPlayerTime(UUID player) {
+        return info.getPlayerTime(player);
+    }
+
+    public Map<UUID, Long> getPlayerTimes() {
+        return info.getPlayerTimes();
+    }
+
+    public int getPlayerCount() {
+        return info.getPlayerCount();
+    }
+
+    public int getTotalBlocksPlaced() {
+        return info.getTotalBlocksPlaced();
+    }
+
+    public Map<UUID, Integer> getBlocksPlacedByPlayer() {
+        return info.getBlocksPlacedByPlayer();
+    }
+
+    public int getTotalBlocksBroken() {
+        return info.getTotalBlocksBroken();
+    }
+
+    public Map<UUID, Integer> getBlocksBrokenByPlayer() {
+        return info.getBlocksBrokenByPlayer();
+    }
+
+    public int getVisitCount() {
+        return info.getVisitCount();
+    }
+
+    public long getFirstSeen() {
+        return info.getFirstSeen();
+    }
+
+    public long getLastSeen() {
+        return info.getLastSeen();
+    }
+
+    // See ChunkActivityInfo.getRecentTime
+    public long getRecentTime(int days) {
+        return info.getRecentTime(days);
+    }
+
+    public boolean hasHistory() {
+        return info.hasHistory();
+    }
+}
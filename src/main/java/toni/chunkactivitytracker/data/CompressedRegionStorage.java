@@ -0,0 +1,111 @@
+package toni.chunkactivitytracker.data;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+import toni.chunkactivitytracker.metrics.Counter;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Region files in the RegionFile format, named r.x.z.dat. Each save encodes and compresses the whole region and
+ * replaces the file atomically.
+ */
+public class CompressedRegionStorage implements RegionStorage {
+    private final Path directory;
+    // Fixed compression settings, or null to follow the config
+    private final StorageCompression compression;
+    private final int level;
+
+    public CompressedRegionStorage(Path directory) {
+        this(directory, null, 0);
+    }
+
+    public CompressedRegionStorage(Path directory, StorageCompression compression, int level) {
+        this.directory = directory;
+        this.compression = compression;
+        this.level = level;
+    }
+
+    @Override
+    public ChunkActivityRegion read(long regionPos) throws IOException {
+        var filePath = file(regionPos);
+        if (!Files.exists(filePath))
+            return null;
+
+        var data = Files.readAllBytes(filePath);
+        try {
+            return RegionFile.read(data);
+        } catch (IOException | RuntimeException e) {
+            throw new CorruptRegionException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long readSequence(long regionPos) throws IOException {
+        var filePath = file(regionPos);
+        if (!Files.exists(filePath))
+            return 0;
+
+        try {
+            return RegionFile.readSequence(Files.readAllBytes(filePath));
+        } catch (IOException | RuntimeException e) {
+            throw new CorruptRegionException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void write(ChunkActivityRegion region) throws IOException {
+        var compression = this.compression != null ? this.compression : AllConfigs.server(config -> config.storageCompression, StorageCompression.DEFLATE);
+        var level = this.compression != null ? this.level : AllConfigs.server(config -> config.compressionLevel, 6);
+        var data = RegionFile.write(region, compression, level);
+
+        long start = TrackerMetrics.start();
+        ChunkActivityIO.writeAtomically(file(region.getPos()), data);
+        TrackerMetrics.end(Phase.WRITE, start);
+        TrackerMetrics.add(Counter.BYTES_WRITTEN, data.length);
+    }
+
+    @Override
+    public long[] list() throws IOException {
+        return listRegions(directory, "r.*.dat");
+    }
+
+    @Override
+    public Path moveAside(long regionPos, String suffix) throws IOException {
+        var filePath = file(regionPos);
+        return Files.move(filePath, filePath.resolveSibling(filePath.getFileName() + suffix), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public Path file(long regionPos) {
+        return directory.resolve("r." + ChunkPos.getX(regionPos) + "." + ChunkPos.getZ(regionPos) + ".dat");
+    }
+
+    // Region positions of the files in the directory named r.x.z.<extension>
+    static long[] listRegions(Path directory, String glob) throws IOException {
+        var positions = new LongArrayList();
+        if (!Files.isDirectory(directory))
+            return positions.toLongArray();
+
+        try (var files = Files.newDirectoryStream(directory, glob)) {
+            for (var file : files) {
+                var parts = file.getFileName().toString().split("\\.");
+                if (parts.length != 4)
+                    continue;
+
+                try {
+                    positions.add(ChunkPos.asLong(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        return positions.toLongArray();
+    }
+}
@@ -0,0 +1,17 @@
+package toni.chunkactivitytracker.data;
+
+import java.io.IOException;
+
+/**
+ * A stored region exists but can't be decoded, as opposed to one that couldn't be read at all. The file is moved aside
+ * instead of being overwritten by the next save.
+ */
+public class CorruptRegionException extends IOException {
+    public CorruptRegionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public CorruptRegionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,237 @@
+package toni.chunkactivitytracker.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Initial chunk heightmaps for one dimension, kept on disk instead of on the heap. Each region gets its own file in a
+ * heightmaps folder next to the region files. Heightmaps are captured once, when a chunk is first visited, written on
+ * the IO thread and only read back when someone asks for one.
+ */
+public class HeightmapStore {
+    private static final int MAGIC = 0x43415448; // "CATH"
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte NO_HEIGHTMAP = 0;
+    private static final byte RAW_HEIGHTMAP = 1;
+    private static final byte DELTA_HEIGHTMAP = 2;
+
+    private final String dimension;
+    private final Path directory;
+
+    // Captured heightmaps that haven't been written yet, by region position and then local chunk index. Guarded by itself.
+    private final Long2ObjectOpenHashMap<Int2ObjectOpenHashMap<long[]>> pending = new Long2ObjectOpenHashMap<>();
+
+    // Last region file read, since lookups usually come in batches for the same area. Guarded by this.
+    private long cachedPos;
+    private Int2ObjectOpenHashMap<long[]> cached;
+
+    public HeightmapStore(String dimension, Path directory) {
+        this.dimension = dimension;
+        this.directory = directory;
+    }
+
+    /**
+     * Queues the heightmap to be written on the IO thread. The first heightmap stored for a chunk is kept, later ones
+     * are ignored.
+     */
+    public void capture(long chunkPos, long[] heightmap) {
+        long regionPos = ChunkActivityRegion.regionKey(chunkPos);
+        synchronized (pending) {
+            pending.computeIfAbsent(regionPos, key -> new Int2ObjectOpenHashMap<>()).putIfAbsent(ChunkActivityRegion.localIndex(chunkPos), heightmap);
+        }
+
+        ChunkActivityIO.submitSave("heightmaps/" + dimension + "/" + regionPos, () -> write(regionPos));
+    }
+
+    /**
+     * Reads the heightmap of the given chunk, or null if none was captured. Reads from disk on the calling thread.
+     */
+    public synchronized long[] get(long chunkPos) {
+        long regionPos = ChunkActivityRegion.regionKey(chunkPos);
+        int index = ChunkActivityRegion.localIndex(chunkPos);
+
+        synchronized (pending) {
+            var captured = pending.get(regionPos);
+            if (captured != null && captured.containsKey(index))
+                return captured.get(index).clone();
+        }
+
+        if (cached == null || cachedPos != regionPos) {
+            try {
+                cached = read(regionPos);
+                cachedPos = regionPos;
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when loading chunk heightmaps '" + file(regionPos) + "': " + e.getMessage());
+                return null;
+            }
+        }
+
+        var heightmap = cached.get(index);
+        return heightmap != null ? heightmap.clone() : null;
+    }
+
+    // Runs on the IO thread. Holds the lock for the whole write so readers never miss a heightmap that has left the
+    // pending map but isn't in the file yet.
+    private synchronized void write(long regionPos) {
+        Int2ObjectOpenHashMap<long[]> captured;
+        synchronized (pending) {
+            captured = pending.remove(regionPos);
+        }
+
+        if (captured == null)
+            return;
+
+        var filePath = file(regionPos);
+        try {
+            var heightmaps = read(regionPos);
+            captured.forEach(heightmaps::putIfAbsent);
+
+            Files.createDirectories(directory);
+            ChunkActivityIO.writeAtomically(filePath, encode(heightmaps));
+
+            if (cachedPos == regionPos)
+                cached = null;
+        } catch (Exception e) {
+            // Keep them around for the next capture in this region to retry
+            synchronized (pending) {
+                var retry = pending.computeIfAbsent(regionPos, key -> new Int2ObjectOpenHashMap<>());
+                captured.forEach(retry::putIfAbsent);
+            }
+
+            ChunkActivityTracker.LOGGER.error("Error when saving chunk heightmaps '" + filePath + "': " + e.getMessage());
+        }
+    }
+
+    private Int2ObjectOpenHashMap<long[]> read(long regionPos) throws IOException {
+        var filePath = file(regionPos);
+        if (!Files.exists(filePath))
+            return new Int2ObjectOpenHashMap<>();
+
+        return decode(Files.readAllBytes(filePath));
+    }
+
+    private Path file(long regionPos) {
+        return directory.resolve("h." + ChunkPos.getX(regionPos) + "." + ChunkPos.getZ(regionPos) + ".dat");
+    }
+
+    // Same header as region files, followed by the heightmaps in slot order, each stored as the gap from the previous slot
+    private static byte[] encode(Int2ObjectOpenHashMap<long[]> heightmaps) throws IOException {
+        var compression = AllConfigs.server(config -> config.storageCompression, StorageCompression.DEFLATE);
+        var level = AllConfigs.server(config -> config.compressionLevel, 6);
+
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+            var indices = heightmaps.keySet().toIntArray();
+            Arrays.sort(indices);
+
+            buf.writeVarInt(indices.length);
+            int previous = -1;
+            long[] previousHeightmap = null;
+            for (int index : indices) {
+                buf.writeVarInt(index - previous - 1);
+                previous = index;
+
+                var heightmap = heightmaps.get(index);
+                writeHeightmap(buf, heightmap, previousHeightmap);
+                previousHeightmap = heightmap;
+            }
+
+            var byteOut = new ByteArrayOutputStream(buffer.readableBytes() / 2 + 16);
+            var header = new DataOutputStream(byteOut);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(compression.id);
+
+            try (var out = compression.wrap(byteOut, level)) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+            }
+
+            return byteOut.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static Int2ObjectOpenHashMap<long[]> decode(byte[] data) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < 6 || in.readInt() != MAGIC)
+            throw new IOException("Not a chunk heightmap file");
+
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported chunk heightmap format " + version);
+
+        var compression = StorageCompression.byId(in.readUnsignedByte());
+        byte[] payload;
+        try (var payloadIn = compression.unwrap(in)) {
+            payload = payloadIn.readAllBytes();
+        }
+
+        ByteBuf buffer = Unpooled.wrappedBuffer(payload);
+        try {
+            FriendlyByteBuf buf = new FriendlyByteBuf(buffer);
+
+            var count = buf.readVarInt();
+            var heightmaps = new Int2ObjectOpenHashMap<long[]>(count);
+            int index = -1;
+            long[] previousHeightmap = null;
+            for (int i = 0; i < count; i++) {
+                index += buf.readVarInt() + 1;
+
+                var heightmap = readHeightmap(buf, previousHeightmap);
+                heightmaps.put(index, heightmap);
+                previousHeightmap = heightmap;
+            }
+
+            return heightmaps;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // A heightmap is XORed against the previous one written, which is mostly zero for neighbouring chunks and
+    // compresses well. Shared with the inline heightmaps of region files.
+    static void writeHeightmap(FriendlyByteBuf buf, long[] heightmap, long[] previousHeightmap) {
+        if (heightmap == null) {
+            buf.writeByte(NO_HEIGHTMAP);
+        } else if (previousHeightmap == null || previousHeightmap.length != heightmap.length) {
+            buf.writeByte(RAW_HEIGHTMAP);
+            buf.writeLongArray(heightmap);
+        } else {
+            buf.writeByte(DELTA_HEIGHTMAP);
+            buf.writeVarInt(heightmap.length);
+            for (int i = 0; i < heightmap.length; i++)
+                buf.writeVarLong(heightmap[i] ^ previousHeightmap[i]);
+        }
+    }
+
+    static long[] readHeightmap(FriendlyByteBuf buf, long[] previousHeightmap) {
+        var type = buf.readByte();
+        if (type == RAW_HEIGHTMAP)
+            return buf.readLongArray();
+
+        if (type == DELTA_HEIGHTMAP) {
+            var heightmap = new long[buf.readVarInt()];
+            for (int i = 0; i < heightmap.length; i++)
+                heightmap[i] = buf.readVarLong() ^ previousHeightmap[i];
+
+            return heightmap;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+package toni.chunkactivitytracker.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader for the whole-dimension files written before region files, chunk_activity_info/dimension.dat: a
+ * GZIP stream of ChunkActivityMap.CODEC. Entries are read one at a time and decoded with ChunkActivityInfo.CODEC, so
+ * files of any size can be read with a small, fixed amount of memory.
+ */
+public class LegacyActivityFile implements Closeable {
+    private final DataInputStream in;
+    private int remaining;
+    // Bytes of the entry being read, reused from one entry to the next
+    private final ByteBuf entry = Unpooled.buffer(256);
+
+    public LegacyActivityFile(Path file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 64 * 1024)));
+        remaining = copyVarInt(null);
+    }
+
+    // Entries left to read
+    public int remaining() {
+        return remaining;
+    }
+
+    /**
+     * Reads the next chunk and passes it to consumer. Returns false once every entry has been read. The entry is copied
+     * out of the stream by walking its layout, then decoded by the codec from that copy.
+     */
+    public boolean next(ChunkActivityRegion.ChunkConsumer consumer) throws IOException {
+        if (remaining <= 0)
+            return false;
+
+        remaining--;
+        long pos = in.readLong();
+
+        entry.clear();
+        copy(4); // Codec version
+        int times = copyVarInt(entry);
+        copy(times * 24L); // UUID and time
+        int blocks = copyVarInt(entry);
+        copy(blocks * 20L); // UUID and count
+
+        boolean hasHeightmap = in.readBoolean();
+        entry.writeBoolean(hasHeightmap);
+        if (hasHeightmap)
+            copy(copyVarInt(entry) * 8L);
+
+        consumer.accept(pos, ChunkActivityInfo.CODEC.decode(entry));
+        return true;
+    }
+
+    /**
+     * Reads the whole file, handing chunks over grouped into regions. At most maxRegions are collected before they're
+     * all passed on, so a region may be handed over more than once, each time with chunks it didn't have before.
+     */
+    public static int readRegions(Path file, int maxRegions, ActivityFiles.RegionConsumer consumer) throws IOException {
+        var regions = new Long2ObjectOpenHashMap<ChunkActivityRegion>();
+        int chunkCount = 0;
+
+        try (var reader = new LegacyActivityFile(file)) {
+            ChunkActivityRegion.ChunkConsumer chunk = (pos, info) -> regions
+                .computeIfAbsent(ChunkActivityRegion.regionKey(pos), regionPos -> new ChunkActivityRegion(null, regionPos))
+                .load(ChunkActivityRegion.localIndex(pos), info);
+
+            while (reader.next(chunk)) {
+                chunkCount++;
+                if (regions.size() >= maxRegions) {
+                    for (var region : regions.values())
+                        consumer.accept(region);
+                    regions.clear();
+                }
+            }
+        }
+
+        for (var region : regions.values())
+            consumer.accept(region);
+
+        return chunkCount;
+    }
+
+    private void copy(long bytes) throws IOException {
+        if (bytes < 0 || bytes > Integer.MAX_VALUE)
+            throw new IOException("Corrupt chunk activity entry");
+
+        int left = (int) bytes;
+        while (left > 0) {
+            int read = entry.writeBytes(in, left);
+            if (read < 0)
+                throw new EOFException();
+
+            left -= read;
+        }
+    }
+
+    // Reads a varint, also appending its bytes to out if there is one
+    private int copyVarInt(ByteBuf out) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            if (out != null)
+                out.writeByte(b);
+
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Varint too long");
+    }
+
+    @Override
+    public void close() throws IOException {
+        entry.release();
+        in.close();
+    }
+}
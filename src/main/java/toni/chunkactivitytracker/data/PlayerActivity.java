@@ -0,0 +1,9 @@
+package toni.chunkactivitytracker.data;
+
+import java.util.UUID;
+
+/**
+ * Everything one player did in a dimension, summed over the chunks they have data in.
+ */
+public record PlayerActivity(UUID player, int chunkCount, int regionCount, long totalTime, long blocksPlaced, long blocksBroken) {
+}
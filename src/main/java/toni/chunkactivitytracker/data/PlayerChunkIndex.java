@@ -0,0 +1,331 @@
+package toni.chunkactivitytracker.data;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Which chunks each player has data in, so looking up or erasing a player's data only touches the regions they've
+ * been in instead of every chunk of the dimension. Updated whenever a chunk sees a player for the first time, and
+ * kept in a players file next to the region files, saved along with the regions. If that file is missing it is
+ * rebuilt by reading every region file once, in the background.
+ * <p>
+ * Chunks are grouped by region. For a region a player only has a few chunks in, their local indices are kept in a
+ * sorted array; once that array would be as large as a bitmap of the whole region, a bitmap is kept instead.
+ * Entries are only ever added, except by remove(), so a chunk the index lists may have lost the player since. A chunk
+ * with the player's data is never missing from it.
+ */
+public class PlayerChunkIndex {
+    private static final int MAGIC = 0x43415450; // "CATP"
+    public static final int FORMAT_VERSION = 1;
+
+    private final String dimension;
+    private final RegionStorage storage;
+    // Null for maps that aren't backed by a directory, whose index only lives in memory
+    private final Path file;
+
+    // Guarded by this. Chunks by PlayerIndex id, then region position.
+    private final Int2ObjectOpenHashMap<Long2ObjectOpenHashMap<RegionChunks>> players = new Int2ObjectOpenHashMap<>();
+    private volatile boolean loaded;
+
+    public PlayerChunkIndex(String dimension, RegionStorage storage, Path regionDir) {
+        this.dimension = dimension;
+        this.storage = storage;
+        this.file = regionDir != null ? regionDir.resolve("players.dat") : null;
+        this.loaded = file == null;
+    }
+
+    public synchronized void add(int player, long chunkPos) {
+        players.computeIfAbsent(player, key -> new Long2ObjectOpenHashMap<>())
+            .computeIfAbsent(ChunkActivityRegion.regionKey(chunkPos), key -> new RegionChunks())
+            .add(ChunkActivityRegion.localIndex(chunkPos));
+    }
+
+    // Lists the player in the given chunks of a region, such as again after erasing them failed
+    public synchronized void add(int player, long regionPos, int[] indices) {
+        var chunks = players.computeIfAbsent(player, key -> new Long2ObjectOpenHashMap<>()).computeIfAbsent(regionPos, key -> new RegionChunks());
+        for (int index : indices)
+            chunks.add(index);
+    }
+
+    // Adds every player of every chunk in the region, for regions written or read without going through a map
+    public void addRegion(ChunkActivityRegion region) {
+        region.forEach((pos, info) -> info.forEachPlayer(player -> add(player, pos)));
+    }
+
+    // Every chunk the player has data in, by region position and then local index. The arrays are copies.
+    public synchronized Long2ObjectMap<int[]> getRegions(int player) {
+        var result = new Long2ObjectOpenHashMap<int[]>();
+        var regions = players.get(player);
+        if (regions != null) {
+            for (var region : regions.long2ObjectEntrySet())
+                result.put(region.getLongKey(), region.getValue().toArray());
+        }
+
+        return result;
+    }
+
+    // Positions of every chunk the player has data in
+    public synchronized long[] getChunks(int player) {
+        var result = new LongArrayList();
+        var regions = players.get(player);
+        if (regions == null)
+            return new long[0];
+
+        for (var region : regions.long2ObjectEntrySet()) {
+            int baseX = ChunkPos.getX(region.getLongKey()) << ChunkActivityRegion.SHIFT;
+            int baseZ = ChunkPos.getZ(region.getLongKey()) << ChunkActivityRegion.SHIFT;
+            for (int index : region.getValue().toArray())
+                result.add(ChunkPos.asLong(baseX + (index & ChunkActivityRegion.MASK), baseZ + (index >> ChunkActivityRegion.SHIFT)));
+        }
+
+        return result.toLongArray();
+    }
+
+    public synchronized int getChunkCount(int player) {
+        var regions = players.get(player);
+        if (regions == null)
+            return 0;
+
+        int count = 0;
+        for (var chunks : regions.values())
+            count += chunks.count;
+
+        return count;
+    }
+
+    // Forgets the player and returns the chunks they had, in the same form as getRegions
+    public synchronized Long2ObjectMap<int[]> remove(int player) {
+        var result = getRegions(player);
+        players.remove(player);
+        return result;
+    }
+
+    // Number of players with any chunks
+    public synchronized int size() {
+        return players.size();
+    }
+
+    // False until the players file has been read or rebuilt. Until then only chunks changed since the start are listed.
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Queues the players file to be rewritten on the IO thread, after any region writes queued before it
+    public void queueSave() {
+        if (file != null)
+            ChunkActivityIO.submitSave("players/" + dimension, this::save);
+    }
+
+    private void save() {
+        try {
+            var byteOut = new ByteArrayOutputStream();
+            var out = new DataOutputStream(byteOut);
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+
+            synchronized (this) {
+                out.writeInt(players.size());
+                for (var player : players.int2ObjectEntrySet()) {
+                    var uuid = PlayerIndex.get(player.getIntKey());
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+
+                    out.writeInt(player.getValue().size());
+                    for (var region : player.getValue().long2ObjectEntrySet()) {
+                        out.writeLong(region.getLongKey());
+                        region.getValue().write(out);
+                    }
+                }
+            }
+
+            ChunkActivityIO.writeAtomically(file, byteOut.toByteArray());
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when saving chunk activity player index '" + file + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the players file, or rebuilds it from the region files if there isn't one. Meant to run on the IO thread.
+     * Chunks added while this runs are kept.
+     */
+    public void load() {
+        if (file == null)
+            return;
+
+        try {
+            if (Files.exists(file)) {
+                read();
+                loaded = true;
+                return;
+            }
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when loading chunk activity player index '" + file + "', rebuilding it: " + e.getMessage());
+        }
+
+        rebuild();
+        loaded = true;
+    }
+
+    private void read() throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a chunk activity player index file");
+
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported chunk activity player index format " + version);
+
+            int playerCount = in.readInt();
+            for (int i = 0; i < playerCount; i++) {
+                int player = PlayerIndex.indexOf(new UUID(in.readLong(), in.readLong()));
+                int regionCount = in.readInt();
+                for (int j = 0; j < regionCount; j++) {
+                    long regionPos = in.readLong();
+                    var chunks = RegionChunks.read(in);
+
+                    synchronized (this) {
+                        var existing = players.computeIfAbsent(player, key -> new Long2ObjectOpenHashMap<>()).putIfAbsent(regionPos, chunks);
+                        if (existing != null) {
+                            for (int index : chunks.toArray())
+                                existing.add(index);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Regions that fail to read are logged and left out. Their players are added once the region is next read.
+    private void rebuild() {
+        long startTime = System.currentTimeMillis();
+        int regionCount = 0;
+        try {
+            for (long regionPos : storage.list()) {
+                try {
+                    var region = storage.read(regionPos);
+                    if (region == null)
+                        continue;
+
+                    addRegion(region);
+                    regionCount++;
+                } catch (Exception e) {
+                    ChunkActivityTracker.LOGGER.error("Error when loading chunk activity region " + ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of dimension '" + dimension + "': " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when rebuilding chunk activity player index '" + file + "': " + e.getMessage());
+            return;
+        }
+
+        if (regionCount > 0) {
+            save();
+
+            long endTime = System.currentTimeMillis();
+            ChunkActivityTracker.LOGGER.info("Rebuilt chunk activity player index of " + regionCount + " regions for dimension '" + dimension + "' in " + (endTime - startTime) + " milliseconds");
+        }
+    }
+
+    // Local indices of the chunks of one region a player has data in
+    private static final class RegionChunks {
+        // As many sorted indices as fit in the space of the bitmap
+        private static final int ARRAY_LIMIT = ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE / 16;
+
+        private short[] indices = new short[4];
+        private long[] bits;
+        private int count;
+
+        void add(int index) {
+            if (bits != null) {
+                long mask = 1L << index;
+                if ((bits[index >> 6] & mask) == 0) {
+                    bits[index >> 6] |= mask;
+                    count++;
+                }
+                return;
+            }
+
+            int at = Arrays.binarySearch(indices, 0, count, (short) index);
+            if (at >= 0)
+                return;
+
+            if (count == ARRAY_LIMIT) {
+                bits = new long[ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE / 64];
+                for (int i = 0; i < count; i++)
+                    bits[indices[i] >> 6] |= 1L << indices[i];
+                indices = null;
+                count++;
+                bits[index >> 6] |= 1L << index;
+                return;
+            }
+
+            at = -at - 1;
+            if (count == indices.length)
+                indices = Arrays.copyOf(indices, Math.min(count * 2, ARRAY_LIMIT));
+
+            System.arraycopy(indices, at, indices, at + 1, count - at);
+            indices[at] = (short) index;
+            count++;
+        }
+
+        int[] toArray() {
+            var result = new int[count];
+            if (bits == null) {
+                for (int i = 0; i < count; i++)
+                    result[i] = indices[i];
+                return result;
+            }
+
+            int n = 0;
+            for (int word = 0; word < bits.length; word++) {
+                for (long remaining = bits[word]; remaining != 0; remaining &= remaining - 1)
+                    result[n++] = word << 6 | Long.numberOfTrailingZeros(remaining);
+            }
+
+            return result;
+        }
+
+        // The count, then either the indices or the bitmap, whichever the count calls for
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(count);
+            if (bits == null) {
+                for (int i = 0; i < count; i++)
+                    out.writeShort(indices[i]);
+            } else {
+                for (long word : bits)
+                    out.writeLong(word);
+            }
+        }
+
+        static RegionChunks read(DataInputStream in) throws IOException {
+            var chunks = new RegionChunks();
+            int count = in.readUnsignedShort();
+            if (count > ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE)
+                throw new IOException("Corrupt chunk activity player index");
+
+            if (count <= ARRAY_LIMIT) {
+                chunks.indices = new short[Math.max(count, 4)];
+                for (int i = 0; i < count; i++)
+                    chunks.add(in.readUnsignedShort() & (ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE - 1));
+            } else {
+                chunks.bits = new long[ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE / 64];
+                chunks.indices = null;
+                for (int i = 0; i < chunks.bits.length; i++) {
+                    chunks.bits[i] = in.readLong();
+                    chunks.count += Long.bitCount(chunks.bits[i]);
+                }
+            }
+
+            return chunks;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package toni.chunkactivitytracker.data;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Interns player UUIDs to small ints, so per-chunk stats can be kept in primitive arrays instead of maps keyed by UUID.
+ * Indices are only stable for the lifetime of the process; files always store the UUID itself.
+ */
+public class PlayerIndex {
+    private static final Object2IntOpenHashMap<UUID> indices = new Object2IntOpenHashMap<>();
+    private static volatile UUID[] players = new UUID[16];
+    private static int count;
+
+    static {
+        indices.defaultReturnValue(-1);
+    }
+
+    public static int indexOf(UUID player) {
+        synchronized (indices) {
+            int index = indices.getInt(player);
+            if (index != -1)
+                return index;
+
+            index = count++;
+            var current = players;
+            if (index == current.length)
+                current = Arrays.copyOf(current, current.length * 2);
+
+            current[index] = player;
+            players = current;
+            indices.put(player, index);
+            return index;
+        }
+    }
+
+    // Returns -1 for players that have never been interned, without interning them
+    public static int find(UUID player) {
+        synchronized (indices) {
+            return indices.getInt(player);
+        }
+    }
+
+    public static UUID get(int index) {
+        return players[index];
+    }
+
+    public static int size() {
+        synchronized (indices) {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package toni.chunkactivitytracker.data;
+
+import net.minecraft.world.level.ChunkPos;
+
+/**
+ * Total activity of one 32x32 chunk region, as returned by the region ranking queries.
+ */
+public record RegionActivity(long regionPos, long totalTime, int chunkCount) {
+    public int regionX() {
+        return ChunkPos.getX(regionPos);
+    }
+
+    public int regionZ() {
+        return ChunkPos.getZ(regionPos);
+    }
+
+    // Chunk at the north-west corner of the region
+    public ChunkPos minChunk() {
+        return new ChunkPos(regionX() << ChunkActivityRegion.SHIFT, regionZ() << ChunkActivityRegion.SHIFT);
+    }
+}
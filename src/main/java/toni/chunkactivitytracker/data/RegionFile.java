@@ -0,0 +1,130 @@
+package toni.chunkactivitytracker.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+#if mc >= 211
+import net.minecraft.network.codec.StreamCodec;
+#else
+import toni.lib.networking.codecs.StreamCodec;
+#endif
+
+/**
+ * On-disk layout of a region file. From format 2 on, files start with a magic number, the format version and the
+ * compression type, followed by the region encoded with ChunkActivityRegion.CODEC. Format 4 adds a CRC32 of the
+ * compressed payload after the compression type, format 5 adds blocks broken to each chunk and format 6 its activity
+ * history. Older files lack these, as well as the log sequence before format 4 and visit data before format 3; they
+ * are read with the matching codec. Format 1 files are bare GZIP streams of ChunkActivityRegion.LEGACY_CODEC. Older
+ * formats are still readable, and are rewritten in the current format the next time the region is saved.
+ */
+public class RegionFile {
+    private static final int MAGIC = 0x43415452; // "CATR"
+    public static final int FORMAT_VERSION = 6;
+
+    public static byte[] write(ChunkActivityRegion region, StorageCompression compression, int level) throws IOException {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            long start = TrackerMetrics.start();
+            ChunkActivityRegion.CODEC.encode(buffer, region);
+            TrackerMetrics.end(Phase.ENCODE, start);
+
+            start = TrackerMetrics.start();
+            var payload = new ByteArrayOutputStream(buffer.readableBytes() / 2 + 16);
+            try (var out = compression.wrap(payload, level)) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+            }
+            TrackerMetrics.end(Phase.COMPRESS, start);
+
+            var checksum = new CRC32();
+            checksum.update(payload.toByteArray());
+
+            var byteOut = new ByteArrayOutputStream(payload.size() + 16);
+            var header = new DataOutputStream(byteOut);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(compression.id);
+            header.writeInt((int) checksum.getValue());
+            payload.writeTo(byteOut);
+
+            return byteOut.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public static ChunkActivityRegion read(byte[] data) throws IOException {
+        if (data.length >= 2 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b) {
+            try (var gzipIn = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return decode(ChunkActivityRegion.LEGACY_CODEC, gzipIn.readAllBytes());
+            }
+        }
+
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < 6 || in.readInt() != MAGIC)
+            throw new IOException("Not a chunk activity region file");
+
+        int version = in.readUnsignedByte();
+        if (version < 2 || version > FORMAT_VERSION)
+            throw new IOException("Unsupported chunk activity region format " + version);
+
+        var compression = StorageCompression.byId(in.readUnsignedByte());
+        if (version >= 4) {
+            if (data.length < 10)
+                throw new IOException("Truncated chunk activity region file");
+
+            int expected = in.readInt();
+            var checksum = new CRC32();
+            checksum.update(data, 10, data.length - 10);
+            if ((int) checksum.getValue() != expected)
+                throw new IOException("Chunk activity region checksum mismatch");
+        }
+
+        var codec = switch (version) {
+            case 2 -> ChunkActivityRegion.V2_CODEC;
+            case 3 -> ChunkActivityRegion.V3_CODEC;
+            case 4 -> ChunkActivityRegion.V4_CODEC;
+            case 5 -> ChunkActivityRegion.V5_CODEC;
+            default -> ChunkActivityRegion.CODEC;
+        };
+
+        try (var payload = compression.unwrap(in)) {
+            return decode(codec, payload.readAllBytes());
+        }
+    }
+
+    // Log sequence of the region, decompressing only as much as needed. 0 for formats from before it was stored.
+    public static long readSequence(byte[] data) throws IOException {
+        if (data.length >= 2 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b)
+            return 0;
+
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < 10 || in.readInt() != MAGIC)
+            throw new IOException("Not a chunk activity region file");
+
+        int version = in.readUnsignedByte();
+        if (version < 4 || version > FORMAT_VERSION)
+            return 0;
+
+        var compression = StorageCompression.byId(in.readUnsignedByte());
+        in.readInt();
+        try (var payload = new DataInputStream(compression.unwrap(in))) {
+            payload.readLong();
+            return payload.readLong();
+        }
+    }
+
+    private static ChunkActivityRegion decode(StreamCodec<ByteBuf, ChunkActivityRegion> codec, byte[] data) {
+        ByteBuf buffer = Unpooled.wrappedBuffer(data);
+        try {
+            return codec.decode(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package toni.chunkactivitytracker.data;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Where a paged map keeps its regions on disk. Reads may come from any thread, while writes only ever come from the IO
+ * thread, one at a time.
+ */
+public interface RegionStorage {
+    // Detached copy of the stored region, or null if nothing is stored for it. Throws CorruptRegionException if the
+    // stored data can't be decoded.
+    ChunkActivityRegion read(long regionPos) throws IOException;
+
+    void write(ChunkActivityRegion region) throws IOException;
+
+    // Log sequence the stored region was saved with, or 0 if nothing is stored. Storage that can get at it without
+    // decoding the whole region should.
+    default long readSequence(long regionPos) throws IOException {
+        var region = read(regionPos);
+        return region != null ? region.walSequence : 0;
+    }
+
+    // Positions of every stored region
+    long[] list() throws IOException;
+
+    // File the region is stored in, whether or not it exists
+    Path file(long regionPos);
+
+    // Renames the stored region's file by appending the suffix, e.g. to keep a corrupt file out of the way
+    Path moveAside(long regionPos, String suffix) throws IOException;
+
+    default void close() {
+    }
+}
@@ -0,0 +1,170 @@
+package toni.chunkactivitytracker.data;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongConsumer;
+
+/**
+ * Total time and chunk count of every region of a paged map that has been written to disk, so area and top-K queries
+ * don't have to page in regions that aren't resident. Updated whenever a region snapshot is queued for writing and
+ * kept in a summary file next to the region files. If that file is missing it is rebuilt by reading every region file
+ * once, in the background.
+ */
+public class RegionSummaryIndex {
+    private static final int MAGIC = 0x43415453; // "CATS"
+    public static final int FORMAT_VERSION = 1;
+
+    private final String dimension;
+    private final RegionStorage storage;
+    private final Path file;
+
+    // Guarded by this
+    private final Long2LongOpenHashMap totals = new Long2LongOpenHashMap();
+    private final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+    private volatile boolean loaded;
+
+    public RegionSummaryIndex(String dimension, RegionStorage storage, Path regionDir) {
+        this.dimension = dimension;
+        this.storage = storage;
+        this.file = regionDir.resolve("summary.dat");
+    }
+
+    public synchronized void update(long regionPos, long totalTime, int chunkCount) {
+        totals.put(regionPos, totalTime);
+        counts.put(regionPos, chunkCount);
+    }
+
+    public synchronized long getTotalTime(long regionPos) {
+        return totals.get(regionPos);
+    }
+
+    public synchronized int getChunkCount(long regionPos) {
+        return counts.get(regionPos);
+    }
+
+    // False only if the region is known to have no file. Until the summary has been loaded nothing is known.
+    public synchronized boolean mayContain(long regionPos) {
+        return !loaded || counts.containsKey(regionPos);
+    }
+
+    public synchronized void forEach(LongConsumer regionPos) {
+        totals.keySet().forEach(regionPos);
+    }
+
+    public synchronized int size() {
+        return totals.size();
+    }
+
+    // Queues the summary file to be rewritten on the IO thread, after any region writes queued before it
+    public void queueSave() {
+        ChunkActivityIO.submitSave("summary/" + dimension, this::save);
+    }
+
+    private void save() {
+        try {
+            var byteOut = new ByteArrayOutputStream();
+            var out = new DataOutputStream(byteOut);
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+
+            synchronized (this) {
+                out.writeInt(totals.size());
+                for (var entry : totals.long2LongEntrySet()) {
+                    out.writeLong(entry.getLongKey());
+                    out.writeLong(entry.getLongValue());
+                    out.writeInt(counts.get(entry.getLongKey()));
+                }
+            }
+
+            ChunkActivityIO.writeAtomically(file, byteOut.toByteArray());
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when saving chunk activity summary '" + file + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the summary file, or rebuilds it from the region files if there isn't one. Meant to run on the IO thread.
+     * Regions updated while this runs are newer than anything on disk, so they're kept.
+     */
+    public void load() {
+        try {
+            if (Files.exists(file)) {
+                read();
+                loaded = true;
+                return;
+            }
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when loading chunk activity summary '" + file + "', rebuilding it: " + e.getMessage());
+        }
+
+        // If the rebuild fails the summary is incomplete, and queries keep checking the disk for regions it lacks
+        loaded = rebuild();
+    }
+
+    private void read() throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a chunk activity summary file");
+
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported chunk activity summary format " + version);
+
+            int size = in.readInt();
+            var readTotals = new Long2LongOpenHashMap(size);
+            var readCounts = new Long2IntOpenHashMap(size);
+            for (int i = 0; i < size; i++) {
+                long pos = in.readLong();
+                readTotals.put(pos, in.readLong());
+                readCounts.put(pos, in.readInt());
+            }
+
+            synchronized (this) {
+                readTotals.forEach(totals::putIfAbsent);
+                readCounts.forEach(counts::putIfAbsent);
+            }
+        }
+    }
+
+    private boolean rebuild() {
+        long startTime = System.currentTimeMillis();
+        int regionCount = 0;
+        boolean complete = true;
+        try {
+            for (long regionPos : storage.list()) {
+                try {
+                    var region = storage.read(regionPos);
+                    if (region == null)
+                        continue;
+
+                    synchronized (this) {
+                        totals.putIfAbsent(region.getPos(), region.getTotalTime());
+                        counts.putIfAbsent(region.getPos(), region.getCount());
+                    }
+                    regionCount++;
+                } catch (Exception e) {
+                    ChunkActivityTracker.LOGGER.error("Error when loading chunk activity region " + ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of dimension '" + dimension + "': " + e.getMessage());
+                    complete = false;
+                }
+            }
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when rebuilding chunk activity summary '" + file + "': " + e.getMessage());
+            return false;
+        }
+
+        if (regionCount > 0) {
+            save();
+
+            long endTime = System.currentTimeMillis();
+            ChunkActivityTracker.LOGGER.info("Rebuilt chunk activity summary of " + regionCount + " regions for dimension '" + dimension + "' in " + (endTime - startTime) + " milliseconds");
+        }
+
+        return complete;
+    }
+}
@@ -0,0 +1,59 @@
+package toni.chunkactivitytracker.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.*;
+
+/**
+ * Compression applied to region files. The id is what gets written to the file header, so it must never change.
+ */
+public enum StorageCompression {
+    NONE(0),
+    GZIP(1),
+    DEFLATE(2);
+
+    public final int id;
+
+    StorageCompression(int id) {
+        this.id = id;
+    }
+
+    public static StorageCompression byId(int id) throws IOException {
+        for (var compression : values()) {
+            if (compression.id == id)
+                return compression;
+        }
+
+        throw new IOException("Unknown chunk activity compression type " + id);
+    }
+
+    public OutputStream wrap(OutputStream out, int level) throws IOException {
+        return switch (this) {
+            case NONE -> out;
+            case GZIP -> new GZIPOutputStream(out) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            case DEFLATE -> new DeflaterOutputStream(out, new Deflater(level)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        };
+    }
+
+    public InputStream unwrap(InputStream in) throws IOException {
+        return switch (this) {
+            case NONE -> in;
+            case GZIP -> new GZIPInputStream(in);
+            case DEFLATE -> new InflaterInputStream(in);
+        };
+    }
+}
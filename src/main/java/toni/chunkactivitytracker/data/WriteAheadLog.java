@@ -0,0 +1,722 @@
+package toni.chunkactivitytracker.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.metrics.Counter;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the activity added to a paged map since its regions were last written, so a crash loses at most
+ * one flush interval instead of everything since the last save. Records are collected in memory on the thread that
+ * adds the activity and appended to the current segment file by a background thread, which also syncs it to disk.
+ * <p>
+ * Every chunk update gets its own sequence number, and a region remembers the highest one it contains, which is stored
+ * with it. On startup the segments left behind are replayed into the stored regions, skipping records a region already
+ * has, so a log that was only partly saved isn't counted twice. Each save starts a new segment, and the segments before
+ * it are deleted once the save's region writes are done.
+ * <p>
+ * Segments left behind are only deleted once every record in them is in its region on disk. Records replay couldn't
+ * apply, e.g. because the region couldn't be read, are added when the region is next read instead, and the segments
+ * are kept until a save has written it. If the region isn't read again before the server stops, they're replayed on
+ * the next start.
+ * <p>
+ * Sequences have to keep increasing across restarts, no matter what the clock does. A new run starts above both the
+ * limit in the sequence file and the highest sequence in the segments left behind. The limit is moved a block ahead of
+ * the sequences handed out on the flusher and IO threads, never on the thread adding activity, and always before a
+ * segment is deleted, so a sequence that is no longer in any segment is below it. Without that file, e.g. for logs
+ * written before it existed, the run also starts above the highest sequence in the region files next to the log.
+ * <p>
+ * Segments are named n.log in the wal directory next to the region files. Each record is its length, a CRC32 of its
+ * payload and the payload. A torn or corrupt record ends replay of its segment.
+ */
+public class WriteAheadLog {
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "ChunkActivityTracker WAL");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int PLAYER = 0;
+    private static final int ACTIVITY = 1;
+    // Blocks placed only, as written before broken blocks were tracked. Still replayed.
+    private static final int BLOCKS = 2;
+    private static final int BLOCK_CHANGES = 3;
+
+    // Sequences reserved at a time, so the sequence file is only rewritten once every so many records
+    private static final long SEQUENCE_BLOCK = 1L << 20;
+
+    private final String dimension;
+    private final Path directory;
+    private final Path sequenceFile;
+
+    // Guarded by this. Records not yet handed to the flusher, and the segment they belong to.
+    private ByteBuf pending = Unpooled.buffer(4096);
+    private int segment;
+    private long sequence;
+
+    // Guarded by reserveLock. Limit last written to the sequence file, or -1 if there is none.
+    private final Object reserveLock = new Object();
+    private long reserved;
+    // Players whose UUID has been written to the current segment
+    private final IntOpenHashSet knownPlayers = new IntOpenHashSet();
+    // Records of segments that were sealed before the flusher got to them
+    private final ArrayList<Sealed> sealed = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by flushLock
+    private final Object flushLock = new Object();
+    private FileChannel channel;
+    private int channelSegment = -1;
+    private boolean closed;
+
+    // Segments from before this log was opened, to be replayed. The ones this log writes are numbered from firstSegment.
+    private final int[] leftover;
+    private final int firstSegment;
+    private ScheduledFuture<?> flushTask;
+
+    // Guarded by this. Records of leftover segments that replay couldn't add to their region, by region position.
+    private final Long2ObjectOpenHashMap<ArrayList<ByteBuf>> unapplied = new Long2ObjectOpenHashMap<>();
+    // Guarded by this. The leftover segments can go once replay has run, nothing is left unapplied, every segment
+    // could be read and a save sealed leftoverSavedFrom or a later segment.
+    private boolean replayed;
+    private boolean leftoverUnreadable;
+    private boolean leftoverRetired;
+    private int leftoverSavedFrom;
+
+    private record Sealed(int segment, ByteBuf records) {}
+
+    @FunctionalInterface
+    interface RegionSource {
+        ChunkActivityRegion read(long regionPos) throws IOException;
+    }
+
+    public WriteAheadLog(String dimension, Path directory) throws IOException {
+        this.dimension = dimension;
+        this.directory = directory;
+        this.sequenceFile = directory.resolve("sequence");
+
+        Files.createDirectories(directory);
+        leftover = listSegments(directory);
+        segment = leftover.length > 0 ? leftover[leftover.length - 1] + 1 : 0;
+        firstSegment = segment;
+        leftoverRetired = leftover.length == 0;
+
+        reserved = readReserved();
+        sequence = findHighestSequence();
+    }
+
+    private long readReserved() {
+        if (!Files.exists(sequenceFile))
+            return -1;
+
+        try {
+            var data = Files.readAllBytes(sequenceFile);
+            if (data.length == 8)
+                return ByteBuffer.wrap(data).getLong();
+        } catch (IOException e) {
+            ChunkActivityTracker.LOGGER.error("Error when reading chunk activity log sequence '" + sequenceFile + "': " + e.getMessage());
+        }
+
+        return -1;
+    }
+
+    // Highest sequence an earlier run may have used: the reserved limit if there is one, and the records of the leftover
+    // segments, which are read again by replay. Without a limit, every region file next to the log is looked at too.
+    private long findHighestSequence() throws IOException {
+        long highest = reserved;
+        if (highest < 0 && directory.getParent() != null)
+            highest = findHighestStoredSequence(directory.getParent());
+
+        for (int existing : leftover) {
+            try {
+                highest = Math.max(highest, readHighestSequence(segmentFile(existing)));
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when reading chunk activity log segment '" + segmentFile(existing) + "': " + e.getMessage());
+            }
+        }
+
+        return Math.max(highest, 0);
+    }
+
+    private long findHighestStoredSequence(Path regionDir) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long highest = 0;
+        int regionCount = 0;
+        var storage = new CompressedRegionStorage(regionDir);
+        for (long regionPos : storage.list()) {
+            try {
+                highest = Math.max(highest, storage.readSequence(regionPos));
+                regionCount++;
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when reading the log sequence of chunk activity region " + ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of dimension '" + dimension + "': " + e.getMessage());
+            }
+        }
+
+        if (regionCount > 0) {
+            long endTime = System.currentTimeMillis();
+            ChunkActivityTracker.LOGGER.info("Read the log sequences of " + regionCount + " chunk activity regions for dimension '" + dimension + "' in " + (endTime - startTime) + " milliseconds");
+        }
+
+        return highest;
+    }
+
+    private static long readHighestSequence(Path file) throws IOException {
+        var data = Unpooled.wrappedBuffer(Files.readAllBytes(file));
+        long highest = 0;
+        while (data.readableBytes() >= 8) {
+            int length = data.readInt();
+            data.readInt();
+            if (length <= 0 || length > data.readableBytes())
+                break;
+
+            var record = data.readSlice(length);
+            if (record.readByte() != PLAYER && record.readableBytes() >= 8)
+                highest = Math.max(highest, record.readLong());
+        }
+
+        return highest;
+    }
+
+    // Called with this locked. Only counts, the limit is kept ahead by reserveAhead.
+    private long nextSequence() {
+        return ++sequence;
+    }
+
+    /**
+     * Moves the limit in the sequence file a block past the sequences handed out so far, once half of the current
+     * block is used. Writing it syncs to disk, so it only runs on the flusher and IO threads: when the log is replayed,
+     * after every flush, and before segments are deleted. If the write fails the file is removed, so the next start
+     * falls back to looking at the segments and regions instead of trusting an old limit.
+     */
+    private void reserveAhead() {
+        synchronized (reserveLock) {
+            long current;
+            synchronized (this) {
+                current = sequence;
+            }
+            if (current + SEQUENCE_BLOCK / 2 <= reserved)
+                return;
+
+            reserved = current + SEQUENCE_BLOCK;
+            try {
+                ChunkActivityIO.writeAtomically(sequenceFile, ByteBuffer.allocate(8).putLong(reserved).array());
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when writing chunk activity log sequence '" + sequenceFile + "': " + e.getMessage());
+                try {
+                    Files.deleteIfExists(sequenceFile);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Number of segments left behind by the last run, waiting to be replayed
+    public int getLeftoverCount() {
+        return leftover.length;
+    }
+
+    // Starts syncing the log to disk every interval seconds
+    public void start(int interval) {
+        flushTask = FLUSHER.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Logs and adds activity to a chunk. The chunk's region is locked while the activity is added and its sequence
+     * updated, so a region snapshot either has both or neither.
+     */
+    public synchronized void addActivity(long chunkPos, ChunkActivityInfo info, int[] players, long[] seconds, int start, int end, int visits, long timestamp) {
+        for (int i = start; i < end; i++)
+            notePlayer(players[i]);
+
+        long seq = nextSequence();
+        int mark = beginRecord();
+        var buf = new FriendlyByteBuf(pending);
+        buf.writeByte(ACTIVITY);
+        buf.writeLong(seq);
+        buf.writeLong(chunkPos);
+        buf.writeVarInt(visits);
+        buf.writeLong(timestamp);
+        buf.writeVarInt(end - start);
+        for (int i = start; i < end; i++) {
+            buf.writeVarInt(players[i]);
+            buf.writeVarLong(seconds[i]);
+        }
+        endRecord(mark);
+
+        apply(info, seq, () -> info.addActivity(players, seconds, start, end, visits, timestamp));
+    }
+
+    public synchronized void addBlockChanges(long chunkPos, ChunkActivityInfo info, int player, int placed, int broken) {
+        notePlayer(player);
+
+        long seq = nextSequence();
+        int mark = beginRecord();
+        var buf = new FriendlyByteBuf(pending);
+        buf.writeByte(BLOCK_CHANGES);
+        buf.writeLong(seq);
+        buf.writeLong(chunkPos);
+        buf.writeVarInt(player);
+        buf.writeVarInt(placed);
+        buf.writeVarInt(broken);
+        endRecord(mark);
+
+        apply(info, seq, () -> info.addBlockChanges(player, placed, broken));
+    }
+
+    private static void apply(ChunkActivityInfo info, long seq, Runnable change) {
+        var region = info.region;
+        if (region == null) {
+            change.run();
+            return;
+        }
+
+        synchronized (region) {
+            change.run();
+            region.noteSequence(seq);
+        }
+    }
+
+    private void notePlayer(int player) {
+        if (!knownPlayers.add(player))
+            return;
+
+        int mark = beginRecord();
+        var buf = new FriendlyByteBuf(pending);
+        buf.writeByte(PLAYER);
+        buf.writeVarInt(player);
+        buf.writeUUID(PlayerIndex.get(player));
+        endRecord(mark);
+    }
+
+    // Leaves room for the length and checksum, which are filled in once the payload is written
+    private int beginRecord() {
+        int mark = pending.writerIndex();
+        pending.writeLong(0L);
+        return mark;
+    }
+
+    private void endRecord(int mark) {
+        int length = pending.writerIndex() - mark - 8;
+        crc.reset();
+        crc.update(pending.nioBuffer(mark + 8, length));
+        pending.setInt(mark, length);
+        pending.setInt(mark + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Starts a new segment and returns the number of the last one it sealed. Called when a save takes its region
+     * snapshots, so every record in the sealed segments is in those snapshots or already on disk.
+     */
+    public synchronized int rotate() {
+        sealed.add(new Sealed(segment, pending));
+        pending = Unpooled.buffer(4096);
+        knownPlayers.clear();
+        return segment++;
+    }
+
+    // Appends the records collected so far to their segments and syncs them to disk. Runs on the flusher and IO threads.
+    public void flush() {
+        synchronized (flushLock) {
+            if (closed)
+                return;
+
+            ArrayList<Sealed> toWrite;
+            synchronized (this) {
+                toWrite = new ArrayList<>(sealed);
+                sealed.clear();
+                if (pending.isReadable()) {
+                    toWrite.add(new Sealed(segment, pending));
+                    pending = Unpooled.buffer(4096);
+                }
+            }
+
+            long start = TrackerMetrics.start();
+            try {
+                for (var records : toWrite) {
+                    write(records.segment(), records.records());
+                    TrackerMetrics.add(Counter.LOG_BYTES_WRITTEN, records.records().readableBytes());
+                }
+
+                if (channel != null)
+                    channel.force(false);
+
+                TrackerMetrics.end(Phase.LOG_FLUSH, start);
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when writing chunk activity log of dimension '" + dimension + "': " + e.getMessage());
+            }
+        }
+
+        reserveAhead();
+    }
+
+    // Called with flushLock held
+    private void write(int toSegment, ByteBuf records) throws IOException {
+        if (channelSegment != toSegment) {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+            }
+
+            channel = FileChannel.open(segmentFile(toSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channelSegment = toSegment;
+        }
+
+        var data = records.nioBuffer();
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    /**
+     * Deletes the segments this log wrote up to and including the given one, and the leftover segments once everything
+     * in them has been saved. Meant to run on the IO thread, after the writes of the save that sealed it.
+     */
+    public void retire(int upTo) {
+        // The deleted segments' sequences have to stay below the limit
+        reserveAhead();
+
+        synchronized (flushLock) {
+            if (closed)
+                return;
+
+            boolean retireLeftover;
+            synchronized (this) {
+                sealed.removeIf(records -> records.segment() <= upTo);
+
+                retireLeftover = replayed && !leftoverRetired && !leftoverUnreadable && unapplied.isEmpty() && upTo >= leftoverSavedFrom;
+                if (retireLeftover)
+                    leftoverRetired = true;
+            }
+
+            try {
+                if (channel != null && channelSegment <= upTo) {
+                    channel.close();
+                    channel = null;
+                    channelSegment = -1;
+                }
+
+                for (int existing : listSegments(directory)) {
+                    if (existing >= firstSegment && existing <= upTo)
+                        Files.deleteIfExists(segmentFile(existing));
+                }
+
+                if (retireLeftover)
+                    deleteLeftover();
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when deleting chunk activity log of dimension '" + dimension + "': " + e.getMessage());
+            }
+        }
+    }
+
+    private void deleteLeftover() {
+        for (int existing : leftover) {
+            try {
+                Files.deleteIfExists(segmentFile(existing));
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when deleting chunk activity log segment '" + segmentFile(existing) + "': " + e.getMessage());
+            }
+        }
+    }
+
+    // Stops the flusher after writing out what's left
+    public void close() {
+        if (flushTask != null)
+            flushTask.cancel(false);
+
+        flush();
+
+        synchronized (flushLock) {
+            closed = true;
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException e) {
+                ChunkActivityTracker.LOGGER.error("Error when closing chunk activity log of dimension '" + dimension + "': " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Adds the records in the segments left behind by the last run to the stored regions and writes them back, then
+     * deletes those segments. Meant to run on the IO thread before any region of this map is read. The players of
+     * every region the log touched are added to the player index, including regions that already had the records,
+     * since the index may have been saved before them.
+     * <p>
+     * A region that can't be read or written keeps its records in memory, to be added by applyUnapplied when the
+     * region is next read. Source has to throw rather than return null for a region that is stored but can't be read,
+     * or the region would be written over with just the logged records.
+     */
+    public void replay(RegionSource source, RegionStorage storage, RegionSummaryIndex summary, PlayerChunkIndex players) {
+        // Reserves the first block, and puts the limit above the leftover segments before they're deleted
+        reserveAhead();
+
+        if (leftover.length == 0) {
+            synchronized (this) {
+                replayed = true;
+            }
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        var records = new Long2ObjectOpenHashMap<ArrayList<ByteBuf>>();
+        int recordCount = 0;
+        boolean unreadable = false;
+        for (int existing : leftover) {
+            try {
+                recordCount += readSegment(segmentFile(existing), records);
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when reading chunk activity log segment '" + segmentFile(existing) + "', keeping it for the next start: " + e.getMessage());
+                unreadable = true;
+            }
+        }
+
+        var failed = new Long2ObjectOpenHashMap<ArrayList<ByteBuf>>();
+        int replayed = 0;
+        for (var entry : records.long2ObjectEntrySet()) {
+            long regionPos = entry.getLongKey();
+            try {
+                var region = source.read(regionPos);
+                if (region == null)
+                    region = new ChunkActivityRegion(null, regionPos);
+
+                long stored = region.walSequence;
+                int applied = 0;
+                for (var record : entry.getValue()) {
+                    if (applyRecord(region, record, stored))
+                        applied++;
+                }
+
+                if (players != null)
+                    players.addRegion(region);
+
+                if (applied == 0)
+                    continue;
+
+                storage.write(region);
+                if (summary != null)
+                    summary.update(regionPos, region.getTotalTime(), region.getCount());
+
+                replayed += applied;
+            } catch (Exception e) {
+                ChunkActivityTracker.LOGGER.error("Error when replaying chunk activity log into region " + ChunkPos.getX(regionPos) + ", " + ChunkPos.getZ(regionPos) + " of dimension '" + dimension + "', adding it once the region is loaded: " + e.getMessage());
+                failed.put(regionPos, entry.getValue());
+            }
+        }
+
+        if (summary != null && replayed > 0)
+            summary.queueSave();
+        if (players != null)
+            players.queueSave();
+
+        boolean complete;
+        synchronized (this) {
+            this.replayed = true;
+            leftoverUnreadable = unreadable;
+            unapplied.putAll(failed);
+            leftoverSavedFrom = segment;
+            complete = unapplied.isEmpty() && !unreadable;
+            if (complete)
+                leftoverRetired = true;
+        }
+
+        // Everything is in the stored regions now. Otherwise the segments stay until retire() finds that the rest has
+        // been saved too, or are replayed again on the next start, skipping the records already in their region.
+        if (complete)
+            deleteLeftover();
+
+        long endTime = System.currentTimeMillis();
+        ChunkActivityTracker.LOGGER.info("Replayed " + replayed + " of " + recordCount + " logged chunk activity updates into " + records.size() + " regions for dimension '" + dimension + "' in " + (endTime - startTime) + " milliseconds");
+    }
+
+    /**
+     * Adds the records replay couldn't apply to the region just read for the given position, or to a new one if
+     * nothing was stored. Returns null if there were none, otherwise the region. The records are kept until
+     * finishApplying is called for the region, once it's written or can be picked up by a save. Meant for the IO
+     * thread, like replay.
+     */
+    ChunkActivityRegion applyUnapplied(long regionPos, ChunkActivityRegion region) {
+        ArrayList<ByteBuf> records;
+        synchronized (this) {
+            records = unapplied.get(regionPos);
+        }
+        if (records == null)
+            return null;
+
+        if (region == null)
+            region = new ChunkActivityRegion(null, regionPos);
+
+        long stored = region.walSequence;
+        for (var record : records)
+            applyRecord(region, record, stored);
+
+        return region;
+    }
+
+    void finishApplying(long regionPos) {
+        synchronized (this) {
+            if (unapplied.remove(regionPos) != null && unapplied.isEmpty()) {
+                // A save that seals this segment or a later one snapshots the region after this
+                leftoverSavedFrom = segment;
+            }
+        }
+    }
+
+    // Regions with records replay couldn't apply
+    public synchronized int getUnappliedCount() {
+        return unapplied.size();
+    }
+
+    // Groups the segment's chunk records by region, with player indices translated to this process's. Returns how many there were.
+    private static int readSegment(Path file, Long2ObjectOpenHashMap<ArrayList<ByteBuf>> records) throws IOException {
+        var data = Unpooled.wrappedBuffer(Files.readAllBytes(file));
+        var players = new Int2IntOpenHashMap();
+        players.defaultReturnValue(-1);
+        var crc = new CRC32();
+
+        int count = 0;
+        while (data.readableBytes() >= 8) {
+            int length = data.readInt();
+            int checksum = data.readInt();
+            if (length <= 0 || length > data.readableBytes())
+                break;
+
+            crc.reset();
+            crc.update(data.nioBuffer(data.readerIndex(), length));
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            var record = new FriendlyByteBuf(data.readSlice(length));
+            int type = record.readByte();
+            if (type == PLAYER) {
+                int player = record.readVarInt();
+                players.put(player, PlayerIndex.indexOf(record.readUUID()));
+                continue;
+            }
+
+            // Rewritten with local player indices, so applying doesn't need this segment's players
+            var translated = new FriendlyByteBuf(Unpooled.buffer(length));
+            translated.writeByte(type);
+            translated.writeLong(record.readLong());
+            long chunkPos = record.readLong();
+            translated.writeLong(chunkPos);
+            if (type == ACTIVITY) {
+                translated.writeVarInt(record.readVarInt());
+                translated.writeLong(record.readLong());
+                int entries = record.readVarInt();
+                translated.writeVarInt(entries);
+                for (int i = 0; i < entries; i++) {
+                    translated.writeVarInt(translate(players, record.readVarInt()));
+                    translated.writeVarLong(record.readVarLong());
+                }
+            } else if (type == BLOCKS || type == BLOCK_CHANGES) {
+                translated.writeVarInt(translate(players, record.readVarInt()));
+                translated.writeVarInt(record.readVarInt());
+                translated.writeVarInt(type == BLOCK_CHANGES ? record.readVarInt() : 0);
+            } else {
+                throw new IOException("Unknown chunk activity log record " + type);
+            }
+
+            records.computeIfAbsent(ChunkActivityRegion.regionKey(chunkPos), key -> new ArrayList<>()).add(translated);
+            count++;
+        }
+
+        return count;
+    }
+
+    private static int translate(Int2IntOpenHashMap players, int player) throws IOException {
+        int index = players.get(player);
+        if (index == -1)
+            throw new IOException("Chunk activity log refers to unknown player " + player);
+
+        return index;
+    }
+
+    // Adds a translated record to the region unless the region already had it. Returns whether it was added.
+    private static boolean applyRecord(ChunkActivityRegion region, ByteBuf record, long stored) {
+        var buf = new FriendlyByteBuf(record.duplicate());
+        int type = buf.readByte();
+        long seq = buf.readLong();
+        if (seq <= stored)
+            return false;
+
+        long chunkPos = buf.readLong();
+        int index = ChunkActivityRegion.localIndex(chunkPos);
+        var info = region.get(index);
+        if (type == ACTIVITY) {
+            int visits = buf.readVarInt();
+            long timestamp = buf.readLong();
+            int entries = buf.readVarInt();
+            var players = new int[entries];
+            var seconds = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                players[i] = buf.readVarInt();
+                seconds[i] = buf.readVarLong();
+            }
+
+            if (info == null)
+                info = region.put(index, new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), null));
+
+            info.addActivity(players, seconds, 0, entries, visits, timestamp);
+        } else {
+            int player = buf.readVarInt();
+            int placed = buf.readVarInt();
+            int broken = buf.readVarInt();
+
+            if (info == null)
+                info = region.put(index, new ChunkActivityInfo(Collections.emptyMap(), Collections.emptyMap(), null));
+
+            info.addBlockChanges(player, placed, broken);
+        }
+
+        region.noteSequence(seq);
+        return true;
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(number + ".log");
+    }
+
+    static int[] listSegments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return new int[0];
+
+        var segments = new IntArrayList();
+
+        try (var files = Files.newDirectoryStream(directory, "*.log")) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                try {
+                    segments.add(Integer.parseInt(name.substring(0, name.length() - ".log".length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        var sorted = segments.toIntArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
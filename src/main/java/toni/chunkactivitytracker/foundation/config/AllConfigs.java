@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import toni.chunkactivitytracker.ChunkActivityTracker;
@@ -57,6 +58,11 @@ public class AllConfigs {
         return server;
     }
 
+    // Server config values only exist while a server is running. Headless callers such as benchmarks get the fallback.
+    public static <T> T server(Function<CServer, ? extends Supplier<T>> value, T fallback) {
+        return server == null ? fallback : value.apply(server).get();
+    }
+
     public static ConfigBase byType(ModConfig.Type type) {
         return CONFIGS.get(type);
     }
@@ -1,10 +1,29 @@
 package toni.chunkactivitytracker.foundation.config;
 
+import toni.chunkactivitytracker.data.StorageCompression;
+import toni.chunkactivitytracker.tracking.TimeAccounting;
 import toni.lib.config.ConfigBase;
 
 public class CServer extends ConfigBase {
 
-    public final ConfigBool storeHeightmaps = b(false, "Store Heightmap Info", "Store initial chunk heightmap data. Useful for some mods, disabled by default as it takes up much more space.");
+    public final ConfigBool storeHeightmaps = b(false, "Store Heightmap Info", "Store initial chunk heightmap data. Useful for some mods, disabled by default as it takes up much more disk space. Heightmaps are kept in separate files and only read when requested.");
+    public final ConfigEnum<TimeAccounting> timeAccounting = e(TimeAccounting.REAL_TIME, "Time Accounting", "How time in a chunk is measured. REAL_TIME credits the real time that passed, also while the server lags. SERVER_TICKS credits one second per 20 server ticks. SAMPLED credits one second per pass, which undercounts under lag.");
+    public final ConfigInt sampleInterval = i(20, 1, 1200, "Sample Interval", "How often, in ticks, time is settled for every player. Time is never lost between samples. Without chunk transition tracking, a longer interval makes the chunk it's credited to less precise. Not used by SAMPLED.");
+    public final ConfigBool trackTransitions = b(true, "Track Chunk Transitions", "Settle a player's time the moment they change chunks, using a cheap check every tick, so time lands in the right chunk regardless of the sample interval. Not used by SAMPLED.");
+    public final ConfigBool asyncAccounting = b(false, "Async Accounting", "Apply the per-second activity updates on a background thread instead of the server thread. Lookups may lag behind by up to a second.");
+    public final ConfigEnum<StorageCompression> storageCompression = e(StorageCompression.DEFLATE, "Storage Compression", "Compression used when writing region files. Files written with any setting can always be read back.");
+    public final ConfigInt compressionLevel = i(6, 0, 9, "Compression Level", "Compression level for GZIP and DEFLATE, from 0 (fastest) to 9 (smallest).");
+    public final ConfigInt maxLoadedRegions = i(4096, 16, Integer.MAX_VALUE, "Max Loaded Regions", "Maximum number of 32x32 chunk regions kept in memory per dimension. Least recently used regions are saved and unloaded past this limit.");
+    public final ConfigBool writeAheadLog = b(true, "Write-Ahead Log", "Log activity to disk between saves, so a crash loses at most a few seconds of it instead of everything since the last save. The log is replayed into the region files when the dimension loads.");
+    public final ConfigBool collectMetrics = b(false, "Collect Metrics", "Measure how long the tracker's hot paths take and count region loads and writes, shown by /chunkactivity stats. Costs a few nanoseconds per measured call while on, and next to nothing while off.");
+    public final ConfigInt metricsLogInterval = i(0, 0, 1440, "Metrics Log Interval", "Minutes between logging the collected metrics, or 0 to never log them. Only used with Collect Metrics.");
+    public final ConfigBool metricsJmx = b(false, "Metrics JMX", "Expose the collected metrics as the JMX bean toni.chunkactivitytracker:type=Metrics, for monitoring tools. Only used with Collect Metrics.");
+    public final ConfigBool activityHistory = b(false, "Activity History", "Keep a rolling history of the time spent in each chunk, per day for the last 16 days, per week for the last 9 weeks and per 4 weeks for the last year, so recent activity can be told apart from old. Adds about 200 bytes to every chunk visited while on.");
+    public final ConfigInt walFlushInterval = i(5, 1, 300, "Log Flush Interval", "Seconds between syncing the write-ahead log to disk. Activity from the last interval can be lost in a crash.");
+    public final ConfigInt overlaySyncInterval = i(40, 10, 1200, "Overlay Sync Interval", "How often, in ticks, players with the activity overlay turned on are sent the chunks around them that changed. Only chunks within view distance are sent, as their total time.");
+    public final ConfigInt heatmapInterval = i(0, 0, 1440, "Heatmap Interval", "Minutes between rendering heatmap tiles of every loaded dimension, or 0 to only render them with /chunkactivity heatmap. Each pass only redraws the tiles of regions that changed.");
+    public final ConfigInt heatmapZoomLevels = i(5, 1, 10, "Heatmap Zoom Levels", "Number of heatmap zoom levels. Zoom 0 tiles cover one 32x32 chunk region, each level above covers twice as much in each direction.");
+    public final ConfigInt heatmapFullScale = i(100, 1, 1000000, "Heatmap Full Scale", "Hours spent in a chunk for it to show up as the hottest colour on the heatmap. Colours are on a log scale below that. Changing it redraws every tile.");
 
     @Override
     public String getName() {
@@ -24,6 +24,8 @@ public class ConfigLangDatagen extends FabricLanguageProvider {
     @Override
     public void generateTranslations(#if AFTER_21_1 HolderLookup.Provider registryLookup, #endif TranslationBuilder translationBuilder) {
         AllConfigs.generateTranslations(translationBuilder);
+        translationBuilder.add("key.categories.chunkactivitytracker", ChunkActivityTracker.MODNAME);
+        translationBuilder.add("key.chunkactivitytracker.overlay", "Toggle Activity Overlay");
     }
 
     @Override
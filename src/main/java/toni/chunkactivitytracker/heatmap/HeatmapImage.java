@@ -0,0 +1,205 @@
+package toni.chunkactivitytracker.heatmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A square tile of heat levels, one byte per pixel, written as an 8-bit indexed PNG. Level 0 is transparent and
+ * levels 1 to 255 run from blue through green and yellow to red. Only what this class writes has to be read back, so
+ * the reader only supports indexed images without interlacing and with unfiltered rows.
+ */
+public class HeatmapImage {
+    public static final int SIZE = 512;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] PALETTE = new byte[256 * 3];
+    private static final byte[] ALPHA = new byte[256];
+
+    static {
+        for (int level = 1; level < 256; level++) {
+            // Hue from 240 degrees (blue) down to 0 (red)
+            float hue = (1 - (level - 1) / 254f) * 4;
+            int segment = Math.min((int) hue, 3);
+            float f = hue - segment;
+            int up = Math.round(255 * f), down = Math.round(255 * (1 - f));
+            int r, g, b;
+            switch (segment) {
+                case 0 -> { r = 255; g = up; b = 0; }
+                case 1 -> { r = down; g = 255; b = 0; }
+                case 2 -> { r = 0; g = 255; b = up; }
+                default -> { r = 0; g = down; b = 255; }
+            }
+
+            PALETTE[level * 3] = (byte) r;
+            PALETTE[level * 3 + 1] = (byte) g;
+            PALETTE[level * 3 + 2] = (byte) b;
+            ALPHA[level] = (byte) 0xC0;
+        }
+    }
+
+    private final byte[] pixels = new byte[SIZE * SIZE];
+
+    public int get(int x, int y) {
+        return pixels[y * SIZE + x] & 0xFF;
+    }
+
+    public void fill(int x, int y, int width, int height, int level) {
+        for (int row = y; row < y + height; row++)
+            Arrays.fill(pixels, row * SIZE + x, row * SIZE + x + width, (byte) level);
+    }
+
+    public boolean isEmpty() {
+        for (byte pixel : pixels) {
+            if (pixel != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Draws the image scaled down by half into one quarter of this one, keeping the hottest of every 2x2 pixels so
+     * a single busy chunk doesn't fade out at lower zoom levels. quarterX and quarterY are 0 or 1.
+     */
+    public void drawHalf(HeatmapImage child, int quarterX, int quarterY) {
+        int half = SIZE / 2;
+        for (int y = 0; y < half; y++) {
+            int from = y * 2 * SIZE;
+            int to = (quarterY * half + y) * SIZE + quarterX * half;
+            for (int x = 0; x < half; x++) {
+                int a = Math.max(child.pixels[from + x * 2] & 0xFF, child.pixels[from + x * 2 + 1] & 0xFF);
+                int b = Math.max(child.pixels[from + SIZE + x * 2] & 0xFF, child.pixels[from + SIZE + x * 2 + 1] & 0xFF);
+                pixels[to + x] = (byte) Math.max(a, b);
+            }
+        }
+    }
+
+    public byte[] encode() throws IOException {
+        var raw = new byte[SIZE * (SIZE + 1)];
+        for (int y = 0; y < SIZE; y++)
+            System.arraycopy(pixels, y * SIZE, raw, y * (SIZE + 1) + 1, SIZE);
+
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        var compressed = new ByteArrayOutputStream();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            var buffer = new byte[16 * 1024];
+            while (!deflater.finished())
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+        } finally {
+            deflater.end();
+        }
+
+        var byteOut = new ByteArrayOutputStream(compressed.size() + 1024);
+        var out = new DataOutputStream(byteOut);
+        out.write(SIGNATURE);
+
+        var header = new ByteArrayOutputStream();
+        var headerOut = new DataOutputStream(header);
+        headerOut.writeInt(SIZE);
+        headerOut.writeInt(SIZE);
+        headerOut.writeByte(8); // Bit depth
+        headerOut.writeByte(3); // Indexed colour
+        headerOut.writeByte(0); // Deflate
+        headerOut.writeByte(0); // Adaptive filtering, every row uses none
+        headerOut.writeByte(0); // No interlacing
+
+        writeChunk(out, "IHDR", header.toByteArray());
+        writeChunk(out, "PLTE", PALETTE);
+        writeChunk(out, "tRNS", ALPHA);
+        writeChunk(out, "IDAT", compressed.toByteArray());
+        writeChunk(out, "IEND", new byte[0]);
+        return byteOut.toByteArray();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        var typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        var crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Reads a tile written by encode, or returns null if there is no such file
+    public static HeatmapImage read(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+
+        var compressed = new ByteArrayOutputStream();
+        try (var in = new DataInputStream(Files.newInputStream(file))) {
+            var signature = new byte[SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE))
+                throw new IOException("Not a PNG file");
+
+            while (true) {
+                int length = in.readInt();
+                var typeBytes = new byte[4];
+                in.readFully(typeBytes);
+                var type = new String(typeBytes, StandardCharsets.US_ASCII);
+                if (length < 0 || length > SIZE * (SIZE + 1) * 2)
+                    throw new IOException("Corrupt heatmap tile");
+
+                var data = new byte[length];
+                in.readFully(data);
+                in.readInt(); // CRC
+
+                if (type.equals("IHDR")) {
+                    var header = ByteBuffer.wrap(data);
+                    if (length != 13 || header.getInt(0) != SIZE || header.getInt(4) != SIZE || data[8] != 8 || data[9] != 3 || data[12] != 0)
+                        throw new IOException("Unsupported heatmap tile format");
+                } else if (type.equals("IDAT")) {
+                    compressed.write(data);
+                } else if (type.equals("IEND")) {
+                    break;
+                }
+            }
+        }
+
+        var raw = new byte[SIZE * (SIZE + 1)];
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.toByteArray());
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                read += n;
+            }
+
+            if (read != raw.length)
+                throw new IOException("Truncated heatmap tile");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt heatmap tile: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        var image = new HeatmapImage();
+        for (int y = 0; y < SIZE; y++) {
+            if (raw[y * (SIZE + 1)] != 0)
+                throw new IOException("Unsupported heatmap tile filter");
+
+            System.arraycopy(raw, y * (SIZE + 1) + 1, image.pixels, y * SIZE, SIZE);
+        }
+
+        return image;
+    }
+}
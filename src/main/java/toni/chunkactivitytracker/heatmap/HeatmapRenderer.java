@@ -0,0 +1,344 @@
+package toni.chunkactivitytracker.heatmap;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.storage.LevelResource;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders a dimension's activity as heatmap tiles for web maps, under chunk_activity_info/tiles/dimension. Tiles
+ * are HeatmapImage.SIZE pixels square and named zoom/x_z.png. A zoom 0 tile is one region, 512 blocks across with a
+ * pixel per block, and each further zoom level covers twice as many blocks in each direction, down to a pixel per
+ * chunk at zoom 4. tiles.json next to them describes the layout.
+ * <p>
+ * Each pass only redraws the zoom 0 tiles of regions whose total time or chunk count changed since they were last
+ * drawn, which the region summaries answer without reading any region, and then the tiles above those. Lower zoom
+ * tiles are built from the four tiles below them rather than from the regions. Colours are on a fixed log scale up to
+ * Heatmap Full Scale, so a busy chunk elsewhere never changes a tile that didn't change itself.
+ * <p>
+ * Passes run one at a time on a background thread, holding at most a region copy and a couple of tiles at once.
+ * Tiles are written to a temporary file and moved into place, so a web server never serves a partial one.
+ */
+public class HeatmapRenderer {
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "ChunkActivityTracker Heatmap");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static final int MAGIC = 0x43415448; // "CATH"
+    public static final int FORMAT_VERSION = 1;
+    // Pixels per chunk in a zoom 0 tile
+    private static final int CHUNK_PIXELS = HeatmapImage.SIZE / ChunkActivityRegion.SIZE;
+
+    // By dimension, guarded by the class
+    private static final HashMap<String, HeatmapRenderer> renderers = new HashMap<>();
+    private static long lastRun = System.currentTimeMillis();
+
+    private final ChunkActivityMap map;
+    private final Path directory;
+    private CompletableFuture<Result> running;
+    private volatile boolean cancelled;
+
+    // What every drawn region looked like when it was drawn, and the settings it was drawn with. Heatmap thread only.
+    private final Long2LongOpenHashMap drawnTime = new Long2LongOpenHashMap();
+    private final Long2IntOpenHashMap drawnCount = new Long2IntOpenHashMap();
+    private boolean stateLoaded;
+    private int drawnZoomLevels;
+    private long drawnFullScale;
+
+    public record Result(String dimension, int regionsChanged, int tilesWritten, int tilesDeleted, long milliseconds) {
+    }
+
+    private HeatmapRenderer(ChunkActivityMap map, Path directory) {
+        this.map = map;
+        this.directory = directory;
+    }
+
+    /**
+     * Starts a pass over the dimension in the background, or returns the one that's already running. Completes with
+     * null if the pass was cancelled, or exceptionally if it failed.
+     */
+    public static synchronized CompletableFuture<Result> render(ChunkActivityMap map) {
+        var renderer = renderers.get(map.getDimension());
+        if (renderer == null || renderer.map != map) {
+            var directory = ChunkActivityTracker.getWorldPath(new LevelResource("chunk_activity_info/tiles/" + map.getDimension() + "/"));
+            if (directory == null)
+                return CompletableFuture.failedFuture(new IOException("Could not get chunk activity data location"));
+
+            renderer = new HeatmapRenderer(map, directory);
+            renderers.put(map.getDimension(), renderer);
+        }
+
+        if (renderer.running == null || renderer.running.isDone())
+            renderer.running = CompletableFuture.supplyAsync(renderer::run, EXECUTOR);
+
+        return renderer.running;
+    }
+
+    // Renders every loaded dimension once the Heatmap Interval has passed
+    public static void tick(MinecraftServer server) {
+        int interval = AllConfigs.server(config -> config.heatmapInterval, 0);
+        long now = System.currentTimeMillis();
+        if (interval <= 0) {
+            lastRun = now;
+            return;
+        }
+
+        if (now - lastRun < interval * 60_000L)
+            return;
+
+        lastRun = now;
+        for (var map : ChunkActivityMap.getChunkMaps())
+            render(map);
+    }
+
+    // Cancels running passes and waits for them to stop, which happens after the tile they're on
+    public static void stop() {
+        CompletableFuture<?>[] passes;
+        synchronized (HeatmapRenderer.class) {
+            passes = renderers.values().stream().map(renderer -> {
+                renderer.cancelled = true;
+                return renderer.running;
+            }).filter(pass -> pass != null).toArray(CompletableFuture[]::new);
+            renderers.clear();
+        }
+
+        try {
+            CompletableFuture.allOf(passes).join();
+        } catch (Exception ignored) {
+            // Already logged by the pass
+        }
+    }
+
+    private Result run() {
+        long startTime = System.currentTimeMillis();
+        int zoomLevels = AllConfigs.server(config -> config.heatmapZoomLevels, 5);
+        long fullScale = AllConfigs.server(config -> config.heatmapFullScale, 100) * 3600L;
+
+        try {
+            Files.createDirectories(directory);
+            if (!stateLoaded) {
+                readState();
+                stateLoaded = true;
+            }
+
+            // Different settings change every tile, so everything is drawn again
+            if (drawnZoomLevels != zoomLevels || drawnFullScale != fullScale) {
+                drawnTime.clear();
+                drawnCount.clear();
+            }
+
+            var changed = new LongOpenHashSet();
+            var positions = new LongOpenHashSet(map.getRegionPositions());
+            positions.addAll(drawnTime.keySet());
+            for (long regionPos : positions) {
+                var activity = map.getRegionTotal(regionPos);
+                boolean drawn = drawnTime.containsKey(regionPos);
+                if (activity.chunkCount() == 0 ? drawn : !drawn || drawnTime.get(regionPos) != activity.totalTime() || drawnCount.get(regionPos) != activity.chunkCount())
+                    changed.add(regionPos);
+            }
+
+            int written = 0, deleted = 0;
+            for (long regionPos : changed) {
+                if (cancelled)
+                    return null;
+
+                // Taken before the copy, so anything added in between is drawn again next pass
+                var activity = map.getRegionTotal(regionPos);
+                var image = drawRegion(map.copyRegion(regionPos), fullScale);
+                if (writeTile(0, regionPos, image))
+                    written++;
+                else
+                    deleted++;
+
+                if (activity.chunkCount() == 0) {
+                    drawnTime.remove(regionPos);
+                    drawnCount.remove(regionPos);
+                } else {
+                    drawnTime.put(regionPos, activity.totalTime());
+                    drawnCount.put(regionPos, activity.chunkCount());
+                }
+            }
+
+            LongSet below = changed;
+            for (int zoom = 1; zoom < zoomLevels; zoom++) {
+                var tiles = new LongOpenHashSet();
+                for (long tilePos : below)
+                    tiles.add(ChunkPos.asLong(ChunkPos.getX(tilePos) >> 1, ChunkPos.getZ(tilePos) >> 1));
+
+                for (long tilePos : tiles) {
+                    if (cancelled)
+                        return null;
+
+                    if (writeTile(zoom, tilePos, drawParent(zoom, tilePos)))
+                        written++;
+                    else
+                        deleted++;
+                }
+                below = tiles;
+            }
+
+            drawnZoomLevels = zoomLevels;
+            drawnFullScale = fullScale;
+            writeState();
+            writeLayout(zoomLevels, fullScale);
+
+            long endTime = System.currentTimeMillis();
+            if (!changed.isEmpty())
+                ChunkActivityTracker.LOGGER.info("Rendered chunk activity heatmap of dimension '" + map.getDimension() + "': " + changed.size() + " regions changed, " + written + " tiles written and " + deleted + " removed in " + (endTime - startTime) + " milliseconds");
+
+            return new Result(map.getDimension(), changed.size(), written, deleted, endTime - startTime);
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when rendering chunk activity heatmap of dimension '" + map.getDimension() + "': " + e.getMessage());
+
+            // Whatever was drawn before the failure is kept, the rest is drawn again next pass
+            stateLoaded = false;
+            throw new CompletionException(e);
+        }
+    }
+
+    private static HeatmapImage drawRegion(ChunkActivityRegion region, long fullScale) {
+        var image = new HeatmapImage();
+        if (region == null)
+            return image;
+
+        region.forEach((pos, info) -> {
+            long total = info.getTotalTime();
+            if (total <= 0)
+                return;
+
+            int x = ChunkPos.getX(pos) & ChunkActivityRegion.MASK, z = ChunkPos.getZ(pos) & ChunkActivityRegion.MASK;
+            image.fill(x * CHUNK_PIXELS, z * CHUNK_PIXELS, CHUNK_PIXELS, CHUNK_PIXELS, level(total, fullScale));
+        });
+
+        return image;
+    }
+
+    private HeatmapImage drawParent(int zoom, long tilePos) throws IOException {
+        var image = new HeatmapImage();
+        int x = ChunkPos.getX(tilePos) << 1, z = ChunkPos.getZ(tilePos) << 1;
+        for (int quarter = 0; quarter < 4; quarter++) {
+            var child = readTile(zoom - 1, ChunkPos.asLong(x + (quarter & 1), z + (quarter >> 1)));
+            if (child != null)
+                image.drawHalf(child, quarter & 1, quarter >> 1);
+        }
+
+        return image;
+    }
+
+    // Heat level from 1 to 255 on a log scale, reaching 255 at fullScale seconds
+    static int level(long seconds, long fullScale) {
+        return Math.min(255, 1 + (int) (254 * Math.log1p(seconds) / Math.log1p(fullScale)));
+    }
+
+    private Path tileFile(int zoom, long tilePos) {
+        return directory.resolve(String.valueOf(zoom)).resolve(ChunkPos.getX(tilePos) + "_" + ChunkPos.getZ(tilePos) + ".png");
+    }
+
+    private HeatmapImage readTile(int zoom, long tilePos) {
+        var file = tileFile(zoom, tilePos);
+        try {
+            return HeatmapImage.read(file);
+        } catch (IOException e) {
+            ChunkActivityTracker.LOGGER.error("Error when reading chunk activity heatmap tile '" + file + "', leaving it out: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Writes the tile, or deletes it if it has nothing to show. Returns whether it was written.
+    private boolean writeTile(int zoom, long tilePos, HeatmapImage image) throws IOException {
+        var file = tileFile(zoom, tilePos);
+        if (image.isEmpty()) {
+            Files.deleteIfExists(file);
+            return false;
+        }
+
+        Files.createDirectories(file.getParent());
+        ChunkActivityIO.writeAtomically(file, image.encode());
+        return true;
+    }
+
+    private void writeLayout(int zoomLevels, long fullScale) throws IOException {
+        var layout = "{\n"
+            + "  \"tileSize\": " + HeatmapImage.SIZE + ",\n"
+            + "  \"blocksPerTileAtZoom0\": " + (ChunkActivityRegion.SIZE * 16) + ",\n"
+            + "  \"zoomLevels\": " + zoomLevels + ",\n"
+            + "  \"fullScaleSeconds\": " + fullScale + ",\n"
+            + "  \"path\": \"{zoom}/{x}_{z}.png\"\n"
+            + "}\n";
+        ChunkActivityIO.writeAtomically(directory.resolve("tiles.json"), layout.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void readState() {
+        drawnTime.clear();
+        drawnCount.clear();
+        drawnZoomLevels = 0;
+        drawnFullScale = 0;
+
+        var file = directory.resolve("state.dat");
+        if (!Files.exists(file))
+            return;
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a chunk activity heatmap state file");
+
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported chunk activity heatmap state format " + version);
+
+            int zoomLevels = in.readInt();
+            long fullScale = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long regionPos = in.readLong();
+                drawnTime.put(regionPos, in.readLong());
+                drawnCount.put(regionPos, in.readInt());
+            }
+
+            drawnZoomLevels = zoomLevels;
+            drawnFullScale = fullScale;
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when loading chunk activity heatmap state '" + file + "', drawing every tile again: " + e.getMessage());
+            drawnTime.clear();
+            drawnCount.clear();
+        }
+    }
+
+    private void writeState() throws IOException {
+        var byteOut = new ByteArrayOutputStream(32 + drawnTime.size() * 20);
+        var out = new DataOutputStream(byteOut);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(drawnZoomLevels);
+        out.writeLong(drawnFullScale);
+        out.writeInt(drawnTime.size());
+        for (var entry : drawnTime.long2LongEntrySet()) {
+            out.writeLong(entry.getLongKey());
+            out.writeLong(entry.getLongValue());
+            out.writeInt(drawnCount.get(entry.getLongKey()));
+        }
+
+        ChunkActivityIO.writeAtomically(directory.resolve("state.dat"), byteOut.toByteArray());
+    }
+}
@@ -0,0 +1,19 @@
+package toni.chunkactivitytracker.metrics;
+
+/**
+ * Events counted while metrics are collected.
+ */
+public enum Counter {
+    CHUNKS_CREATED("chunks created"),
+    REGIONS_LOADED("regions loaded"),
+    REGIONS_EVICTED("regions evicted"),
+    REGIONS_WRITTEN("regions written"),
+    BYTES_WRITTEN("region bytes written"),
+    LOG_BYTES_WRITTEN("log bytes written");
+
+    public final String label;
+
+    Counter(String label) {
+        this.label = label;
+    }
+}
@@ -0,0 +1,30 @@
+package toni.chunkactivitytracker.metrics;
+
+import java.util.Map;
+
+/**
+ * Metrics as exposed over JMX, registered as toni.chunkactivitytracker:type=Metrics when Metrics JMX is enabled. Maps
+ * are keyed by phase or counter label.
+ */
+public interface MetricsMXBean {
+    boolean isCollecting();
+
+    Map<String, Long> getPhaseCalls();
+
+    Map<String, Long> getPhaseNanos();
+
+    Map<String, Long> getPhaseMaxNanos();
+
+    Map<String, Long> getPhaseAllocatedBytes();
+
+    Map<String, Long> getCounters();
+
+    int getSaveQueueDepth();
+
+    // Resident chunks and their estimated memory per dimension
+    Map<String, Long> getResidentChunks();
+
+    Map<String, Long> getEstimatedMemory();
+
+    void reset();
+}
@@ -0,0 +1,31 @@
+package toni.chunkactivitytracker.metrics;
+
+/**
+ * Parts of the tracker whose time is measured while metrics are collected.
+ */
+public enum Phase {
+    // Per-tick player sampling and transition checks on the server thread
+    TICK("tick"),
+    // Adding a batch of activity to the chunk maps
+    APPLY("apply"),
+    // Chunk info lookups by position
+    LOOKUP("lookup"),
+    // Copying a dirty region for the IO thread during a save
+    SNAPSHOT("snapshot"),
+    // Encoding a region for a compressed region file
+    ENCODE("encode"),
+    // Compressing an encoded region
+    COMPRESS("compress"),
+    // Writing a region to its file
+    WRITE("write"),
+    // Reading a region from disk and merging it in
+    LOAD("load"),
+    // Appending the write-ahead log and syncing it to disk
+    LOG_FLUSH("log flush");
+
+    public final String label;
+
+    Phase(String label) {
+        this.label = label;
+    }
+}
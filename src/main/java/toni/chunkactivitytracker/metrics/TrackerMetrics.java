@@ -0,0 +1,306 @@
+package toni.chunkactivitytracker.metrics;
+
+import net.minecraft.server.MinecraftServer;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Timings and counters for the tracker's hot paths, collected only while Collect Metrics is on. Everything is kept in
+ * striped adders, so threads recording at the same time don't contend. When collection is off, start() is a single
+ * volatile read and end() does nothing.
+ * <p>
+ * Timing a phase looks like:
+ * <pre>
+ * long start = TrackerMetrics.start();
+ * ...
+ * TrackerMetrics.end(Phase.SNAPSHOT, start);
+ * </pre>
+ */
+public class TrackerMetrics {
+    private static final String MBEAN_NAME = "toni.chunkactivitytracker:type=Metrics";
+
+    private static volatile boolean enabled;
+    private static volatile long since = System.currentTimeMillis();
+    private static long lastLog = System.currentTimeMillis();
+    private static boolean registered;
+
+    private static final PhaseStats[] phases = new PhaseStats[Phase.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    // Null if the JVM can't report per-thread allocation
+    private static final com.sun.management.ThreadMXBean threads;
+
+    static {
+        for (int i = 0; i < phases.length; i++)
+            phases[i] = new PhaseStats();
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+
+        com.sun.management.ThreadMXBean bean = null;
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadBean && threadBean.isThreadAllocatedMemorySupported()) {
+                threadBean.setThreadAllocatedMemoryEnabled(true);
+                bean = threadBean;
+            }
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when setting up allocation metrics: " + e.getMessage());
+        }
+        threads = bean;
+    }
+
+    private static class PhaseStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+        final LongAdder allocated = new LongAdder();
+
+        void reset() {
+            calls.reset();
+            nanos.reset();
+            maxNanos.reset();
+            allocated.reset();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Start time to pass to end(), or 0 if metrics are off
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    public static void end(Phase phase, long start) {
+        if (start == 0L)
+            return;
+
+        long elapsed = System.nanoTime() - start;
+        var stats = phases[phase.ordinal()];
+        stats.calls.increment();
+        stats.nanos.add(elapsed);
+        stats.maxNanos.accumulate(elapsed);
+    }
+
+    // Bytes allocated by the current thread so far, to pass to endAllocation(), or -1 if metrics are off or unsupported
+    public static long startAllocation() {
+        return enabled && threads != null ? threads.getCurrentThreadAllocatedBytes() : -1L;
+    }
+
+    public static void endAllocation(Phase phase, long start) {
+        if (start < 0L)
+            return;
+
+        phases[phase.ordinal()].allocated.add(threads.getCurrentThreadAllocatedBytes() - start);
+    }
+
+    public static void count(Counter counter) {
+        if (enabled)
+            counters[counter.ordinal()].increment();
+    }
+
+    public static void add(Counter counter, long amount) {
+        if (enabled)
+            counters[counter.ordinal()].add(amount);
+    }
+
+    public static void reset() {
+        for (var stats : phases)
+            stats.reset();
+        for (var counter : counters)
+            counter.reset();
+
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Picks up config changes, and writes the periodic log line and registers the JMX bean if they're enabled. Called
+     * at the start of every server tick.
+     */
+    public static void tick(MinecraftServer server) {
+        boolean collect = AllConfigs.server(config -> config.collectMetrics, false);
+        if (collect && !enabled)
+            reset();
+        enabled = collect;
+
+        setRegistered(collect && AllConfigs.server(config -> config.metricsJmx, false));
+
+        int interval = AllConfigs.server(config -> config.metricsLogInterval, 0);
+        long now = System.currentTimeMillis();
+        if (!collect || interval <= 0) {
+            lastLog = now;
+            return;
+        }
+
+        if (now - lastLog >= interval * 60_000L) {
+            lastLog = now;
+            ChunkActivityTracker.LOGGER.info("Chunk activity metrics: " + String.join("; ", report(false)));
+        }
+    }
+
+    public static void stop() {
+        setRegistered(false);
+        enabled = false;
+    }
+
+    private static void setRegistered(boolean register) {
+        if (register == registered)
+            return;
+
+        registered = register;
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(MBEAN_NAME);
+            if (register)
+                server.registerMBean(new Bean(), name);
+            else if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when " + (register ? "registering" : "unregistering") + " chunk activity metrics bean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Human-readable summary, one entry per line. Phases that never ran are left out. With dimensions, also walks the
+     * resident chunks of every dimension to estimate their memory, so that part costs time proportional to their number.
+     */
+    public static List<String> report(boolean dimensions) {
+        var lines = new ArrayList<String>();
+        long seconds = (System.currentTimeMillis() - since) / 1000;
+        lines.add(enabled ? "collecting for " + seconds + "s" : "not collecting, enable Collect Metrics in the server config");
+
+        for (var phase : Phase.values()) {
+            var stats = phases[phase.ordinal()];
+            long calls = stats.calls.sum();
+            if (calls == 0)
+                continue;
+
+            var line = phase.label + ": " + calls + " calls, avg " + formatNanos(stats.nanos.sum() / calls) + ", max " + formatNanos(stats.maxNanos.get());
+            long allocated = stats.allocated.sum();
+            if (allocated > 0)
+                line += ", " + formatBytes(allocated / calls) + " allocated per call";
+
+            lines.add(line);
+        }
+
+        var counts = new ArrayList<String>();
+        for (var counter : Counter.values()) {
+            long value = counters[counter.ordinal()].sum();
+            if (value != 0)
+                counts.add(counter.label + " " + (counter == Counter.BYTES_WRITTEN || counter == Counter.LOG_BYTES_WRITTEN ? formatBytes(value) : value));
+        }
+        if (!counts.isEmpty())
+            lines.add(String.join(", ", counts));
+
+        lines.add("IO queue: " + ChunkActivityIO.getQueueDepth() + " tasks");
+
+        for (var map : ChunkActivityMap.getChunkMaps()) {
+            var line = map.getDimension() + ": " + map.size() + " chunks in " + map.loadedRegionCount() + " regions resident";
+            if (dimensions)
+                line += " (~" + formatBytes(map.estimateMemory()) + ")";
+
+            lines.add(line + ", " + map.getDirtyRegionCount() + " dirty, " + map.getPendingWriteCount() + " waiting to be written, " + map.getStoredRegionCount() + " on disk");
+        }
+
+        return lines;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000L)
+            return nanos + " ns";
+        if (nanos < 10_000_000L)
+            return nanos / 1000 + " us";
+
+        return nanos / 1_000_000 + " ms";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 10_000L)
+            return bytes + " B";
+        if (bytes < 10_000_000L)
+            return bytes / 1024 + " KB";
+
+        return bytes / (1024 * 1024) + " MB";
+    }
+
+    private static Map<String, Long> byPhase(ToLongFunction<PhaseStats> value) {
+        var ret = new LinkedHashMap<String, Long>();
+        for (var phase : Phase.values())
+            ret.put(phase.label, value.applyAsLong(phases[phase.ordinal()]));
+        return ret;
+    }
+
+    private static Map<String, Long> byDimension(ToLongFunction<ChunkActivityMap> value) {
+        var ret = new LinkedHashMap<String, Long>();
+        for (var map : ChunkActivityMap.getChunkMaps())
+            ret.put(map.getDimension(), value.applyAsLong(map));
+        return ret;
+    }
+
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public boolean isCollecting() {
+            return enabled;
+        }
+
+        @Override
+        public Map<String, Long> getPhaseCalls() {
+            return byPhase(stats -> stats.calls.sum());
+        }
+
+        @Override
+        public Map<String, Long> getPhaseNanos() {
+            return byPhase(stats -> stats.nanos.sum());
+        }
+
+        @Override
+        public Map<String, Long> getPhaseMaxNanos() {
+            return byPhase(stats -> stats.maxNanos.get());
+        }
+
+        @Override
+        public Map<String, Long> getPhaseAllocatedBytes() {
+            return byPhase(stats -> stats.allocated.sum());
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            var ret = new LinkedHashMap<String, Long>();
+            for (var counter : Counter.values())
+                ret.put(counter.label, counters[counter.ordinal()].sum());
+            return ret;
+        }
+
+        @Override
+        public int getSaveQueueDepth() {
+            return ChunkActivityIO.getQueueDepth();
+        }
+
+        @Override
+        public Map<String, Long> getResidentChunks() {
+            return byDimension(ChunkActivityMap::size);
+        }
+
+        @Override
+        public Map<String, Long> getEstimatedMemory() {
+            return byDimension(ChunkActivityMap::estimateMemory);
+        }
+
+        @Override
+        public void reset() {
+            TrackerMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package toni.chunkactivitytracker.mixins;
+
+import net.minecraft.world.InteractionResult;
+import net.minecraft.world.item.BlockItem;
+import net.minecraft.world.item.context.BlockPlaceContext;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import toni.chunkactivitytracker.tracking.BlockChanges;
+
+@Mixin(BlockItem.class)
+public class BlockItemMixin {
+    // Only placements that went through count, not every right-click on a block. Dispensers have no player.
+    @Inject(method = "place", at = @At("RETURN"))
+    private void afterPlace(BlockPlaceContext context, CallbackInfoReturnable<InteractionResult> cir) {
+        if (!cir.getReturnValue().consumesAction() || context.getPlayer() == null)
+            return;
+
+        BlockChanges.placed(context.getLevel(), context.getClickedPos(), context.getPlayer());
+    }
+}
@@ -12,9 +12,6 @@ import toni.chunkactivitytracker.data.ChunkActivityMap;
 public class MinecraftServerMixin {
     @Inject(method = "saveEverything", at = @At("TAIL"))
     private void endSave(boolean suppressLogs, boolean flush, boolean force, CallbackInfoReturnable<Boolean> cir) {
-        if (ChunkActivityMap.instances == null)
-            return;
-
-        ChunkActivityMap.instances.values().forEach(ChunkActivityMap::save);
+        ChunkActivityMap.saveAll();
     }
 }
@@ -0,0 +1,25 @@
+package toni.chunkactivitytracker.mixins;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.level.ServerPlayerGameMode;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import toni.chunkactivitytracker.tracking.BlockChanges;
+
+@Mixin(ServerPlayerGameMode.class)
+public class ServerPlayerGameModeMixin {
+    @Shadow protected ServerLevel level;
+    @Shadow @Final protected ServerPlayer player;
+
+    @Inject(method = "destroyBlock", at = @At("RETURN"))
+    private void afterDestroyBlock(BlockPos pos, CallbackInfoReturnable<Boolean> cir) {
+        if (cir.getReturnValueZ())
+            BlockChanges.broken(level, pos, player);
+    }
+}
@@ -0,0 +1,270 @@
+package toni.chunkactivitytracker.network;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import toni.chunkactivitytracker.data.ChunkActivityIO;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+#if mc < 211
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+#endif
+
+/**
+ * Sends chunk activity around them to players who turned on the overlay. On every sync the total time of each chunk
+ * within view distance is compared with what that player was last sent, and only the chunks that differ go out,
+ * batched per region. Regions that haven't changed since they were last sent, and that the player hasn't moved
+ * relative to, are skipped without looking at their chunks. Subscribers are spread over the sync interval so they
+ * aren't all processed on the same tick.
+ * <p>
+ * Regions that aren't in memory are paged in, and sent on their own as soon as they've been read rather than on the
+ * player's next turn. Everything here runs on the server thread. Players who never turned on the overlay cost nothing.
+ */
+public class ActivitySync {
+    // Regions per packet, so one packet never holds more than a few thousand chunks
+    private static final int MAX_REGIONS_PER_PACKET = 16;
+
+    private static final HashMap<UUID, Subscriber> subscribers = new HashMap<>();
+    private static int nextPhase;
+
+    private static final class Subscriber {
+        final int phase;
+        String dimension;
+        long center;
+        int radius;
+        // What the player was last sent, by region position
+        final Long2ObjectOpenHashMap<SentRegion> sent = new Long2ObjectOpenHashMap<>();
+        // Regions being read from disk that the player is waiting on
+        final LongOpenHashSet waiting = new LongOpenHashSet();
+
+        Subscriber(int phase) {
+            this.phase = phase;
+        }
+    }
+
+    private static final class SentRegion {
+        // Change count of the region and player position when it was last compared
+        long changes = -1;
+        long center;
+        // Total time of every chunk as the player knows it, zero for chunks outside their window
+        final long[] totals = new long[ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE];
+    }
+
+    public static boolean isSubscribed(ServerPlayer player) {
+        return subscribers.containsKey(player.getUUID());
+    }
+
+    public static boolean canReceive(ServerPlayer player) {
+        #if mc >= 211
+        return ServerPlayNetworking.canSend(player, ActivitySyncPacket.TYPE);
+        #else
+        return ServerPlayNetworking.canSend(player, ActivitySyncPacket.ID);
+        #endif
+    }
+
+    // The player gets everything around them on their next turn
+    public static void subscribe(ServerPlayer player) {
+        subscribers.computeIfAbsent(player.getUUID(), uuid -> new Subscriber(nextPhase++));
+    }
+
+    public static void unsubscribe(ServerPlayer player) {
+        if (subscribers.remove(player.getUUID()) != null && canReceive(player))
+            send(player, ActivitySyncPacket.stop());
+    }
+
+    public static void leave(ServerPlayer player) {
+        subscribers.remove(player.getUUID());
+    }
+
+    public static void clear() {
+        subscribers.clear();
+        nextPhase = 0;
+    }
+
+    public static void tick(MinecraftServer server) {
+        if (subscribers.isEmpty())
+            return;
+
+        int interval = AllConfigs.server(config -> config.overlaySyncInterval, 40);
+        int tick = server.getTickCount();
+        int radius = server.getPlayerList().getViewDistance();
+        for (var entry : subscribers.entrySet()) {
+            var subscriber = entry.getValue();
+            if ((tick + subscriber.phase) % interval != 0)
+                continue;
+
+            var player = server.getPlayerList().getPlayer(entry.getKey());
+            if (player != null)
+                sync(server, player, subscriber, radius);
+        }
+    }
+
+    private static void sync(MinecraftServer server, ServerPlayer player, Subscriber subscriber, int radius) {
+        var dimension = player.level().dimension();
+        var name = dimension.location().toString();
+        var pos = player.chunkPosition();
+        long center = pos.toLong();
+
+        int action = ActivitySyncPacket.UPDATE;
+        if (!name.equals(subscriber.dimension) || radius != subscriber.radius) {
+            action = ActivitySyncPacket.RESET;
+            subscriber.dimension = name;
+            subscriber.radius = radius;
+            subscriber.sent.clear();
+            subscriber.waiting.clear();
+        }
+        subscriber.center = center;
+
+        int minX = pos.x - radius, maxX = pos.x + radius;
+        int minZ = pos.z - radius, maxZ = pos.z + radius;
+        int minRegionX = minX >> ChunkActivityRegion.SHIFT, maxRegionX = maxX >> ChunkActivityRegion.SHIFT;
+        int minRegionZ = minZ >> ChunkActivityRegion.SHIFT, maxRegionZ = maxZ >> ChunkActivityRegion.SHIFT;
+
+        // Regions the player can no longer see are forgotten, the client drops them on its own
+        var out = new LongArrayList();
+        for (long regionPos : subscriber.sent.keySet()) {
+            int x = ChunkPos.getX(regionPos), z = ChunkPos.getZ(regionPos);
+            if (x < minRegionX || x > maxRegionX || z < minRegionZ || z > maxRegionZ)
+                out.add(regionPos);
+        }
+        for (int i = 0; i < out.size(); i++)
+            subscriber.sent.remove(out.getLong(i));
+
+        var map = ChunkActivityMap.getOrCreateChunkMap(dimension);
+        var updates = new ArrayList<ActivitySyncPacket.RegionUpdate>();
+        var indices = new IntArrayList();
+        var totals = new LongArrayList();
+        for (int regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++) {
+            for (int regionX = minRegionX; regionX <= maxRegionX; regionX++) {
+                long regionPos = ChunkPos.asLong(regionX, regionZ);
+                var region = map.getLoadedRegion(regionPos);
+                if (region != null) {
+                    syncRegion(subscriber, region, minX, minZ, maxX, maxZ, indices, totals, updates);
+                    continue;
+                }
+
+                // The lookup queued the region's read on the IO thread, which runs tasks in order, so anything queued
+                // after it runs once the region is in memory
+                if (subscriber.waiting.add(regionPos)) {
+                    var uuid = player.getUUID();
+                    ChunkActivityIO.execute(() -> server.execute(() -> syncLoaded(server, uuid, subscriber, regionPos)));
+                }
+            }
+        }
+
+        if (action == ActivitySyncPacket.RESET || !updates.isEmpty())
+            sendBatched(player, action, name, radius, updates);
+    }
+
+    // Sends a region the player was waiting on once it has been read, if they still want it
+    private static void syncLoaded(MinecraftServer server, UUID uuid, Subscriber subscriber, long regionPos) {
+        if (!subscriber.waiting.remove(regionPos) || subscribers.get(uuid) != subscriber)
+            return;
+
+        var player = server.getPlayerList().getPlayer(uuid);
+        if (player == null || !player.level().dimension().location().toString().equals(subscriber.dimension))
+            return;
+
+        int centerX = ChunkPos.getX(subscriber.center), centerZ = ChunkPos.getZ(subscriber.center);
+        int minX = centerX - subscriber.radius, maxX = centerX + subscriber.radius;
+        int minZ = centerZ - subscriber.radius, maxZ = centerZ + subscriber.radius;
+        int regionX = ChunkPos.getX(regionPos), regionZ = ChunkPos.getZ(regionPos);
+        if (regionX < minX >> ChunkActivityRegion.SHIFT || regionX > maxX >> ChunkActivityRegion.SHIFT || regionZ < minZ >> ChunkActivityRegion.SHIFT || regionZ > maxZ >> ChunkActivityRegion.SHIFT)
+            return;
+
+        // Evicted again before this ran, so it's left for the player's next turn
+        var region = ChunkActivityMap.getOrCreateChunkMap(player.level().dimension()).getLoadedRegion(regionPos);
+        if (region == null)
+            return;
+
+        var updates = new ArrayList<ActivitySyncPacket.RegionUpdate>();
+        syncRegion(subscriber, region, minX, minZ, maxX, maxZ, new IntArrayList(), new LongArrayList(), updates);
+        if (!updates.isEmpty())
+            sendBatched(player, ActivitySyncPacket.UPDATE, subscriber.dimension, subscriber.radius, updates);
+    }
+
+    // Adds an update for the region if it changed or the player moved since it was last compared
+    private static void syncRegion(Subscriber subscriber, ChunkActivityRegion region, int minX, int minZ, int maxX, int maxZ, IntArrayList indices, LongArrayList totals, List<ActivitySyncPacket.RegionUpdate> updates) {
+        long regionPos = region.getPos();
+        var sent = subscriber.sent.get(regionPos);
+        boolean replace = sent == null;
+        if (replace) {
+            sent = new SentRegion();
+            subscriber.sent.put(regionPos, sent);
+        }
+
+        long changes = region.getChangeCount();
+        if (sent.changes == changes && sent.center == subscriber.center)
+            return;
+
+        sent.changes = changes;
+        sent.center = subscriber.center;
+        if (diff(region, sent, minX, minZ, maxX, maxZ, indices, totals) || replace)
+            updates.add(new ActivitySyncPacket.RegionUpdate(regionPos, replace, indices.toIntArray(), totals.toLongArray()));
+    }
+
+    /**
+     * Compares the region's chunks within the window with what was sent, collecting the ones that differ into indices
+     * and totals and updating sent to match. Chunks outside the window count as zero, so a chunk the player moved away
+     * from is sent once more with no time, which tells the client to drop it. Returns whether any differ.
+     */
+    private static boolean diff(ChunkActivityRegion region, SentRegion sent, int minX, int minZ, int maxX, int maxZ, IntArrayList indices, LongArrayList totals) {
+        indices.clear();
+        totals.clear();
+
+        int baseX = ChunkPos.getX(region.getPos()) << ChunkActivityRegion.SHIFT;
+        int baseZ = ChunkPos.getZ(region.getPos()) << ChunkActivityRegion.SHIFT;
+        for (int index = 0; index < ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE; index++) {
+            int x = baseX + (index & ChunkActivityRegion.MASK);
+            int z = baseZ + (index >> ChunkActivityRegion.SHIFT);
+
+            long total = 0;
+            if (x >= minX && x <= maxX && z >= minZ && z <= maxZ) {
+                var info = region.get(index);
+                if (info != null)
+                    total = info.getTotalTime();
+            }
+
+            if (total != sent.totals[index]) {
+                indices.add(index);
+                totals.add(total);
+                sent.totals[index] = total;
+            }
+        }
+
+        return !indices.isEmpty();
+    }
+
+    private static void sendBatched(ServerPlayer player, int action, String dimension, int radius, List<ActivitySyncPacket.RegionUpdate> updates) {
+        int start = 0;
+        do {
+            int end = Math.min(start + MAX_REGIONS_PER_PACKET, updates.size());
+            send(player, new ActivitySyncPacket(action, dimension, radius, updates.subList(start, end)));
+            // Only the first packet resets
+            action = ActivitySyncPacket.UPDATE;
+            start = end;
+        } while (start < updates.size());
+    }
+
+    private static void send(ServerPlayer player, ActivitySyncPacket packet) {
+        #if mc >= 211
+        ServerPlayNetworking.send(player, packet);
+        #else
+        var buf = PacketByteBufs.create();
+        packet.write(buf);
+        ServerPlayNetworking.send(player, ActivitySyncPacket.ID, buf);
+        #endif
+    }
+}
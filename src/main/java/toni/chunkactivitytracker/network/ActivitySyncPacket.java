@@ -0,0 +1,104 @@
+package toni.chunkactivitytracker.network;
+
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ChunkActivityRegion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+#if mc >= 211
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+#endif
+
+/**
+ * Chunk activity around a player for the client overlay. Only total times are sent, grouped by region. A region either
+ * replaces what the client has for it, or lists the chunks whose total changed since it was last sent. Chunks are
+ * written in slot order, each one as the gap from the previous slot followed by its total, both as varints.
+ */
+public record ActivitySyncPacket(int action, String dimension, int radius, List<RegionUpdate> regions) #if AFTER_21_1 implements CustomPacketPayload #endif {
+    // Regions to add to what the client has
+    public static final int UPDATE = 0;
+    // Starts over in the given dimension, dropping everything the client has, before adding the regions
+    public static final int RESET = 1;
+    // The overlay was turned off, so the client drops everything
+    public static final int STOP = 2;
+
+    #if mc >= 211
+    public static final ResourceLocation ID = ResourceLocation.fromNamespaceAndPath(ChunkActivityTracker.ID, "activity_sync");
+    public static final CustomPacketPayload.Type<ActivitySyncPacket> TYPE = new CustomPacketPayload.Type<>(ID);
+    public static final StreamCodec<FriendlyByteBuf, ActivitySyncPacket> CODEC = StreamCodec.ofMember(ActivitySyncPacket::write, ActivitySyncPacket::read);
+
+    @Override
+    public Type<ActivitySyncPacket> type() {
+        return TYPE;
+    }
+    #else
+    public static final ResourceLocation ID = new ResourceLocation(ChunkActivityTracker.ID, "activity_sync");
+    #endif
+
+    /**
+     * New or changed totals of a region's chunks, by local index. If replace is set, chunks that aren't listed have no
+     * activity.
+     */
+    public record RegionUpdate(long regionPos, boolean replace, int[] indices, long[] totals) {
+    }
+
+    public static ActivitySyncPacket stop() {
+        return new ActivitySyncPacket(STOP, "", 0, List.of());
+    }
+
+    public void write(FriendlyByteBuf buf) {
+        buf.writeByte(action);
+        buf.writeUtf(dimension);
+        buf.writeVarInt(radius);
+
+        buf.writeVarInt(regions.size());
+        for (var region : regions) {
+            buf.writeLong(region.regionPos());
+            buf.writeBoolean(region.replace());
+            buf.writeVarInt(region.indices().length);
+
+            int previous = -1;
+            for (int i = 0; i < region.indices().length; i++) {
+                buf.writeVarInt(region.indices()[i] - previous - 1);
+                buf.writeVarLong(region.totals()[i]);
+                previous = region.indices()[i];
+            }
+        }
+    }
+
+    public static ActivitySyncPacket read(FriendlyByteBuf buf) {
+        int action = buf.readByte();
+        var dimension = buf.readUtf();
+        int radius = buf.readVarInt();
+
+        int regionCount = buf.readVarInt();
+        var regions = new ArrayList<RegionUpdate>(Math.min(regionCount, 64));
+        for (int r = 0; r < regionCount; r++) {
+            long regionPos = buf.readLong();
+            boolean replace = buf.readBoolean();
+            int count = buf.readVarInt();
+            if (count < 0 || count > ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE)
+                throw new IllegalArgumentException("Too many chunks in chunk activity sync: " + count);
+
+            var indices = new int[count];
+            var totals = new long[count];
+            int index = -1;
+            for (int i = 0; i < count; i++) {
+                index += buf.readVarInt() + 1;
+                if (index >= ChunkActivityRegion.SIZE * ChunkActivityRegion.SIZE)
+                    throw new IllegalArgumentException("Chunk index out of range in chunk activity sync: " + index);
+
+                indices[i] = index;
+                totals[i] = buf.readVarLong();
+            }
+
+            regions.add(new RegionUpdate(regionPos, replace, indices, totals));
+        }
+
+        return new ActivitySyncPacket(action, dimension, radius, regions);
+    }
+}
@@ -0,0 +1,208 @@
+package toni.chunkactivitytracker.tracking;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import toni.chunkactivitytracker.ChunkActivityTracker;
+import toni.chunkactivitytracker.data.ActivityHistory;
+import toni.chunkactivitytracker.data.ChunkActivityInfo;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerIndex;
+import toni.chunkactivitytracker.foundation.config.AllConfigs;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+
+import java.util.concurrent.*;
+
+/**
+ * Credits time to the chunks players are in. Player positions are collected into an ActivityBatch on the server
+ * thread, which is then applied either right away or on a dedicated accounting thread. Batches are applied one at a
+ * time in the order they were collected. How time is measured is set by the Time Accounting option.
+ */
+public class ActivityAccounting {
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "ChunkActivityTracker Accounting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Chunks created by a batch that still need their initial heightmap, which can only be read on the server thread
+    private static final ConcurrentLinkedQueue<NewChunk> newChunks = new ConcurrentLinkedQueue<>();
+
+    private record NewChunk(ResourceKey<Level> dimension, long pos) {}
+
+    private static final PlayerSessions sessions = new PlayerSessions();
+
+    private static long lastTime = System.nanoTime();
+    private static final float NANOSECONDS_PER_TICK = 1000000000.0f / 20; // 50 million ns per tick for 20 ticks per second
+
+    // Reused every tick for the transition check, which usually finds nothing. Server thread only.
+    private static final ActivityBatch.Builder tickBuilder = ActivityBatch.builder();
+
+    public static void tick(MinecraftServer server) {
+        long start = TrackerMetrics.start();
+        long allocated = TrackerMetrics.startAllocation();
+        accountTick(server);
+        TrackerMetrics.endAllocation(Phase.TICK, allocated);
+        TrackerMetrics.end(Phase.TICK, start);
+    }
+
+    private static void accountTick(MinecraftServer server) {
+        ActivityHistory.setEnabled(AllConfigs.server(config -> config.activityHistory, false));
+        flushBlockChanges();
+
+        var clock = AllConfigs.server(config -> config.timeAccounting, TimeAccounting.REAL_TIME);
+        if (clock == TimeAccounting.SAMPLED) {
+            long currentTime = System.nanoTime();
+            var delta = (currentTime - lastTime) / NANOSECONDS_PER_TICK;
+            if (delta < 20)
+                return;
+
+            lastTime = currentTime;
+            creditAll(server, 1L);
+            return;
+        }
+
+        var builder = tickBuilder;
+        builder.clear();
+
+        if (AllConfigs.server(config -> config.trackTransitions, true))
+            sessions.checkTransitions(() -> clock.now(server), builder);
+
+        // Checkpoint: settles players that stayed put, and picks up anyone a join or respawn event didn't cover
+        if (server.getTickCount() % AllConfigs.server(config -> config.sampleInterval, 20) == 0) {
+            long now = clock.now(server);
+            for (var player : server.getPlayerList().getPlayers())
+                sessions.sample(player, clock, now, builder);
+        }
+
+        if (!builder.isEmpty())
+            submit(server, builder.build());
+        else
+            captureHeightmaps(server);
+    }
+
+    public static void join(ServerPlayer player, MinecraftServer server) {
+        var clock = AllConfigs.server(config -> config.timeAccounting, TimeAccounting.REAL_TIME);
+        if (clock == TimeAccounting.SAMPLED)
+            return;
+
+        var builder = ActivityBatch.builder();
+        sessions.start(player, clock, clock.now(server), builder);
+        submit(server, builder.build());
+    }
+
+    public static void respawn(ServerPlayer player) {
+        sessions.replace(player);
+    }
+
+    // Settles the time since the player was last sampled, so nothing is lost between samples
+    public static void leave(ServerPlayer player, MinecraftServer server) {
+        var clock = AllConfigs.server(config -> config.timeAccounting, TimeAccounting.REAL_TIME);
+        if (clock == TimeAccounting.SAMPLED)
+            return;
+
+        var builder = ActivityBatch.builder();
+        sessions.end(player, clock.now(server), builder);
+        submit(server, builder.build());
+    }
+
+    /**
+     * Settles everyone still online and waits for all batches to be applied. Called before the final save.
+     */
+    public static void stop(MinecraftServer server) {
+        flushBlockChanges();
+
+        var clock = AllConfigs.server(config -> config.timeAccounting, TimeAccounting.REAL_TIME);
+        if (clock != TimeAccounting.SAMPLED) {
+            var builder = ActivityBatch.builder();
+            sessions.settleAll(clock.now(server), builder);
+            apply(builder.build());
+        }
+
+        flush();
+        sessions.clear();
+        newChunks.clear();
+        BlockChanges.clear();
+    }
+
+    private static void creditAll(MinecraftServer server, long seconds) {
+        var builder = ActivityBatch.builder();
+        for (var player : server.getPlayerList().getPlayers()) {
+            var level = player.level();
+            if (level == null)
+                continue;
+
+            builder.add(level.dimension(), player.chunkPosition(), PlayerIndex.indexOf(player.getUUID()), seconds);
+        }
+
+        submit(server, builder.build());
+    }
+
+    public static void submit(MinecraftServer server, ActivityBatch batch) {
+        if (!batch.isEmpty()) {
+            if (AllConfigs.server(config -> config.asyncAccounting, false))
+                EXECUTOR.execute(() -> apply(batch));
+            else
+                apply(batch);
+        }
+
+        captureHeightmaps(server);
+    }
+
+    /**
+     * Blocks until every batch submitted before this call has been applied.
+     */
+    public static void flush() {
+        try {
+            EXECUTOR.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ChunkActivityTracker.LOGGER.error("Error when flushing chunk activity accounting: " + e.getMessage());
+        }
+    }
+
+    private static void apply(ActivityBatch batch) {
+        try {
+            boolean heightmaps = AllConfigs.server(config -> config.storeHeightmaps, false);
+            batch.apply((dimension, pos) -> {
+                if (heightmaps)
+                    newChunks.add(new NewChunk(dimension, pos));
+            });
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when applying chunk activity: " + e.getMessage());
+        }
+    }
+
+    // Blocks changed during the last tick. Applied on the server thread, since it's one bulk update per tick.
+    private static void flushBlockChanges() {
+        try {
+            boolean heightmaps = AllConfigs.server(config -> config.storeHeightmaps, false);
+            BlockChanges.flush((dimension, pos) -> {
+                if (heightmaps)
+                    newChunks.add(new NewChunk(dimension, pos));
+            });
+        } catch (Exception e) {
+            ChunkActivityTracker.LOGGER.error("Error when applying block changes: " + e.getMessage());
+        }
+    }
+
+    // Runs on the server thread. With async accounting, chunks created by the worker are picked up on the next pass.
+    private static void captureHeightmaps(MinecraftServer server) {
+        NewChunk chunk;
+        while ((chunk = newChunks.poll()) != null) {
+            var level = server.getLevel(chunk.dimension());
+            if (level == null)
+                continue;
+
+            var levelChunk = level.getChunkSource().getChunkNow(ChunkPos.getX(chunk.pos()), ChunkPos.getZ(chunk.pos()));
+            if (levelChunk == null)
+                continue;
+
+            ChunkActivityMap.getOrCreateChunkMap(chunk.dimension()).captureHeightmap(chunk.pos(), ChunkActivityInfo.captureHeightmap(levelChunk));
+        }
+    }
+}
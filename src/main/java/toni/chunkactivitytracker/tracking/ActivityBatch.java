@@ -0,0 +1,173 @@
+package toni.chunkactivitytracker.tracking;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.metrics.Phase;
+import toni.chunkactivitytracker.metrics.TrackerMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Time to credit to chunks, collected on the server thread and immutable afterwards, so it can be applied on any
+ * thread. Collecting is just appending to arrays; grouping by dimension and chunk happens in apply, so that each chunk
+ * is looked up and locked once no matter how many players were in it.
+ */
+public class ActivityBatch {
+    private final List<ResourceKey<Level>> dimensionKeys;
+    // Entries as parallel arrays, dimensions being indices into dimensionKeys
+    private final int[] dimensions;
+    private final long[] chunks;
+    private final int[] players;
+    private final long[] seconds;
+    private final int[] visits;
+    // When the batch was collected, in epoch seconds. Recorded as the time the chunks in it were last seen.
+    private final long timestamp;
+
+    private ActivityBatch(List<ResourceKey<Level>> dimensionKeys, int[] dimensions, long[] chunks, int[] players, long[] seconds, int[] visits, long timestamp) {
+        this.dimensionKeys = dimensionKeys;
+        this.dimensions = dimensions;
+        this.chunks = chunks;
+        this.players = players;
+        this.seconds = seconds;
+        this.visits = visits;
+        this.timestamp = timestamp;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isEmpty() {
+        return chunks.length == 0;
+    }
+
+    public int size() {
+        return chunks.length;
+    }
+
+    /**
+     * Adds the batch to the chunk maps. Chunks seen for the first time are created without a heightmap and passed to
+     * newChunks, so the caller can capture one on the server thread.
+     */
+    public void apply(BiConsumer<ResourceKey<Level>, Long> newChunks) {
+        long start = TrackerMetrics.start();
+        for (int dimension = 0; dimension < dimensionKeys.size(); dimension++)
+            apply(dimension, newChunks);
+        TrackerMetrics.end(Phase.APPLY, start);
+    }
+
+    private void apply(int dimension, BiConsumer<ResourceKey<Level>, Long> newChunks) {
+        var dimensionKey = dimensionKeys.get(dimension);
+        var map = ChunkActivityMap.getOrCreateChunkMap(dimensionKey);
+
+        // Number the distinct chunks, then lay the entries out grouped by chunk (a counting sort)
+        var groups = new Long2IntOpenHashMap();
+        groups.defaultReturnValue(-1);
+        var group = new int[chunks.length];
+        var counts = new int[chunks.length + 1];
+        int entries = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            if (dimensions[i] != dimension)
+                continue;
+
+            int g = groups.putIfAbsent(chunks[i], groups.size());
+            if (g == -1)
+                g = groups.size() - 1;
+
+            group[i] = g;
+            counts[g + 1]++;
+            entries++;
+        }
+
+        int groupCount = groups.size();
+        for (int g = 0; g < groupCount; g++)
+            counts[g + 1] += counts[g];
+
+        var offsets = Arrays.copyOf(counts, groupCount + 1);
+        var groupChunks = new long[groupCount];
+        var groupVisits = new int[groupCount];
+        var groupPlayers = new int[entries];
+        var groupSeconds = new long[entries];
+        for (int i = 0; i < chunks.length; i++) {
+            if (dimensions[i] != dimension)
+                continue;
+
+            int slot = counts[group[i]]++;
+            groupChunks[group[i]] = chunks[i];
+            groupVisits[group[i]] += visits[i];
+            groupPlayers[slot] = players[i];
+            groupSeconds[slot] = seconds[i];
+        }
+
+        map.addActivity(groupChunks, offsets, groupPlayers, groupSeconds, groupVisits, timestamp, pos -> newChunks.accept(dimensionKey, pos));
+    }
+
+    public static class Builder {
+        private final ArrayList<ResourceKey<Level>> dimensionKeys = new ArrayList<>(3);
+        private int[] dimensions = new int[16];
+        private long[] chunks = new long[16];
+        private int[] players = new int[16];
+        private long[] seconds = new long[16];
+        private int[] visits = new int[16];
+        private int size;
+
+        private Builder() {
+        }
+
+        public Builder add(ResourceKey<Level> dimension, ChunkPos chunk, int player, long time) {
+            return add(dimension, chunk.toLong(), player, time);
+        }
+
+        public Builder add(ResourceKey<Level> dimension, long chunk, int player, long time) {
+            return add(dimension, chunk, player, time, 0);
+        }
+
+        // Time spent and number of times the player entered the chunk
+        public Builder add(ResourceKey<Level> dimension, long chunk, int player, long time, int visitCount) {
+            if (time == 0 && visitCount == 0)
+                return this;
+
+            int dimensionIndex = dimensionKeys.indexOf(dimension);
+            if (dimensionIndex == -1) {
+                dimensionIndex = dimensionKeys.size();
+                dimensionKeys.add(dimension);
+            }
+
+            if (size == chunks.length) {
+                dimensions = Arrays.copyOf(dimensions, size * 2);
+                chunks = Arrays.copyOf(chunks, size * 2);
+                players = Arrays.copyOf(players, size * 2);
+                seconds = Arrays.copyOf(seconds, size * 2);
+                visits = Arrays.copyOf(visits, size * 2);
+            }
+
+            dimensions[size] = dimensionIndex;
+            chunks[size] = chunk;
+            players[size] = player;
+            seconds[size] = time;
+            visits[size] = visitCount;
+            size++;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public void clear() {
+            size = 0;
+            dimensionKeys.clear();
+        }
+
+        public ActivityBatch build() {
+            return new ActivityBatch(List.copyOf(dimensionKeys), Arrays.copyOf(dimensions, size), Arrays.copyOf(chunks, size),
+                Arrays.copyOf(players, size), Arrays.copyOf(seconds, size), Arrays.copyOf(visits, size), System.currentTimeMillis() / 1000);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package toni.chunkactivitytracker.tracking;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import toni.chunkactivitytracker.data.ChunkActivityMap;
+import toni.chunkactivitytracker.data.PlayerIndex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Blocks placed and broken by players since the last flush, counted on the server thread per dimension, chunk and
+ * player. Fast placing or a builder wand changing hundreds of blocks in a tick only bumps counters here, and the
+ * totals are added to the chunk maps once per tick. Blocks are credited to the chunk they're in, not the player's.
+ */
+public class BlockChanges {
+    // Per dimension, chunk position to runs of player, placed and broken, preceded by the number of runs
+    private static final Map<ResourceKey<Level>, Long2ObjectOpenHashMap<int[]>> pending = new HashMap<>();
+
+    public static void placed(Level level, BlockPos pos, Player player) {
+        record(level, pos, player, 1, 0);
+    }
+
+    public static void broken(Level level, BlockPos pos, Player player) {
+        record(level, pos, player, 0, 1);
+    }
+
+    private static void record(Level level, BlockPos pos, Player player, int placed, int broken) {
+        if (level.isClientSide())
+            return;
+
+        var chunks = pending.computeIfAbsent(level.dimension(), key -> new Long2ObjectOpenHashMap<>());
+        long chunkPos = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        int playerIndex = PlayerIndex.indexOf(player.getUUID());
+
+        var runs = chunks.get(chunkPos);
+        if (runs == null) {
+            runs = new int[4];
+            chunks.put(chunkPos, runs);
+        }
+
+        for (int i = 1; i < 1 + runs[0] * 3; i += 3) {
+            if (runs[i] == playerIndex) {
+                runs[i + 1] += placed;
+                runs[i + 2] += broken;
+                return;
+            }
+        }
+
+        int end = 1 + runs[0] * 3;
+        if (end + 3 > runs.length) {
+            runs = Arrays.copyOf(runs, runs.length * 2 - 1);
+            chunks.put(chunkPos, runs);
+        }
+
+        runs[end] = playerIndex;
+        runs[end + 1] = placed;
+        runs[end + 2] = broken;
+        runs[0]++;
+    }
+
+    /**
+     * Adds everything counted since the last flush to the chunk maps. Chunks seen for the first time are created without
+     * a heightmap and passed to newChunks. Server thread only.
+     */
+    public static void flush(BiConsumer<ResourceKey<Level>, Long> newChunks) {
+        for (var entry : pending.entrySet()) {
+            var chunks = entry.getValue();
+            if (chunks.isEmpty())
+                continue;
+
+            int count = 0;
+            for (var runs : chunks.values())
+                count += runs[0];
+
+            var positions = new long[count];
+            var players = new int[count];
+            var placed = new int[count];
+            var broken = new int[count];
+            int n = 0;
+            for (var chunk : chunks.long2ObjectEntrySet()) {
+                var runs = chunk.getValue();
+                for (int i = 1; i < 1 + runs[0] * 3; i += 3) {
+                    positions[n] = chunk.getLongKey();
+                    players[n] = runs[i];
+                    placed[n] = runs[i + 1];
+                    broken[n] = runs[i + 2];
+                    n++;
+                }
+            }
+
+            chunks.clear();
+
+            var dimension = entry.getKey();
+            ChunkActivityMap.getOrCreateChunkMap(dimension).addBlockChanges(positions, players, placed, broken, count, pos -> newChunks.accept(dimension, pos));
+        }
+    }
+
+    public static void clear() {
+        pending.clear();
+    }
+}
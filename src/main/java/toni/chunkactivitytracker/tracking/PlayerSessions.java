@@ -0,0 +1,152 @@
+package toni.chunkactivitytracker.tracking;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import toni.chunkactivitytracker.data.PlayerIndex;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Where each online player is and since when. Time is settled into the chunk a player was in when they change chunks,
+ * at each sample, when they leave, or when the clock changes. Only touched from the server thread.
+ */
+public class PlayerSessions {
+    private final HashMap<UUID, Session> sessions = new HashMap<>();
+    private TimeAccounting clock;
+
+    // Starts timing the player from now, counting a visit to the chunk they're in. Called when they join, or the first
+    // time a sample sees them.
+    public void start(ServerPlayer player, TimeAccounting clock, long now, ActivityBatch.Builder out) {
+        if (clock != this.clock) {
+            sessions.clear();
+            this.clock = clock;
+        }
+
+        var level = player.level();
+        if (level == null)
+            return;
+
+        var session = new Session(player, now);
+        sessions.put(player.getUUID(), session);
+        out.add(session.dimension, session.chunk, session.player, 0L, 1);
+    }
+
+    // The player object is replaced on respawn, so the session has to follow it to keep seeing position changes
+    public void replace(ServerPlayer player) {
+        var session = sessions.get(player.getUUID());
+        if (session != null)
+            session.entity = player;
+    }
+
+    /**
+     * Settles the players that changed chunk or dimension since the last call. Entities only replace their ChunkPos
+     * when they cross a chunk border, so for everyone else this is two reference comparisons.
+     */
+    public void checkTransitions(LongSupplier now, ActivityBatch.Builder out) {
+        if (clock == null)
+            return;
+
+        long time = 0L;
+        for (var session : sessions.values()) {
+            if (!session.hasMoved())
+                continue;
+
+            if (time == 0L)
+                time = now.getAsLong();
+
+            session.settle(time, clock.unit, session.entity.level(), session.entity.chunkPosition(), out);
+        }
+    }
+
+    /**
+     * Credits the time since the player's last settle to the chunk they were in, then moves them to where they are now.
+     */
+    public void sample(ServerPlayer player, TimeAccounting clock, long now, ActivityBatch.Builder out) {
+        var session = clock == this.clock ? sessions.get(player.getUUID()) : null;
+        if (session == null || player.level() == null) {
+            start(player, clock, now, out);
+            return;
+        }
+
+        session.entity = player;
+        session.settle(now, clock.unit, player.level(), player.chunkPosition(), out);
+    }
+
+    public void end(ServerPlayer player, long now, ActivityBatch.Builder out) {
+        var session = sessions.remove(player.getUUID());
+        if (session != null && clock != null)
+            session.settle(now, clock.unit, null, null, out);
+    }
+
+    // Settles every session up to now and keeps them running, e.g. before the data is saved on shutdown
+    public void settleAll(long now, ActivityBatch.Builder out) {
+        if (clock == null)
+            return;
+
+        for (var session : sessions.values())
+            session.settle(now, clock.unit, session.level, session.chunkPos, out);
+    }
+
+    public void clear() {
+        sessions.clear();
+        clock = null;
+    }
+
+    private static class Session {
+        final int player;
+        ServerPlayer entity;
+        // The exact objects the entity held when last settled, compared by reference to spot a chunk change
+        Level level;
+        ChunkPos chunkPos;
+        ResourceKey<Level> dimension;
+        long chunk;
+        long since;
+        // Time not yet credited, in clock units. Can be slightly negative after rounding up on a chunk change.
+        long carry;
+
+        Session(ServerPlayer entity, long since) {
+            this.player = PlayerIndex.indexOf(entity.getUUID());
+            this.entity = entity;
+            this.since = since;
+            moveTo(entity.level(), entity.chunkPosition());
+        }
+
+        boolean hasMoved() {
+            return entity.chunkPosition() != chunkPos || entity.level() != level;
+        }
+
+        private void moveTo(Level newLevel, ChunkPos newChunkPos) {
+            level = newLevel;
+            chunkPos = newChunkPos;
+            dimension = newLevel != null ? newLevel.dimension() : null;
+            chunk = newChunkPos != null ? newChunkPos.toLong() : 0L;
+        }
+
+        /**
+         * Fractions of a second are carried over while the player stays put. On a chunk change the remainder is
+         * rounded to the nearest second instead, so each chunk is off by at most half a second while the player's
+         * total stays exact. Entering a new chunk counts as a visit to it.
+         */
+        void settle(long now, long unit, Level newLevel, ChunkPos newChunkPos, ActivityBatch.Builder out) {
+            long total = carry + (now - since);
+            since = now;
+
+            boolean moved = newLevel == null || newChunkPos == null || !newLevel.dimension().equals(dimension) || newChunkPos.toLong() != chunk;
+            long whole = moved ? Math.floorDiv(total + unit / 2, unit) : Math.floorDiv(total, unit);
+            if (whole < 0)
+                whole = 0;
+
+            carry = total - whole * unit;
+            if (whole > 0)
+                out.add(dimension, chunk, player, whole);
+
+            moveTo(newLevel, newChunkPos);
+            if (moved && newLevel != null && newChunkPos != null)
+                out.add(dimension, chunk, player, 0L, 1);
+        }
+    }
+}
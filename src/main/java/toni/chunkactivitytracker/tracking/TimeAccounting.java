@@ -0,0 +1,30 @@
+package toni.chunkactivitytracker.tracking;
+
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * How time spent in a chunk is measured.
+ */
+public enum TimeAccounting {
+    // Real time between samples, carried over in fractions of a second. Correct on a lagging server.
+    REAL_TIME(1_000_000_000L),
+    // Server ticks, 20 to a second. Counts game time, so a server running at 10 TPS credits half as much.
+    SERVER_TICKS(20L),
+    // The original behaviour: one second per pass, and at most one pass per server tick. Undercounts under lag.
+    SAMPLED(1L);
+
+    public final long unit;
+
+    TimeAccounting(long unit) {
+        this.unit = unit;
+    }
+
+    // Current time in this mode's clock, measured in units
+    public long now(MinecraftServer server) {
+        return switch (this) {
+            case REAL_TIME -> System.nanoTime();
+            case SERVER_TICKS -> server.getTickCount();
+            case SAMPLED -> 0L;
+        };
+    }
+}